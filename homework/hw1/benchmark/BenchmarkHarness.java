@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A small stand-in for JMH, for a project that is built with plain javac.
+//
+// Each benchmark is an Operation that is called over and over from one or more threads, for a fixed number of
+// warmup iterations (so the JIT has compiled it) followed by measured iterations of a fixed length. For every
+// benchmark it prints the throughput (mean and standard deviation over the measured iterations) and the average
+// time per operation, one line per benchmark, so runs can be diffed against each other:
+//      search/concurrent/100000 seats/50% full      1 threads   12345678 ops/s  +-   1.2%      81.0 ns/op
+//
+// Example usage:
+//      BenchmarkHarness harness = new BenchmarkHarness(args);
+//      harness.run("parse/reserve", 1, new BenchmarkHarness.Operation() { ... });
+public class BenchmarkHarness {
+
+	// One call of the code being measured. The result is folded into a sink, so the JIT can't throw the work away.
+	public interface Operation {
+		long run(int threadIndex, long iteration) throws Exception;
+	}
+
+	private int warmupIterations;
+	private int measuredIterations;
+	private long iterationMillis;
+	private String filter;
+
+	private volatile long sink;
+
+	// Understands these arguments, all optional:
+	//      --filter=<substring>: only run the benchmarks whose name contains it
+	//      --warmup=<iterations> (default 3), --iterations=<count> (default 5), --iteration-ms=<ms> (default 500)
+	public BenchmarkHarness(String[] args) {
+		this.warmupIterations = 3;
+		this.measuredIterations = 5;
+		this.iterationMillis = 500;
+		this.filter = "";
+
+		for (String arg : args) {
+			if (arg.startsWith("--filter=")) {
+				filter = arg.substring("--filter=".length());
+			} else if (arg.startsWith("--warmup=")) {
+				warmupIterations = Integer.parseInt(arg.substring("--warmup=".length()));
+			} else if (arg.startsWith("--iterations=")) {
+				measuredIterations = Integer.parseInt(arg.substring("--iterations=".length()));
+			} else if (arg.startsWith("--iteration-ms=")) {
+				iterationMillis = Long.parseLong(arg.substring("--iteration-ms=".length()));
+			} else {
+				throw new IllegalArgumentException(String.format("Error: unknown benchmark argument: %s", arg));
+			}
+		}
+	}
+
+	public boolean isSelected(String name) {
+		return name.contains(filter);
+	}
+
+	// Runs operation from the given number of threads, and prints the result
+	public void run(String name, int threads, Operation operation) throws Exception {
+		if (!isSelected(name)) {
+			return;
+		}
+
+		for (int i = 0; i < warmupIterations; i++) {
+			runIteration(threads, operation);
+		}
+
+		List<Double> throughputs = new ArrayList<Double>();
+		for (int i = 0; i < measuredIterations; i++) {
+			throughputs.add(runIteration(threads, operation));
+		}
+
+		double mean = 0;
+		for (double throughput : throughputs) {
+			mean += throughput / throughputs.size();
+		}
+		double variance = 0;
+		for (double throughput : throughputs) {
+			variance += (throughput - mean) * (throughput - mean) / throughputs.size();
+		}
+
+		System.out.println(String.format("%-52s %3d threads %12.0f ops/s  +- %5.1f%% %10.1f ns/op",
+				name, threads, mean, 100 * Math.sqrt(variance) / mean, threads * 1e9 / mean));
+	}
+
+	// Returns the number of operations per second that all threads managed together
+	private double runIteration(final int threads, final Operation operation) throws Exception {
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final CountDownLatch doneSignal = new CountDownLatch(threads);
+		final AtomicLong operations = new AtomicLong();
+		final long[] deadline = new long[1];
+		final Exception[] failure = new Exception[1];
+
+		for (int t = 0; t < threads; t++) {
+			final int threadIndex = t;
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					long count = 0;
+					long localSink = 0;
+					try {
+						startSignal.await();
+						// Only look at the clock every so often, it's not free either
+						while (System.nanoTime() < deadline[0]) {
+							for (int i = 0; i < 64; i++) {
+								localSink += operation.run(threadIndex, count++);
+							}
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					} finally {
+						sink += localSink;
+						operations.addAndGet(count);
+						doneSignal.countDown();
+					}
+				}
+			}).start();
+		}
+
+		long start = System.nanoTime();
+		deadline[0] = start + iterationMillis * 1000000L;
+		startSignal.countDown();
+		doneSignal.await();
+		long elapsed = System.nanoTime() - start;
+
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return operations.get() * 1e9 / elapsed;
+	}
+}
@@ -0,0 +1,69 @@
+import java.lang.management.ManagementFactory;
+
+// Measures the time and the heap allocated per parsed command, for both ways of parsing a command:
+//      - parseCommand(String), which builds a new Command with a list of argument Strings
+//      - parseCommand(CharSequence, MutableCommand), which reuses one MutableCommand
+// Allocation is measured with the per-thread allocation counter of HotSpot's ThreadMXBean.
+// The reusable variant should come out at (close to) 0 bytes per command.
+//
+// Usage (from homework/hw1):
+//      javac -d out src/*.java benchmark/*.java
+//      java -cp out CommandParserBenchmark [<iterations>]
+public class CommandParserBenchmark {
+	private static final String[] COMMANDS = {
+		"reserve alice T",
+		"bookSeat bob 1234 U",
+		"search carol_3 T",
+		"delete dave T"
+	};
+
+	// keeps the JIT from throwing the parsing away
+	private static long blackhole;
+
+	public static void main(String[] args) throws CommandParser.InvalidCommandException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		// Warm up both variants, so the measurements below only see JIT compiled code
+		parseStrings(iterations);
+		parseMutable(iterations);
+
+		long bytesBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		parseStrings(iterations);
+		long elapsed = System.nanoTime() - start;
+		long bytes = threadMXBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		print("parseCommand(String)", iterations, elapsed, bytes);
+
+		bytesBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+		start = System.nanoTime();
+		parseMutable(iterations);
+		elapsed = System.nanoTime() - start;
+		bytes = threadMXBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		print("parseCommand(CharSequence, MutableCommand)", iterations, elapsed, bytes);
+
+		System.out.println(blackhole == 42 ? "" : "done");
+	}
+
+	private static void parseStrings(int iterations) throws CommandParser.InvalidCommandException {
+		for (int i = 0; i < iterations; i++) {
+			CommandParser.Command command = CommandParser.parseCommand(COMMANDS[i & 3]);
+			blackhole += command.getArguments().size() + command.getCommandType().ordinal();
+		}
+	}
+
+	private static void parseMutable(int iterations) throws CommandParser.InvalidCommandException {
+		CommandParser.MutableCommand command = new CommandParser.MutableCommand();
+		for (int i = 0; i < iterations; i++) {
+			CommandParser.parseCommand(COMMANDS[i & 3], command);
+			blackhole += command.getArgumentCount() + command.getCommandType().ordinal();
+		}
+	}
+
+	private static void print(String variant, int iterations, long elapsedNanos, long allocatedBytes) {
+		System.out.println(String.format("%-45s %8.1f ns/command %8.1f bytes/command",
+				variant, (double) elapsedNanos / iterations, (double) allocatedBytes / iterations));
+	}
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.CountDownLatch;
+
+// Runs a mix of reserve/bookSeat/search/delete against a ConcurrentSeatInventory from 1..T threads,
+// prints the throughput for each thread count, and checks that no seat ever ended up with two names.
+//
+// Usage (from homework/hw1):
+//      javac -d out src/*.java benchmark/*.java
+//      java -cp out ConcurrentSeatInventoryBenchmark [<N> [<maxThreads> [<opsPerThread>]]]
+public class ConcurrentSeatInventoryBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int seatCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int opsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			run(seatCount, threads, opsPerThread);
+		}
+	}
+
+	private static void run(int seatCount, final int threads, final int opsPerThread) throws InterruptedException {
+		final SeatInventory seatInventory = new ConcurrentSeatInventory(seatCount);
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final CountDownLatch doneSignal = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final int threadId = t;
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					// Each thread works on its own names, so every operation is independent of the other threads
+					String[] names = new String[1024];
+					for (int i = 0; i < names.length; i++) {
+						names[i] = "t" + threadId + "n" + i;
+					}
+
+					try {
+						startSignal.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					for (int i = 0; i < opsPerThread; i++) {
+						String name = names[i & (names.length - 1)];
+						switch (i & 3) {
+							case 0:
+								seatInventory.reserve(name);
+								break;
+							case 1:
+								seatInventory.search(name);
+								break;
+							case 2:
+								seatInventory.delete(name);
+								break;
+							case 3:
+								seatInventory.bookSeat(name, 1 + (i % seatInventory.getMaxNumberOfSeats()));
+								break;
+						}
+					}
+					doneSignal.countDown();
+				}
+			}).start();
+		}
+
+		long start = System.nanoTime();
+		startSignal.countDown();
+		doneSignal.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("%2d threads: %10.0f ops/s", threads, (double) threads * opsPerThread * 1e9 / elapsed));
+		checkNoDoubleBooking(seatInventory, threads);
+	}
+
+	private static void checkNoDoubleBooking(SeatInventory seatInventory, int threads) {
+		boolean[] taken = new boolean[seatInventory.getMaxNumberOfSeats() + 1];
+		int reserved = 0;
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < 1024; i++) {
+				int seatNum = seatInventory.search("t" + t + "n" + i);
+				if (seatNum != SeatInventory.NOT_FOUND) {
+					if (taken[seatNum]) {
+						throw new IllegalStateException(String.format("Error: seat %d is double booked!", seatNum));
+					}
+					taken[seatNum] = true;
+					reserved++;
+				}
+			}
+		}
+
+		if (reserved != seatInventory.getNumberOfReservedSeats()) {
+			throw new IllegalStateException("Error: reserved seat count doesn't match the name index!");
+		}
+	}
+}
@@ -0,0 +1,75 @@
+// Fills a BitSetSeatInventory (names in a NameSeatMap on the heap) and an OffHeapSeatInventory with the same reservations, and prints
+// how much heap each one keeps alive, and how long reserve() and search() take.
+// The heap used by the OffHeapSeatInventory should stay about the same from the smallest venue to the largest one.
+//
+// Usage (from homework/hw1):
+//      javac -d out src/*.java benchmark/*.java
+//      java -Xmx4g -cp out OffHeapSeatInventoryBenchmark [<N> ...]
+public class OffHeapSeatInventoryBenchmark {
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static void main(String[] args) {
+		int[] seatCounts = { 100000, 1000000, 4000000 };
+		if (args.length > 0) {
+			seatCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				seatCounts[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			fillVenue(new BitSetSeatInventory(seatCounts[0]), false);
+			fillVenue(new OffHeapSeatInventory(seatCounts[0]), false);
+		}
+
+		for (int seatCount : seatCounts) {
+			System.out.println(String.format("N = %d", seatCount));
+			fillVenue(new BitSetSeatInventory(seatCount), true);
+			fillVenue(new OffHeapSeatInventory(seatCount), true);
+		}
+	}
+
+	private static void fillVenue(SeatInventory seatInventory, boolean printResults) {
+		int seatCount = seatInventory.getMaxNumberOfSeats();
+		long heapBefore = usedHeap();
+
+		// The names are built as they go, so only the ones the inventory keeps stay alive
+		long start = System.nanoTime();
+		for (int i = 0; i < seatCount; i++) {
+			seatInventory.reserve("name" + i);
+		}
+		long reserveNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < seatCount; i++) {
+			if (seatInventory.search("name" + i) != i + 1) {
+				throw new IllegalStateException(String.format("Error: name%d isn't at seat %d", i, i + 1));
+			}
+		}
+		long searchNanos = System.nanoTime() - start;
+
+		long heapBytes = usedHeap() - heapBefore;
+		if (printResults) {
+			String offHeap = "";
+			if (seatInventory instanceof OffHeapSeatInventory) {
+				offHeap = String.format(" off-heap=%.1f bytes/seat", (double) ((OffHeapSeatInventory) seatInventory).getOffHeapBytes() / seatCount);
+			}
+			System.out.println(String.format("\t%-20s %8.1f ns/reserve %8.1f ns/search heap=%.1f bytes/seat%s",
+					seatInventory.getClass().getSimpleName(), (double) reserveNanos / seatCount, (double) searchNanos / seatCount,
+					(double) heapBytes / seatCount, offHeap));
+		}
+
+		// Keep the inventory alive until its heap has been measured
+		if (seatInventory.getNumberOfReservedSeats() != seatCount) {
+			throw new IllegalStateException("Error: the venue should be sold out!");
+		}
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
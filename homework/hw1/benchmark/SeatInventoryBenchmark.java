@@ -0,0 +1,61 @@
+// Measures how long reserve() takes as the venue fills up, from empty to sold out.
+// The venue is filled in ten slices, and the average latency of each slice is printed.
+// With a constant time seat index, the latency should stay flat from the first slice to the last.
+//
+// Usage (from homework/hw1):
+//      javac -d out src/*.java benchmark/*.java
+//      java -cp out SeatInventoryBenchmark [<N> ...]
+public class SeatInventoryBenchmark {
+	private static final int NUMBER_OF_SLICES = 10;
+	private static final int WARMUP_ROUNDS = 3;
+
+	public static void main(String[] args) {
+		int[] seatCounts = { 10000, 50000, 250000 };
+		if (args.length > 0) {
+			seatCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				seatCounts[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			fillVenue(seatCounts[0], false);
+		}
+
+		for (int seatCount : seatCounts) {
+			System.out.println(String.format("N = %d", seatCount));
+			fillVenue(seatCount, true);
+		}
+	}
+
+	private static void fillVenue(int seatCount, boolean printResults) {
+		SeatInventory seatInventory = new BitSetSeatInventory(seatCount);
+
+		// Build the names up front so we only measure the inventory
+		String[] names = new String[seatCount];
+		for (int i = 0; i < seatCount; i++) {
+			names[i] = "name" + i;
+		}
+
+		int sliceSize = Math.max(1, seatCount / NUMBER_OF_SLICES);
+		for (int slice = 0; slice * sliceSize < seatCount; slice++) {
+			int from = slice * sliceSize;
+			int to = Math.min(seatCount, from + sliceSize);
+
+			long start = System.nanoTime();
+			for (int i = from; i < to; i++) {
+				seatInventory.reserve(names[i]);
+			}
+			long elapsed = System.nanoTime() - start;
+
+			if (printResults) {
+				System.out.println(String.format("\t%3d%% - %3d%% full: %8.1f ns/reserve",
+						100 * from / seatCount, 100 * to / seatCount, (double) elapsed / (to - from)));
+			}
+		}
+
+		if (seatInventory.reserve("oneTooMany") != SeatInventory.SOLD_OUT) {
+			throw new IllegalStateException("Error: the venue should be sold out!");
+		}
+	}
+}
@@ -0,0 +1,220 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// The benchmarks for every path the seat server depends on, run with BenchmarkHarness:
+//      parse/...     CommandParser.parseCommand() into a reusable MutableCommand
+//      inventory/... reserve/bookSeat/search/delete on the Server's ConcurrentSeatInventory, at several sizes and fill levels
+//      execute/...   Server.executeMessage() (parse, execute and format) from 1..N threads with their own names
+//      loopback/...  a whole round trip to a running Server over a local TCP connection (text and binary) and UDP
+// The inventory benchmarks pair every booking with a delete, so the fill level stays where it was set up.
+//
+// Usage (from homework/hw1):
+//      javac -d out src/*.java benchmark/*.java
+//      java -cp out SeatServerBenchmarks [--filter=<substring>] [--warmup=<n>] [--iterations=<n>] [--iteration-ms=<ms>]
+// The loopback benchmarks start a server on ports 18200 (TCP) and 18201 (UDP).
+public class SeatServerBenchmarks {
+	private static final int[] SEAT_COUNTS = { 1000, 100000, 1000000 };
+	private static final int[] FILL_PERCENTAGES = { 0, 50, 99 };
+
+	private static final int TCP_PORT = 18200;
+	private static final int UDP_PORT = 18201;
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkHarness harness = new BenchmarkHarness(args);
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+
+		benchmarkParsing(harness);
+		for (int seatCount : SEAT_COUNTS) {
+			for (int fillPercentage : FILL_PERCENTAGES) {
+				benchmarkInventory(harness, seatCount, fillPercentage);
+			}
+		}
+
+		Server server = new Server(100000, TCP_PORT, UDP_PORT);
+		for (int threads = 1; threads <= Math.max(maxThreads, 2); threads *= 2) {
+			benchmarkExecute(harness, server, threads);
+		}
+
+		server.start();
+		benchmarkLoopback(harness);
+
+		// The server's handler threads don't stop on their own
+		System.exit(0);
+	}
+
+	private static void benchmarkParsing(BenchmarkHarness harness) throws Exception {
+		String[] commands = {
+			"reserve alice T",
+			"bookSeat bob 1234 U",
+			"search carol_3 T",
+			"delete dave T",
+			"@show7 bookSeat erin 17 T"
+		};
+
+		for (final String command : commands) {
+			final CommandParser.MutableCommand parsedCommand = new CommandParser.MutableCommand();
+
+			harness.run("parse/" + command, 1, new BenchmarkHarness.Operation() {
+
+				@Override
+				public long run(int threadIndex, long iteration) throws Exception {
+					CommandParser.parseCommand(command, parsedCommand);
+					return parsedCommand.getArgumentCount();
+				}
+			});
+		}
+	}
+
+	private static void benchmarkInventory(BenchmarkHarness harness, int seatCount, int fillPercentage) throws Exception {
+		String prefix = String.format("inventory/%d seats/%d%% full/", seatCount, fillPercentage);
+		if (!harness.isSelected(prefix)) {
+			return;
+		}
+
+		final ConcurrentSeatInventory seatInventory = new ConcurrentSeatInventory(seatCount);
+
+		// Fill random seats, so the free seats are scattered like they would be after a while of selling tickets
+		List<Integer> seats = new ArrayList<Integer>(seatCount);
+		for (int seatNum = 1; seatNum <= seatCount; seatNum++) {
+			seats.add(seatNum);
+		}
+		Collections.shuffle(seats, new Random(42));
+
+		int filled = (int) ((long) seatCount * fillPercentage / 100);
+		final String[] filledNames = new String[Math.max(filled, 1)];
+		for (int i = 0; i < filled; i++) {
+			filledNames[i] = "filled" + i;
+			seatInventory.bookSeat(filledNames[i], seats.get(i));
+		}
+
+		final int[] freeSeats = new int[seatCount - filled];
+		for (int i = filled; i < seatCount; i++) {
+			freeSeats[i - filled] = seats.get(i);
+		}
+
+		final String[] names = new String[1024];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "name" + i;
+		}
+
+		harness.run(prefix + "reserve+delete", 1, new BenchmarkHarness.Operation() {
+
+			@Override
+			public long run(int threadIndex, long iteration) {
+				String name = names[(int) iteration & 1023];
+				return seatInventory.reserve(name) + seatInventory.delete(name);
+			}
+		});
+
+		harness.run(prefix + "bookSeat+delete", 1, new BenchmarkHarness.Operation() {
+
+			@Override
+			public long run(int threadIndex, long iteration) {
+				String name = names[(int) iteration & 1023];
+				return seatInventory.bookSeat(name, freeSeats[(int) (iteration % freeSeats.length)]) + seatInventory.delete(name);
+			}
+		});
+
+		if (filled > 0) {
+			harness.run(prefix + "search (found)", 1, new BenchmarkHarness.Operation() {
+
+				@Override
+				public long run(int threadIndex, long iteration) {
+					return seatInventory.search(filledNames[(int) (iteration % filledNames.length)]);
+				}
+			});
+		}
+
+		harness.run(prefix + "search (not found)", 1, new BenchmarkHarness.Operation() {
+
+			@Override
+			public long run(int threadIndex, long iteration) {
+				return seatInventory.search(names[(int) iteration & 1023]);
+			}
+		});
+	}
+
+	private static void benchmarkExecute(BenchmarkHarness harness, final Server server, int threads) throws Exception {
+		// Every thread has its own names, so the threads only contend inside the inventory, never over a name
+		final String[][] commands = new String[threads][1024];
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < 1024; i++) {
+				String name = "t" + t + "n" + (i >> 2);
+				switch (i & 3) {
+					case 0:
+						commands[t][i] = "reserve " + name + " T";
+						break;
+					case 1:
+						commands[t][i] = "search " + name + " T";
+						break;
+					case 2:
+						commands[t][i] = "delete " + name + " T";
+						break;
+					case 3:
+						commands[t][i] = "bookSeat " + name + " " + (1 + t * 1024 + i) + " T";
+						break;
+				}
+			}
+		}
+
+		harness.run("execute/reserve,search,delete,bookSeat", threads, new BenchmarkHarness.Operation() {
+
+			@Override
+			public long run(int threadIndex, long iteration) throws Exception {
+				return server.executeMessage(commands[threadIndex][(int) iteration & 1023]).length();
+			}
+		});
+	}
+
+	private static void benchmarkLoopback(BenchmarkHarness harness) throws Exception {
+		if (!harness.isSelected("loopback/")) {
+			return;
+		}
+
+		final TCPMessageHandler textConnection = new TCPMessageHandler("localhost", TCP_PORT);
+		textConnection.sendMessage("reserve loopback T");
+		textConnection.receiveMessage();
+
+		harness.run("loopback/tcp text search", 1, new BenchmarkHarness.Operation() {
+
+			@Override
+			public long run(int threadIndex, long iteration) throws Exception {
+				textConnection.sendMessage("search loopback T");
+				return textConnection.receiveMessage().length();
+			}
+		});
+
+		final TCPMessageHandler binaryConnection = new TCPMessageHandler("localhost", TCP_PORT);
+		binaryConnection.enableBinaryProtocol();
+		final List<String> arguments = Arrays.asList("loopback");
+
+		harness.run("loopback/tcp binary search", 1, new BenchmarkHarness.Operation() {
+
+			@Override
+			public long run(int threadIndex, long iteration) throws Exception {
+				binaryConnection.sendBinaryFrame(BinaryProtocol.encodeRequest(iteration, CommandParser.Command.CommandType.SEARCH, arguments));
+				ByteBuffer response = binaryConnection.receiveBinaryFrame();
+				return response.remaining();
+			}
+		});
+
+		final ClientUDPMessageHandler udpConnection = new ClientUDPMessageHandler("localhost", UDP_PORT);
+
+		harness.run("loopback/udp search", 1, new BenchmarkHarness.Operation() {
+
+			@Override
+			public long run(int threadIndex, long iteration) throws Exception {
+				udpConnection.sendMessage("search loopback U");
+				return udpConnection.receiveMessage().length();
+			}
+		});
+
+		textConnection.close();
+		binaryConnection.close();
+		udpConnection.close();
+	}
+}
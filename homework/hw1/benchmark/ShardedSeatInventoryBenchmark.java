@@ -0,0 +1,82 @@
+import java.util.concurrent.CountDownLatch;
+
+// Runs a mix of reserve/bookSeat/search/delete against a ShardedSeatInventory from 1..T threads, where every thread
+// sells seats for its own events, and prints the throughput for each thread count.
+// The inventory has as many shards as threads, so it should scale about as well as the machine has cores.
+//
+// Usage (from homework/hw1):
+//      javac -d out src/*.java benchmark/*.java
+//      java -cp out ShardedSeatInventoryBenchmark [<N> [<maxThreads> [<opsPerThread> [<eventsPerThread>]]]]
+public class ShardedSeatInventoryBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int seatCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int opsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+		int eventsPerThread = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			run(seatCount, threads, opsPerThread, eventsPerThread);
+		}
+	}
+
+	private static void run(int seatCount, final int threads, final int opsPerThread, final int eventsPerThread) throws Exception {
+		final ShardedSeatInventory shardedSeatInventory = new ShardedSeatInventory(seatCount, threads, threads * eventsPerThread);
+		shardedSeatInventory.start();
+
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final CountDownLatch doneSignal = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final SeatInventory[] events = new SeatInventory[eventsPerThread];
+			for (int e = 0; e < eventsPerThread; e++) {
+				events[e] = shardedSeatInventory.getEvent("t" + t + "e" + e);
+			}
+
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					String[] names = new String[1024];
+					for (int i = 0; i < names.length; i++) {
+						names[i] = "n" + i;
+					}
+
+					try {
+						startSignal.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+
+					for (int i = 0; i < opsPerThread; i++) {
+						SeatInventory event = events[i % events.length];
+						String name = names[(i / events.length) & (names.length - 1)];
+						switch (i & 3) {
+							case 0:
+								event.reserve(name);
+								break;
+							case 1:
+								event.search(name);
+								break;
+							case 2:
+								event.delete(name);
+								break;
+							case 3:
+								event.bookSeat(name, 1 + (i % seatCount));
+								break;
+						}
+					}
+					doneSignal.countDown();
+				}
+			}).start();
+		}
+
+		long start = System.nanoTime();
+		startSignal.countDown();
+		doneSignal.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println(String.format("%2d threads, %4d events: %10.0f ops/s", threads, threads * eventsPerThread, (double) threads * opsPerThread * 1e9 / elapsed));
+		shardedSeatInventory.close();
+	}
+}
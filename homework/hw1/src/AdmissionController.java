@@ -0,0 +1,186 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Decides whether the server takes on another command, so that an overload (e.g. the moment tickets go on sale)
+// turns into quick BUSY answers for some clients, instead of every command getting slower until nothing finishes.
+//
+// At most limit commands execute at once. A command that arrives while the limit is reached waits in a bounded
+// queue for one of them to finish:
+//      - if maxQueueLength commands are already waiting, it is rejected right away
+//      - if it has waited for queueTimeoutMillis, it is rejected then
+//      - a caller that can't wait at all (an event loop, see NIOFrontEnd) is rejected right away
+// Waiting commands are admitted in the order they arrived. A new arrival doesn't jump ahead of them.
+//
+// With LimitPolicy.ADAPTIVE, the limit follows the execution latency of the commands (a gradient limit):
+// every window of samples, the average latency of the window is compared against the baseline, the lowest window
+// average seen so far. While commands are slower than the baseline, the extra ones are only fighting over the same
+// cores and locks, so the limit shrinks in proportion. On top of that, it grows by about its square root, which
+// leaves a little room to find out whether more concurrency helps. The limit stays between 1 and maxLimit.
+// The baseline creeps up towards the latest window, so it follows the commands if they really do get slower
+// (e.g. the inventory fills up), instead of throttling them forever.
+// Example usage:
+//      AdmissionController admissionController = new AdmissionController(LimitPolicy.ADAPTIVE, 64, 64, 50);
+//      if (!admissionController.acquire(true)) {
+//          return AdmissionController.BUSY;
+//      }
+//      long startTime = System.nanoTime();
+//      try {
+//          ...
+//      } finally {
+//          admissionController.release(System.nanoTime() - startTime);
+//      }
+public class AdmissionController {
+	public enum LimitPolicy {
+		// the limit is always maxLimit
+		FIXED,
+		// the limit moves between 1 and maxLimit with the execution latency
+		ADAPTIVE
+	}
+
+	// the response to a command that was rejected
+	public static final String BUSY = "BUSY";
+
+	// the smallest number of samples a window of ADAPTIVE has
+	private static final int MIN_WINDOW_SAMPLES = 20;
+	// how much each window moves the baseline up, and the limit, towards the latest one
+	private static final double BASELINE_DRIFT = 0.01;
+	private static final double LIMIT_SMOOTHING = 0.2;
+
+	private LimitPolicy limitPolicy;
+	private int maxLimit;
+	private int maxQueueLength;
+	private long queueTimeoutNanos;
+
+	// This is a Lock rather than synchronized, so threads waiting in the queue don't pin virtual threads
+	private Lock lock;
+	private Condition permitReleased;
+
+	private double limit;
+	private int inFlight;
+	private int queueLength;
+
+	// the window of execution latencies that is being collected, and the highest inFlight seen during it
+	private long windowLatencyNanos;
+	private int windowSamples;
+	private int windowMaxInFlight;
+	private double baselineLatencyNanos;
+
+	public AdmissionController(LimitPolicy limitPolicy, int maxLimit, int maxQueueLength, long queueTimeoutMillis) {
+		assert (maxLimit > 0 && maxQueueLength >= 0);
+
+		this.limitPolicy = limitPolicy;
+		this.maxLimit = maxLimit;
+		this.maxQueueLength = maxQueueLength;
+		this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+
+		this.lock = new ReentrantLock();
+		this.permitReleased = lock.newCondition();
+
+		this.limit = maxLimit;
+	}
+
+	// Returns true if the command may execute, in which case release() must be called once it's done.
+	// If mayWait is false, the caller is rejected instead of being queued.
+	public boolean acquire(boolean mayWait) {
+		lock.lock();
+		try {
+			if (queueLength == 0 && inFlight < (int) limit) {
+				admit();
+				return true;
+
+			} else if (!mayWait || queueLength >= maxQueueLength) {
+				return false;
+			}
+
+			queueLength++;
+			try {
+				long remainingNanos = queueTimeoutNanos;
+				while (inFlight >= (int) limit) {
+					if (remainingNanos <= 0) {
+						return false;
+					}
+					remainingNanos = permitReleased.awaitNanos(remainingNanos);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				queueLength--;
+			}
+
+			admit();
+			return true;
+
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Called once an admitted command is done, with how long it took to execute
+	public void release(long executionNanos) {
+		lock.lock();
+		try {
+			inFlight--;
+			int previousLimit = (int) limit;
+			if (limitPolicy == LimitPolicy.ADAPTIVE) {
+				recordLatency(executionNanos);
+			}
+
+			if ((int) limit > previousLimit) {
+				permitReleased.signalAll();
+			} else {
+				permitReleased.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void admit() {
+		inFlight++;
+		windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+	}
+
+	private void recordLatency(long executionNanos) {
+		windowLatencyNanos += executionNanos;
+		windowSamples++;
+		if (windowSamples < Math.max(MIN_WINDOW_SAMPLES, (int) limit)) {
+			return;
+		}
+
+		double latencyNanos = Math.max(1.0, (double) windowLatencyNanos / windowSamples);
+		int maxInFlight = windowMaxInFlight;
+		windowLatencyNanos = 0;
+		windowSamples = 0;
+		windowMaxInFlight = inFlight;
+
+		if (baselineLatencyNanos == 0 || latencyNanos < baselineLatencyNanos) {
+			baselineLatencyNanos = latencyNanos;
+		} else {
+			baselineLatencyNanos += (latencyNanos - baselineLatencyNanos) * BASELINE_DRIFT;
+		}
+
+		// Never cut the limit by more than half in one window
+		double gradient = Math.max(0.5, baselineLatencyNanos / latencyNanos);
+		double newLimit = limit * gradient + Math.sqrt(limit);
+
+		// A limit that was never reached says nothing about whether a higher one would help
+		if (newLimit > limit && maxInFlight < limit / 2) {
+			return;
+		}
+
+		limit += (newLimit - limit) * LIMIT_SMOOTHING;
+		limit = Math.max(1.0, Math.min(maxLimit, limit));
+	}
+}
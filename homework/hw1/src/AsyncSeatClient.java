@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A non-blocking client library for the seat server. Every call sends its request and returns a CompletableFuture
+// right away, so a single thread can keep thousands of bookings in flight without a thread per request.
+//
+// Requests are spread round-robin over a small, fixed number of TCP connections, in the binary protocol
+// (see BinaryProtocol). Every request carries a request id from a single counter, and each connection has a reader
+// thread that matches the responses to the outstanding requests by their id, in whatever order they arrive.
+//
+// A future completes with the result in the same form SeatInventory uses: a seat number, or one of the negative
+// status codes (e.g. SeatInventory.SOLD_OUT). It completes exceptionally with:
+//      - BusyException, if the server turned the request away (see AdmissionController), so it can be retried
+//      - CommandParser.InvalidCommandException, if the server rejected the request
+//      - IOException, if the connection was lost before the response arrived
+// Futures are completed on the reader threads, so callbacks attached to them should be quick.
+// Example usage:
+//      AsyncSeatClient client = new AsyncSeatClient("localhost", 8000, 4);
+//      client.reserve("alice").thenAccept(seatNum -> System.out.println("alice got seat " + seatNum));
+//      int seatNum = client.search("alice").join();
+//      client.close();
+public class AsyncSeatClient implements AutoCloseable {
+
+	// The server is overloaded, and didn't execute the request
+	public static class BusyException extends IOException {
+
+		private static final long serialVersionUID = -2035512640924183207L;
+
+		public BusyException(String message) {
+			super(message);
+		}
+	}
+
+	private Connection[] connections;
+	private AtomicInteger nextConnection;
+	private AtomicLong nextRequestId;
+
+	public AsyncSeatClient(String hostAddress, int tcpPort, int numberOfConnections) throws IOException {
+		assert (numberOfConnections > 0);
+
+		this.connections = new Connection[numberOfConnections];
+		this.nextConnection = new AtomicInteger();
+		this.nextRequestId = new AtomicLong(1);
+
+		try {
+			for (int i = 0; i < numberOfConnections; i++) {
+				connections[i] = new Connection(new TCPMessageHandler(hostAddress, tcpPort), "async-seat-client-" + i);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public CompletableFuture<Integer> reserve(String name) {
+		return execute(null, CommandParser.Command.CommandType.RESERVE, name);
+	}
+
+	public CompletableFuture<Integer> bookSeat(String name, int seatNum) {
+		return execute(null, CommandParser.Command.CommandType.BOOKSEAT, name, Integer.toString(seatNum));
+	}
+
+	public CompletableFuture<Integer> reserveBlock(String name, int numberOfSeats) {
+		return execute(null, CommandParser.Command.CommandType.RESERVE_BLOCK, name, Integer.toString(numberOfSeats));
+	}
+
+	public CompletableFuture<Integer> bookRange(String name, int firstSeatNum, int lastSeatNum) {
+		return execute(null, CommandParser.Command.CommandType.BOOK_RANGE, name, Integer.toString(firstSeatNum), Integer.toString(lastSeatNum));
+	}
+
+	// Completes with the held seat, see HOLD
+	public CompletableFuture<Integer> hold(String name, int seconds) {
+		return execute(null, CommandParser.Command.CommandType.HOLD, name, Integer.toString(seconds));
+	}
+
+	public CompletableFuture<Integer> confirm(String name) {
+		return execute(null, CommandParser.Command.CommandType.CONFIRM, name);
+	}
+
+	public CompletableFuture<Integer> release(String name) {
+		return execute(null, CommandParser.Command.CommandType.RELEASE, name);
+	}
+
+	public CompletableFuture<Integer> search(String name) {
+		return execute(null, CommandParser.Command.CommandType.SEARCH, name);
+	}
+
+	public CompletableFuture<Integer> delete(String name) {
+		return execute(null, CommandParser.Command.CommandType.DELETE, name);
+	}
+
+	// Sends any command, e.g. to an event of a server started with --inventory=sharded. eventId may be null.
+	// The arguments are validated before anything is sent.
+	public CompletableFuture<Integer> execute(String eventId, CommandParser.Command.CommandType commandType, String ... arguments) {
+		CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		try {
+			commandType.validateArguments(Arrays.asList(arguments));
+			if (eventId != null && !CommandParser.ArgumentFormat.WORD.matches(eventId)) {
+				throw new CommandParser.InvalidCommandException(String.format("Error: invalid event id: %s", eventId));
+			}
+		} catch (CommandParser.InvalidCommandException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+
+		long requestId = nextRequestId.getAndIncrement();
+		Connection connection = connections[Math.floorMod(nextConnection.getAndIncrement(), connections.length)];
+		connection.send(requestId, BinaryProtocol.encodeRequest(requestId, eventId, commandType, Arrays.asList(arguments)), result);
+		return result;
+	}
+
+	// The number of requests that were sent, but haven't been answered yet
+	public int getNumberOfOutstandingRequests() {
+		int numberOfOutstandingRequests = 0;
+		for (Connection connection : connections) {
+			numberOfOutstandingRequests += connection.outstandingRequests.size();
+		}
+		return numberOfOutstandingRequests;
+	}
+
+	// Closes every connection. Requests that are still outstanding complete with an IOException.
+	@Override
+	public void close() {
+		for (Connection connection : connections) {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+	}
+
+	// Turns a response into the outcome of its future
+	private static void complete(CompletableFuture<Integer> result, BinaryProtocol.Response response) {
+		switch (response.getStatus()) {
+			case BinaryProtocol.STATUS_OK:
+				result.complete(response.getValue());
+				break;
+			case BinaryProtocol.STATUS_BUSY:
+				result.completeExceptionally(new BusyException("Error: the server is busy, try again later"));
+				break;
+			case BinaryProtocol.STATUS_INVALID_COMMAND:
+				result.completeExceptionally(new CommandParser.InvalidCommandException(response.getMessage()));
+				break;
+			default:
+				// The rest of the statuses are SeatInventory status codes
+				result.complete(-response.getStatus());
+				break;
+		}
+	}
+
+	private static class Connection implements Runnable {
+		private TCPMessageHandler tcpMessageHandler;
+		private Map<Long, CompletableFuture<Integer>> outstandingRequests;
+		private Thread reader;
+		private volatile boolean isClosed;
+
+		public Connection(TCPMessageHandler tcpMessageHandler, String name) throws IOException {
+			this.tcpMessageHandler = tcpMessageHandler;
+			this.outstandingRequests = new ConcurrentHashMap<Long, CompletableFuture<Integer>>();
+
+			tcpMessageHandler.enableBinaryProtocol();
+
+			this.reader = new Thread(this, name);
+			this.reader.setDaemon(true);
+			this.reader.start();
+		}
+
+		public void send(long requestId, ByteBuffer frame, CompletableFuture<Integer> result) {
+			// Register the request first, the response may arrive before sendBinaryFrame() returns
+			outstandingRequests.put(requestId, result);
+			try {
+				if (isClosed) {
+					throw new IOException("Error: the client is closed");
+				}
+				tcpMessageHandler.sendBinaryFrame(frame);
+			} catch (IOException e) {
+				outstandingRequests.remove(requestId);
+				result.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			IOException failure = null;
+			try {
+				while (true) {
+					BinaryProtocol.Response response = BinaryProtocol.decodeResponse(tcpMessageHandler.receiveBinaryFrame());
+					CompletableFuture<Integer> result = outstandingRequests.remove(response.getRequestId());
+					if (result != null) {
+						complete(result, response);
+					}
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			// Nothing more is coming over this connection. Don't leave anyone waiting for it.
+			isClosed = true;
+			IOException connectionLost = new IOException("Error: the connection to the server was lost", failure);
+			for (Long requestId : outstandingRequests.keySet()) {
+				CompletableFuture<Integer> result = outstandingRequests.remove(requestId);
+				if (result != null) {
+					result.completeExceptionally(connectionLost);
+				}
+			}
+		}
+
+		public void close() {
+			isClosed = true;
+			tcpMessageHandler.close();
+		}
+	}
+}
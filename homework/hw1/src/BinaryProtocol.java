@@ -0,0 +1,430 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// A compact binary alternative to the newline terminated text protocol.
+//
+// A client opts in by sending MAGIC as the very first byte of a TCP connection. Text commands always start with a
+// letter or '#', so the server can tell the two protocols apart, and connections that never send MAGIC keep
+// speaking text.
+//
+// After that, every request and response is a frame: a varint length, followed by that many bytes of payload.
+//      request payload:  varint requestId, opcode byte, arguments
+//      response payload: varint requestId, status byte, varint value [, string message]
+// The opcode is CommandType.getOpcode(). The arguments follow the command's argument formats in order:
+// a NUMBER argument is a varint, and a WORD argument is a string (a varint byte count followed by UTF-8 bytes).
+// A request aimed at a specific event sets EVENT_FLAG in the opcode byte, and has the event id as a string
+// right after it, before the arguments.
+// The value of a STATUS_OK response is the seat number (or 0 when there is none). Only STATUS_INVALID_COMMAND
+// responses carry a message.
+//
+// Varints are unsigned LEB128: seven bits per byte, least significant group first, high bit set on all but the last byte.
+// A frame is encoded straight into a buffer of exactly its size, so encoding a message allocates a single buffer
+// (plus the UTF-8 bytes of its strings). A payload can't be longer than MAX_FRAME_LENGTH, a longer error message is cut short.
+public class BinaryProtocol {
+	public static final int MAGIC = 0xB5;
+
+	public static final int MAX_FRAME_LENGTH = GlobalConstants.MAX_BUFFER_LENGTH;
+
+	// set in the opcode byte of a request that names an event
+	public static final int EVENT_FLAG = 0x80;
+
+	// A status is the negation of the matching SeatInventory status code, so both can be converted without a table
+	public static final int STATUS_OK = 0;
+	public static final int STATUS_SOLD_OUT = -SeatInventory.SOLD_OUT;
+	public static final int STATUS_ALREADY_BOOKED = -SeatInventory.ALREADY_BOOKED;
+	public static final int STATUS_SEAT_UNAVAILABLE = -SeatInventory.SEAT_UNAVAILABLE;
+	public static final int STATUS_INVALID_SEAT = -SeatInventory.INVALID_SEAT;
+	public static final int STATUS_NOT_FOUND = -SeatInventory.NOT_FOUND;
+	public static final int STATUS_INVALID_COMMAND = 6;
+	// the server is overloaded and didn't execute the request, see AdmissionController
+	public static final int STATUS_BUSY = 7;
+
+	// A decoded request frame
+	public static class Request {
+		private long requestId;
+		private String eventId;
+		private CommandParser.Command.CommandType commandType;
+		private CharSequence name;
+		private int number;
+		private int secondNumber;
+
+		public Request(long requestId, String eventId, CommandParser.Command.CommandType commandType, CharSequence name, int number, int secondNumber) {
+			this.requestId = requestId;
+			this.eventId = eventId;
+			this.commandType = commandType;
+			this.name = name;
+			this.number = number;
+			this.secondNumber = secondNumber;
+		}
+
+		public long getRequestId() {
+			return requestId;
+		}
+
+		// the event the request is aimed at, or null if it didn't name one
+		public String getEventId() {
+			return eventId;
+		}
+
+		public CommandParser.Command.CommandType getCommandType() {
+			return commandType;
+		}
+
+		// the string argument of the command, or null if it doesn't take one.
+		// It is a CharSlice of the payload the request was decoded from, so it's only good while the payload is.
+		public CharSequence getName() {
+			return name;
+		}
+
+		// the numeric argument of the command (e.g. the seat number for BOOKSEAT), or 0 if it doesn't take one
+		public int getNumber() {
+			return number;
+		}
+
+		// the second numeric argument of the command (the last seat for BOOK_RANGE), or 0 if it doesn't take one
+		public int getSecondNumber() {
+			return secondNumber;
+		}
+	}
+
+	// A decoded response frame
+	public static class Response {
+		private long requestId;
+		private int status;
+		private int value;
+		private String message;
+
+		public Response(long requestId, int status, int value, String message) {
+			this.requestId = requestId;
+			this.status = status;
+			this.value = value;
+			this.message = message;
+		}
+
+		public long getRequestId() {
+			return requestId;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public int getValue() {
+			return value;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			switch (status) {
+				case STATUS_OK:
+					return String.format("OK %d", value);
+				case STATUS_SOLD_OUT:
+					return "SOLD_OUT";
+				case STATUS_ALREADY_BOOKED:
+					return "ALREADY_BOOKED";
+				case STATUS_SEAT_UNAVAILABLE:
+					return "SEAT_UNAVAILABLE";
+				case STATUS_INVALID_SEAT:
+					return "INVALID_SEAT";
+				case STATUS_NOT_FOUND:
+					return "NOT_FOUND";
+				case STATUS_INVALID_COMMAND:
+					return String.format("INVALID_COMMAND %s", message);
+				case STATUS_BUSY:
+					return "BUSY";
+				default:
+					return String.format("UNKNOWN_STATUS(%d)", status);
+			}
+		}
+	}
+
+	// Converts the result of a SeatInventory operation into a status byte
+	public static int toStatus(int result) {
+		return result >= 0 ? STATUS_OK : -result;
+	}
+
+	public static ByteBuffer encodeRequest(long requestId, CommandParser.Command.CommandType commandType, List<String> arguments) {
+		return encodeRequest(requestId, null, commandType, arguments);
+	}
+
+	// eventId may be null, for a request that doesn't name an event
+	public static ByteBuffer encodeRequest(long requestId, String eventId, CommandParser.Command.CommandType commandType, List<String> arguments) {
+		// Size everything up first: the numbers, and the strings as UTF-8
+		byte[] eventIdBytes = eventId != null ? eventId.getBytes(StandardCharsets.UTF_8) : null;
+		long[] numbers = new long[arguments.size()];
+		byte[][] strings = new byte[arguments.size()][];
+
+		int length = varLongLength(requestId) + 1 + (eventIdBytes != null ? stringLength(eventIdBytes) : 0);
+		for (int i = 0; i < arguments.size(); i++) {
+			if (commandType.getArgumentFormat(i) == CommandParser.ArgumentFormat.NUMBER) {
+				numbers[i] = Integer.parseInt(arguments.get(i));
+				length += varLongLength(numbers[i]);
+			} else {
+				strings[i] = arguments.get(i).getBytes(StandardCharsets.UTF_8);
+				length += stringLength(strings[i]);
+			}
+		}
+		if (length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException(String.format("Error: request too long: %d bytes", length));
+		}
+
+		ByteBuffer frame = allocateFrame(length);
+		writeVarLong(frame, requestId);
+		if (eventIdBytes == null) {
+			frame.put((byte) commandType.getOpcode());
+		} else {
+			frame.put((byte) (commandType.getOpcode() | EVENT_FLAG));
+			writeString(frame, eventIdBytes);
+		}
+
+		for (int i = 0; i < arguments.size(); i++) {
+			if (strings[i] == null) {
+				writeVarLong(frame, numbers[i]);
+			} else {
+				writeString(frame, strings[i]);
+			}
+		}
+
+		frame.flip();
+		return frame;
+	}
+
+	public static ByteBuffer encodeResponse(long requestId, int status, int value, String message) {
+		value = Math.max(value, 0);
+		int length = varLongLength(requestId) + 1 + varLongLength(value);
+
+		byte[] messageBytes = null;
+		if (status == STATUS_INVALID_COMMAND) {
+			// The message only has the rest of the frame. MAX_FRAME_LENGTH is far below 2^14, so its length takes at most 2 bytes.
+			messageBytes = truncate(message.getBytes(StandardCharsets.UTF_8), MAX_FRAME_LENGTH - length - 2);
+			length += stringLength(messageBytes);
+		}
+
+		ByteBuffer frame = allocateFrame(length);
+		writeVarLong(frame, requestId);
+		frame.put((byte) status);
+		writeVarLong(frame, value);
+		if (messageBytes != null) {
+			writeString(frame, messageBytes);
+		}
+
+		frame.flip();
+		return frame;
+	}
+
+	// Decodes the payload of a request frame (without its length prefix)
+	public static Request decodeRequest(ByteBuffer payload) throws CommandParser.InvalidCommandException {
+		try {
+			long requestId = readVarLong(payload);
+			int opcode = payload.get() & 0xFF;
+			CommandParser.Command.CommandType commandType = CommandParser.Command.CommandType.fromOpcode(opcode & ~EVENT_FLAG);
+
+			String eventId = null;
+			if ((opcode & EVENT_FLAG) != 0) {
+				eventId = readString(payload);
+				if (!CommandParser.ArgumentFormat.WORD.matches(eventId)) {
+					throw new CommandParser.InvalidCommandException(String.format("Error: invalid event id: %s", eventId));
+				}
+			}
+
+			CharSlice name = null;
+			int[] numbers = new int[2];
+			int numberCount = 0;
+			for (int i = 0; i < commandType.getArgumentCount(); i++) {
+				if (commandType.getArgumentFormat(i) == CommandParser.ArgumentFormat.NUMBER) {
+					long value = readVarLong(payload);
+					if (value > Integer.MAX_VALUE) {
+						throw new CommandParser.InvalidCommandException(String.format("Error: number out of range: %d", value));
+					}
+					numbers[numberCount++] = (int) value;
+				} else {
+					// A name is a WORD, which is all ASCII, so it can be read straight from the payload's bytes.
+					// A name that isn't ASCII has bytes that aren't word characters, and fails to validate.
+					name = readSlice(payload);
+					commandType.validateArgument(i, name, 0, name.length());
+				}
+			}
+
+			if (payload.hasRemaining()) {
+				throw new CommandParser.InvalidCommandException(String.format("Error: %s has trailing bytes.", commandType.name()));
+			}
+
+			return new Request(requestId, eventId, commandType, name, numbers[0], numbers[1]);
+
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new CommandParser.InvalidCommandException("Error: truncated or malformed binary request.");
+		}
+	}
+
+	// Returns the request id at the start of a request payload, or 0 if even that can't be decoded.
+	// This lets the server answer a malformed request with an error that the client can still match up.
+	public static long peekRequestId(ByteBuffer payload) {
+		try {
+			return readVarLong(payload.duplicate());
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			return 0;
+		}
+	}
+
+	// Decodes the payload of a response frame (without its length prefix)
+	public static Response decodeResponse(ByteBuffer payload) throws IOException {
+		try {
+			long requestId = readVarLong(payload);
+			int status = payload.get() & 0xFF;
+			long value = readVarLong(payload);
+			if (value < 0 || value > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException();
+			}
+			String message = status == STATUS_INVALID_COMMAND ? readString(payload) : null;
+			return new Response(requestId, status, (int) value, message);
+
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Error: truncated or malformed binary response.");
+		}
+	}
+
+	// Reads one whole frame from a blocking stream, and returns its payload
+	public static ByteBuffer readFrame(DataInputStream input) throws IOException {
+		long length = readVarLong(input);
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException(String.format("Error: invalid frame length: %d bytes", length));
+		}
+
+		byte[] payload = new byte[(int) length];
+		input.readFully(payload);
+		return ByteBuffer.wrap(payload);
+	}
+
+	// Returns the payload of the first complete frame in buffer (which is ready for reading) and moves past it.
+	// If the frame hasn't fully arrived yet, buffer is left untouched and null is returned.
+	public static ByteBuffer readFrame(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		long length;
+		try {
+			length = readVarLong(buffer);
+		} catch (BufferUnderflowException e) {
+			buffer.position(start);
+			return null;
+		}
+
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException(String.format("Error: invalid frame length: %d bytes", length));
+		} else if (buffer.remaining() < length) {
+			buffer.position(start);
+			return null;
+		}
+
+		ByteBuffer payload = buffer.slice();
+		payload.limit((int) length);
+		buffer.position(buffer.position() + (int) length);
+		return payload;
+	}
+
+	// Allocates a frame for a payload of length bytes, with the length prefix already written
+	private static ByteBuffer allocateFrame(int length) {
+		ByteBuffer frame = ByteBuffer.allocate(varLongLength(length) + length);
+		writeVarLong(frame, length);
+		return frame;
+	}
+
+	// Cuts bytes down to at most maxLength bytes, without splitting a UTF-8 character
+	private static byte[] truncate(byte[] bytes, int maxLength) {
+		if (bytes.length <= maxLength) {
+			return bytes;
+		}
+
+		int length = maxLength;
+		while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		return Arrays.copyOf(bytes, length);
+	}
+
+	private static int stringLength(byte[] bytes) {
+		return varLongLength(bytes.length) + bytes.length;
+	}
+
+	private static void writeString(ByteBuffer buffer, byte[] bytes) {
+		writeVarLong(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	// Reads a string as a CharSlice of buffer, one character per byte, without copying it
+	private static CharSlice readSlice(ByteBuffer buffer) {
+		long length = readVarLong(buffer);
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		int start = buffer.position();
+		buffer.position(start + (int) length);
+		return new CharSlice().reset(buffer, start, start + (int) length);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		long length = readVarLong(buffer);
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		byte[] bytes = new byte[(int) length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// the number of bytes writeVarLong() takes for value
+	public static int varLongLength(long value) {
+		int length = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	public static void writeVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Error: varint is too long");
+	}
+
+	private static long readVarLong(InputStream input) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = input.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Error: varint is too long");
+	}
+}
@@ -0,0 +1,205 @@
+// A SeatInventory that answers every command in constant time, no matter how full the venue is
+// (apart from keeping freeRuns up to date, which takes O(log N), see below).
+//
+// Free seats are tracked by a two-level bitset:
+//      freeWords[w] has bit b set if seat (64 * w + b + 1) is free
+//      summaryWords[s] has bit t set if freeWords[64 * s + t] has at least one free seat
+// Finding the lowest free seat therefore only needs to look at one summary word per 4096 seats,
+// starting from firstCandidateSummary, below which every seat is known to be taken.
+//
+// nameToSeat is the index from name to seat (see NameSeatMap). It keeps the first seat and the number of seats of
+// every reservation, without a String or an Integer per entry. The seats themselves only need to know whether
+// they are free, so there is no index from seat to name.
+//
+// Blocks of adjacent seats are found by freeRuns (see FreeRunIndex), which keeps its own copy of the free seats
+// and finds the lowest block that fits in O(log N).
+//
+// This class is not thread safe. The caller is expected to serialize access to it.
+public class BitSetSeatInventory implements SeatInventory {
+	private int maxNumberOfSeats;
+	private int numberOfReservedSeats;
+
+	private long[] freeWords;
+	private long[] summaryWords;
+	private int firstCandidateSummary;
+
+	private FreeRunIndex freeRuns;
+
+	private NameSeatMap nameToSeat;
+
+	public BitSetSeatInventory(int maxNumberOfSeats) {
+		assert (maxNumberOfSeats >= 0);
+
+		this.maxNumberOfSeats = maxNumberOfSeats;
+		this.numberOfReservedSeats = 0;
+
+		this.freeWords = new long[(maxNumberOfSeats + 63) / 64];
+		this.summaryWords = new long[(freeWords.length + 63) / 64];
+		this.firstCandidateSummary = 0;
+
+		// Every seat starts out free
+		for (int i = 0; i < maxNumberOfSeats; i++) {
+			markFree(i);
+		}
+
+		this.freeRuns = new FreeRunIndex(maxNumberOfSeats);
+
+		this.nameToSeat = new NameSeatMap();
+	}
+
+	@Override
+	public int reserve(CharSequence name) {
+		if (numberOfReservedSeats == maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+
+		} else {
+			int seatNum = findLowestFreeSeat();
+			assign(name, seatNum, 1);
+			return seatNum;
+		}
+	}
+
+	@Override
+	public int bookSeat(CharSequence name, int seatNum) {
+		if (seatNum < 1 || seatNum > maxNumberOfSeats) {
+			return INVALID_SEAT;
+
+		} else if (numberOfReservedSeats == maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+
+		} else if (!isFree(seatNum - 1)) {
+			return SEAT_UNAVAILABLE;
+
+		} else {
+			assign(name, seatNum, 1);
+			return seatNum;
+		}
+	}
+
+	@Override
+	public int reserveBlock(CharSequence name, int numberOfSeats) {
+		if (numberOfSeats < 1 || numberOfSeats > maxNumberOfSeats) {
+			return INVALID_SEAT;
+
+		} else if (numberOfReservedSeats + numberOfSeats > maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+		}
+
+		int index = freeRuns.findRun(numberOfSeats);
+		if (index < 0) {
+			return SEAT_UNAVAILABLE;
+		}
+
+		assign(name, index + 1, numberOfSeats);
+		return index + 1;
+	}
+
+	@Override
+	public int bookRange(CharSequence name, int firstSeatNum, int lastSeatNum) {
+		int numberOfSeats = lastSeatNum - firstSeatNum + 1;
+		if (firstSeatNum < 1 || lastSeatNum > maxNumberOfSeats || numberOfSeats < 1) {
+			return INVALID_SEAT;
+
+		} else if (numberOfReservedSeats + numberOfSeats > maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+
+		} else if (!freeRuns.isRangeFree(firstSeatNum - 1, numberOfSeats)) {
+			return SEAT_UNAVAILABLE;
+
+		} else {
+			assign(name, firstSeatNum, numberOfSeats);
+			return firstSeatNum;
+		}
+	}
+
+	@Override
+	public int search(CharSequence name) {
+		return nameToSeat.get(name);
+	}
+
+	@Override
+	public int delete(CharSequence name) {
+		int slot = nameToSeat.indexOf(name);
+		if (slot < 0) {
+			return NOT_FOUND;
+		}
+
+		int seatNum = nameToSeat.getSeatNum(slot);
+		int numberOfSeats = nameToSeat.getNumberOfSeats(slot);
+		nameToSeat.removeAt(slot);
+		for (int i = seatNum; i < seatNum + numberOfSeats; i++) {
+			markFree(i - 1);
+		}
+		freeRuns.free(seatNum - 1, numberOfSeats);
+		numberOfReservedSeats -= numberOfSeats;
+		return seatNum;
+	}
+
+	@Override
+	public int getMaxNumberOfSeats() {
+		return maxNumberOfSeats;
+	}
+
+	@Override
+	public int getNumberOfReservedSeats() {
+		return numberOfReservedSeats;
+	}
+
+	private void assign(CharSequence name, int seatNum, int numberOfSeats) {
+		nameToSeat.put(name, seatNum, numberOfSeats);
+		for (int i = seatNum; i < seatNum + numberOfSeats; i++) {
+			markTaken(i - 1);
+		}
+		freeRuns.take(seatNum - 1, numberOfSeats);
+		numberOfReservedSeats += numberOfSeats;
+	}
+
+	// Returns the lowest free seat number. Only call this when the venue isn't sold out.
+	private int findLowestFreeSeat() {
+		for (int s = firstCandidateSummary; s < summaryWords.length; s++) {
+			if (summaryWords[s] != 0) {
+				firstCandidateSummary = s;
+
+				int w = s * 64 + Long.numberOfTrailingZeros(summaryWords[s]);
+				int b = Long.numberOfTrailingZeros(freeWords[w]);
+				return w * 64 + b + 1;
+			}
+		}
+
+		throw new IllegalStateException("Error: no free seat found, but the venue isn't sold out!");
+	}
+
+	private boolean isFree(int index) {
+		return (freeWords[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private void markFree(int index) {
+		int w = index >>> 6;
+		freeWords[w] |= 1L << index;
+		summaryWords[w >>> 6] |= 1L << w;
+
+		if ((w >>> 6) < firstCandidateSummary) {
+			firstCandidateSummary = w >>> 6;
+		}
+	}
+
+	private void markTaken(int index) {
+		int w = index >>> 6;
+		freeWords[w] &= ~(1L << index);
+		if (freeWords[w] == 0) {
+			summaryWords[w >>> 6] &= ~(1L << w);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A thread safe pool of equally sized direct ByteBuffers.
+// Direct buffers are expensive to allocate, but they save a copy on every socket read and write,
+// so we hand them out and take them back instead of allocating one per message.
+// At most maxPooledBuffers idle buffers are kept around. Any buffer released beyond that is left to the GC.
+public class ByteBufferPool {
+	private int bufferLength;
+	private int maxPooledBuffers;
+
+	private Queue<ByteBuffer> pooledBuffers;
+	private AtomicInteger numberOfPooledBuffers;
+
+	public ByteBufferPool(int bufferLength, int maxPooledBuffers) {
+		this.bufferLength = bufferLength;
+		this.maxPooledBuffers = maxPooledBuffers;
+
+		this.pooledBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.numberOfPooledBuffers = new AtomicInteger(0);
+	}
+
+	// Returns a cleared buffer of bufferLength bytes
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = pooledBuffers.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferLength);
+		}
+
+		numberOfPooledBuffers.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (numberOfPooledBuffers.incrementAndGet() <= maxPooledBuffers) {
+			pooledBuffers.add(buffer);
+		} else {
+			numberOfPooledBuffers.decrementAndGet();
+		}
+	}
+
+	public int getBufferLength() {
+		return bufferLength;
+	}
+}
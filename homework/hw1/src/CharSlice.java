@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+
+// A CharSequence that is a window onto characters kept somewhere else: a range of another CharSequence (e.g. the
+// command being parsed), or a range of ASCII bytes in a ByteBuffer (e.g. the payload of a binary request).
+// Nothing is copied, so a name can go from the request to the seat inventory without a String being built for it.
+// toString() makes the copy, for whoever has to keep the name.
+//
+// A slice is only good while the characters under it stay the same, so it must never be kept past the command it
+// came from. For the same reason it doesn't override equals() and hashCode(), use contentEquals() and hash() instead.
+// A slice can be reset() onto other characters, so one slice per thread is enough.
+// Example usage:
+//      CharSlice name = new CharSlice().reset("RESERVE alice", 8, 13);
+//      seatInventory.reserve(name);
+public class CharSlice implements CharSequence {
+	private CharSequence chars;
+	private ByteBuffer bytes;
+	private int start;
+	private int length;
+
+	// Points the slice at the characters of chars from start to end
+	public CharSlice reset(CharSequence chars, int start, int end) {
+		assert (start >= 0 && start <= end && end <= chars.length());
+
+		this.chars = chars;
+		this.bytes = null;
+		this.start = start;
+		this.length = end - start;
+		return this;
+	}
+
+	// Points the slice at the bytes of bytes from start to end (absolute indexes), one character per byte.
+	// The bytes should be ASCII. Anything else shows up as the matching ISO-8859-1 character.
+	public CharSlice reset(ByteBuffer bytes, int start, int end) {
+		assert (start >= 0 && start <= end && end <= bytes.limit());
+
+		this.chars = null;
+		this.bytes = bytes;
+		this.start = start;
+		this.length = end - start;
+		return this;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException(String.format("Error: index %d is out of a slice of %d characters", index, length));
+		}
+		return chars != null ? chars.charAt(start + index) : (char) (bytes.get(start + index) & 0xFF);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || start > end || end > length) {
+			throw new IndexOutOfBoundsException(String.format("Error: %d-%d is out of a slice of %d characters", start, end, length));
+		}
+		CharSlice slice = new CharSlice();
+		slice.chars = chars;
+		slice.bytes = bytes;
+		slice.start = this.start + start;
+		slice.length = end - start;
+		return slice;
+	}
+
+	@Override
+	public String toString() {
+		if (chars != null) {
+			return chars.subSequence(start, start + length).toString();
+		}
+
+		char[] copy = new char[length];
+		for (int i = 0; i < length; i++) {
+			copy[i] = (char) (bytes.get(start + i) & 0xFF);
+		}
+		return new String(copy);
+	}
+
+	// Whether a and b hold the same characters, whatever kind of CharSequence each one is
+	public static boolean contentEquals(CharSequence a, CharSequence b) {
+		if (a.length() != b.length()) {
+			return false;
+		}
+		for (int i = 0; i < a.length(); i++) {
+			if (a.charAt(i) != b.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// The same hash String.hashCode() gives the same characters, so a slice can look up a key that is a String
+	public static int hash(CharSequence s) {
+		int hash = 0;
+		for (int i = 0; i < s.length(); i++) {
+			hash = 31 * hash + s.charAt(i);
+		}
+		return hash;
+	}
+}
@@ -1,6 +1,9 @@
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 public class Client {  
     private String hostAddress;
@@ -11,6 +14,12 @@ public class Client {
     private TCPMessageHandler tcpMessageHandler;
     private ClientUDPMessageHandler udpMessageHandler;
     
+    // TCP commands are sent in the binary protocol instead of as text, see BinaryProtocol
+    private boolean useBinaryProtocol;
+    
+    // Set by the pipelined response reader when the connection breaks, see runPipelined()
+    private volatile Exception responseReaderFailure;
+    
     public Client(String hostAddress, int tcpPort, int udpPort) throws UnknownHostException, IOException {
         this.hostAddress = hostAddress;
         this.tcpPort = tcpPort;
@@ -31,13 +40,125 @@ public class Client {
     	}
     }
       
+    // Switches the TCP connection over to the binary protocol. Must be called before any command is sent.
+    public void enableBinaryProtocol() throws IOException {
+    	tcpMessageHandler.enableBinaryProtocol();
+    	useBinaryProtocol = true;
+    }
+    
+    // Sends a TCP command, tagged with requestId unless it is 0
+    private void sendTCPCommand(long requestId, CommandParser.Command command, String commandString) throws IOException {
+    	if (useBinaryProtocol) {
+    		tcpMessageHandler.sendBinaryFrame(BinaryProtocol.encodeRequest(requestId, command.getEventId(), command.getCommandType(), command.getArguments()));
+    	} else if (requestId != 0) {
+    		tcpMessageHandler.sendTaggedMessage(requestId, commandString);
+    	} else {
+    		tcpMessageHandler.sendMessage(commandString);
+    	}
+    }
+    
+    // Receives the response to a tagged TCP command
+    private TaggedMessage receiveTCPResponse() throws IOException {
+    	if (useBinaryProtocol) {
+    		BinaryProtocol.Response response = BinaryProtocol.decodeResponse(tcpMessageHandler.receiveBinaryFrame());
+    		return new TaggedMessage(response.getRequestId(), response.toString());
+    	} else {
+    		return tcpMessageHandler.receiveTaggedMessage();
+    	}
+    }
+    
+    // Sends every TCP command without waiting for the response to the previous one, so a long list of commands
+    // costs one round trip instead of one per command. Each command is tagged with a request id (see TaggedMessage),
+    // and a separate thread prints the responses as they come back. UDP commands are still sent one at a time.
+    private void runPipelined(Scanner scanner) throws IOException, InterruptedException {
+    	final Map<Long, String> outstandingCommands = new ConcurrentHashMap<Long, String>();
+    	final Semaphore receivedResponses = new Semaphore(0);
+    	
+    	Thread responseReader = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						TaggedMessage response = receiveTCPResponse();
+						String commandString = outstandingCommands.remove(response.getRequestId());
+						
+						System.out.println(String.format("Server Response to #%d (%s): ", response.getRequestId(), commandString));
+						System.out.println(response.getMessage());
+						receivedResponses.release();
+					}
+				} catch (Exception e) {
+					// The connection is closed, so no more responses are coming. Don't keep the main thread waiting for them.
+					responseReaderFailure = e;
+					receivedResponses.release(Integer.MAX_VALUE / 2);
+				}
+			}
+		});
+    	responseReader.setDaemon(true);
+    	responseReader.start();
+    	
+    	long nextRequestId = 1;
+    	int sentCommands = 0;
+        while (scanner.hasNextLine()) {
+            try {
+                String commandString = scanner.nextLine().trim();
+                CommandParser.Command command = CommandParser.parseCommand(commandString);
+                
+                if (command.getProtocol() == Protocol.TCP) {
+                	// Nobody would read the response
+                	if (responseReaderFailure != null) {
+                		break;
+                	}
+                	long requestId = nextRequestId++;
+                	outstandingCommands.put(requestId, commandString);
+                	sendTCPCommand(requestId, command, commandString);
+                	sentCommands++;
+                	
+                } else {
+                	System.out.println("Server Response: ");
+                	System.out.println(udpMessageHandler.sendRequest(commandString));
+                }
+                
+                // Nothing after a shutdown command would be answered anyway
+                if (command.isShutdownCommand()) {
+                	break;
+                }
+                
+            } catch (CommandParser.InvalidCommandException e) {
+				System.out.println(e.getMessage());
+			}
+        }
+        
+        // Wait for the responses to every command we sent
+        receivedResponses.acquire(sentCommands);
+        if (responseReaderFailure != null) {
+        	System.out.println(String.format("Error: the connection was closed before the server answered %d command(s)", outstandingCommands.size()));
+        }
+        System.out.println("Client is Exiting");
+    }
+      
     public static void main (String[] args) {
     
-        if (args.length != 3) {
+        boolean pipeline = false;
+        boolean binary = false;
+        for (int i = 3; i < args.length; i++) {
+        	if ("--pipeline".equals(args[i])) {
+        		pipeline = true;
+        	} else if ("--binary".equals(args[i])) {
+        		binary = true;
+        	} else {
+        		args = new String[0];
+        	}
+        }
+        
+        if (args.length < 3) {
             System.out.println("ERROR: Provide 3 arguments");
             System.out.println("\t(1) <hostAddress>: the address of the server");
             System.out.println("\t(2) <tcpPort>: the port number for TCP connection");
             System.out.println("\t(3) <udpPort>: the port number for UDP connection");
+            System.out.println("Optionally followed by:");
+            System.out.println("\t--pipeline: send TCP commands without waiting for each response");
+            System.out.println("\t--binary: send TCP commands in the compact binary protocol");
             System.exit(1);
         }
         
@@ -49,6 +170,9 @@ public class Client {
         Client client = null;
         try {
         	client = new Client(hostAddress, tcpPort, udpPort);
+        	if (binary) {
+        		client.enableBinaryProtocol();
+        	}
         } catch (Exception e) {
             System.out.println("Error: Could not connect to server.");
             e.printStackTrace();
@@ -57,18 +181,39 @@ public class Client {
         
         // Acquire user input
         Scanner scanner = new Scanner(System.in);
+        if (pipeline) {
+        	try {
+        		client.runPipelined(scanner);
+        	} catch (Exception e) {
+        		e.printStackTrace();
+        	}
+        	scanner.close();
+        	return;
+        }
+        
         while (scanner.hasNextLine()) {
             try {
                 // Parse and validate the user's command string
                 String commandString = scanner.nextLine().trim();
                 CommandParser.Command command = CommandParser.parseCommand(commandString);
                 
-                // Acquire the appropriate message handler from the client, using the protocol specified in the command
-                MessageHandler messageHandler = client.getMessageHandler(command.getProtocol());
-                
-                // Send and receive a message
-                messageHandler.sendMessage(commandString);
-                String response = messageHandler.receiveMessage();
+                String response = null;
+                if (client.useBinaryProtocol && command.getProtocol() == Protocol.TCP) {
+                	client.sendTCPCommand(0, command, commandString);
+                	response = client.receiveTCPResponse().getMessage();
+                	
+                } else if (command.getProtocol() == Protocol.UDP) {
+                	// Retransmitted until it's answered, see ClientUDPMessageHandler
+                	response = client.udpMessageHandler.sendRequest(commandString);
+                	
+                } else {
+	                // Acquire the appropriate message handler from the client, using the protocol specified in the command
+	                MessageHandler messageHandler = client.getMessageHandler(command.getProtocol());
+	                
+	                // Send and receive a message
+	                messageHandler.sendMessage(commandString);
+	                response = messageHandler.receiveMessage();
+                }
                 
                 System.out.println("Server Response: ");
                 System.out.println(response);
@@ -1,17 +1,37 @@
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.io.IOException;
 import java.net.DatagramPacket;
 
 // This UDP message handler is intended to be used by the client
+//
+// A datagram can get lost on its way to the server or back, so sendRequest() doesn't just wait for an answer.
+// It tags the request with a request id (see TaggedMessage), and if no answer with that id arrives in time, it sends
+// the very same request again, waiting twice as long each time, up to maxAttempts attempts in all. The server
+// remembers the responses it sent recently (see ServerUDPMessageHandler), so a request that did arrive, and only
+// lost its response, is answered again from there instead of being executed twice.
 // See UDPMessageHandler and MessageHandler for more details
 public class ClientUDPMessageHandler extends UDPMessageHandler {
+	private static final int DEFAULT_INITIAL_TIMEOUT_MILLIS = 100;
+	private static final int DEFAULT_MAX_TIMEOUT_MILLIS = 2000;
+	private static final int DEFAULT_MAX_ATTEMPTS = 6;
+
 	private String hostAddress;
 	private int udpPort;
 	private byte[] receiveData = new byte[GlobalConstants.MAX_BUFFER_LENGTH];
 	private DatagramPacket receivePacket;
 
+	private int initialTimeoutMillis = DEFAULT_INITIAL_TIMEOUT_MILLIS;
+	private int maxTimeoutMillis = DEFAULT_MAX_TIMEOUT_MILLIS;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	// The server tells requests apart by the client's address and the request id. Start from a random id, so a new
+	// client that happens to get the port of an old one doesn't get the old one's responses.
+	private long nextRequestId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE / 2);
+
 	public ClientUDPMessageHandler(String hostAddress, int udpPort) throws SocketException {
 		super(new DatagramSocket());
 
@@ -21,6 +41,73 @@ public class ClientUDPMessageHandler extends UDPMessageHandler {
 		receivePacket = new DatagramPacket(receiveData, receiveData.length);
 	}
 
+	// How long sendRequest() waits for the first answer, the most it waits for any one answer, and how many times
+	// it sends a request before giving up
+	public synchronized void setRetransmission(int initialTimeoutMillis, int maxTimeoutMillis, int maxAttempts) {
+		assert (initialTimeoutMillis > 0 && maxTimeoutMillis >= initialTimeoutMillis && maxAttempts > 0);
+
+		this.initialTimeoutMillis = initialTimeoutMillis;
+		this.maxTimeoutMillis = maxTimeoutMillis;
+		this.maxAttempts = maxAttempts;
+	}
+
+	// Sends a request and returns the server's response to it, retransmitting the request as long as there is none.
+	// Throws a SocketTimeoutException if every attempt went unanswered.
+	public synchronized String sendRequest(String message) throws IOException {
+		long requestId = nextRequestId++;
+		String taggedMessage = new TaggedMessage(requestId, message).toString();
+
+		int previousTimeout = super.datagramSocket.getSoTimeout();
+		try {
+			int timeoutMillis = initialTimeoutMillis;
+			for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+				sendMessage(taggedMessage);
+
+				TaggedMessage response = receiveResponse(requestId, timeoutMillis);
+				if (response != null) {
+					return response.getMessage();
+				}
+				timeoutMillis = Math.min(2 * timeoutMillis, maxTimeoutMillis);
+			}
+		} finally {
+			super.datagramSocket.setSoTimeout(previousTimeout);
+		}
+
+		throw new SocketTimeoutException(String.format("Error: no response from the server after %d attempts", maxAttempts));
+	}
+
+	// Waits up to timeoutMillis for the response to requestId, or returns null.
+	// Late answers to earlier requests (e.g. to a retransmission that wasn't needed after all) are thrown away.
+	private TaggedMessage receiveResponse(long requestId, int timeoutMillis) throws IOException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while (true) {
+			int remainingMillis = (int) ((deadline - System.nanoTime()) / 1000000L);
+			if (remainingMillis <= 0) {
+				return null;
+			}
+			super.datagramSocket.setSoTimeout(remainingMillis);
+
+			String message;
+			try {
+				message = receiveMessage();
+			} catch (SocketTimeoutException e) {
+				return null;
+			}
+
+			if (!TaggedMessage.isTagged(message)) {
+				continue;
+			}
+			try {
+				TaggedMessage response = TaggedMessage.parse(message);
+				if (response.getRequestId() == requestId) {
+					return response;
+				}
+			} catch (CommandParser.InvalidCommandException e) {
+				// Not a response to anything we sent
+			}
+		}
+	}
+
 	public synchronized void sendMessage(String message) throws IOException {
 		byte[] sendData = message.getBytes();
 		if (sendData.length > GlobalConstants.MAX_BUFFER_LENGTH) {
@@ -0,0 +1,10 @@
+import java.nio.ByteBuffer;
+
+// Executes a single command and produces the response that should be sent back to the client.
+// This lets a front end (see NIOFrontEnd) hand commands to the Server without knowing how they are executed.
+public interface CommandExecutor {
+	String executeCommand(String commandString) throws CommandParser.InvalidCommandException;
+
+	// executes the payload of a BinaryProtocol request frame, and returns the whole response frame
+	ByteBuffer executeBinaryFrame(ByteBuffer payload);
+}
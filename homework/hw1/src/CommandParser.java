@@ -1,6 +1,5 @@
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
 
 // Encapsulates all the logic of parsing and validating a command string entered at the command prompt.
 // Example usage:
@@ -10,126 +9,286 @@ import java.util.regex.Pattern;
 //      List<String> arguments = command.getArguments();
 //      Protocol protocol = command.getProtocol();
 // If the command string is improperly formatted, an InvalidCommandException will be thrown with an appropriate message.
+//
+// A command can be aimed at a specific event (show) by starting it with '@' and the event id:
+//      @show42 reserve alice T
+// command.getEventId() is null when the command doesn't name an event.
+//
+// The server parses a command for every request, so it uses the allocation-free variant instead:
+//      CommandParser.MutableCommand command = new CommandParser.MutableCommand(); // once, then reused
+//      CommandParser.parseCommand(commandString, command);
+//      CharSequence name = command.getName(0); // a CharSlice of commandString, getString(0) copies it instead
+//      int seatNum = command.getInt(1);
+// It makes a single pass over the CharSequence, and validates the arguments as it goes without any regex.
 public class CommandParser {
-	
+	private static final char EVENT_PREFIX = '@';
+
 	public static class InvalidCommandException extends Exception {
 
 		private static final long serialVersionUID = 5755274880351045973L;
 
 		public InvalidCommandException(String message) {
 			super(message);
-		}		
+		}
+	}
+
+	// The formats an argument can have. Each one can check a run of characters without building a String or a regex.
+	public enum ArgumentFormat {
+		// a string of word characters: [a-zA-Z_0-9]+, no longer than MAX_WORD_LENGTH.
+		// Names are kept in the write-ahead log and the snapshots with a 16-bit length, so they can't be arbitrarily long.
+		WORD("\\w{1," + ArgumentFormat.MAX_WORD_LENGTH + "}", ArgumentFormat.MAX_WORD_LENGTH),
+		// a string of digits: [0-9]+
+		NUMBER("\\d+", Integer.MAX_VALUE);
+
+		public static final int MAX_WORD_LENGTH = 256;
+
+		private String formatString;
+		private int maxLength;
+
+		ArgumentFormat(String formatString, int maxLength) {
+			this.formatString = formatString;
+			this.maxLength = maxLength;
+		}
+
+		public String getFormatString() {
+			return formatString;
+		}
+
+		public boolean matches(CharSequence s) {
+			return matches(s, 0, s.length());
+		}
+
+		public boolean matches(CharSequence s, int start, int end) {
+			if (start >= end || end - start > maxLength) {
+				return false;
+			}
+
+			for (int i = start; i < end; i++) {
+				char c = s.charAt(i);
+				boolean isDigit = c >= '0' && c <= '9';
+				if (this == NUMBER ? !isDigit : !(isDigit || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_')) {
+					return false;
+				}
+			}
+			return true;
+		}
 	}
-	
+
 	public static Command parseCommand(String commandString) throws InvalidCommandException {
-	    // Check to see that we have at least the minimum number of tokens
-		String[] tokens = commandString.split(" ");
-		if (tokens.length < 2) { // Every commandString must have at least two tokens: "commandType protocol"
+		MutableCommand mutableCommand = new MutableCommand();
+		parseCommand(commandString, mutableCommand);
+
+		List<String> arguments = new ArrayList<String>(mutableCommand.getArgumentCount());
+		for (int i = 0; i < mutableCommand.getArgumentCount(); i++) {
+			arguments.add(mutableCommand.getString(i));
+		}
+
+		return new Command(mutableCommand.getEventId(), mutableCommand.getCommandType(), arguments, mutableCommand.getProtocol());
+	}
+
+	// Parses commandString into command, overwriting whatever command held before.
+	// Nothing is allocated unless the command string is invalid.
+	public static void parseCommand(CharSequence commandString, MutableCommand command) throws InvalidCommandException {
+		command.reset(commandString);
+
+		// Tokens are separated by runs of whitespace. We only know which token is the protocol once we reach the end,
+		// so each token is handled when the next one is found: the last one is left over for the protocol.
+		int tokenCount = 0;
+		int previousStart = -1;
+		int previousEnd = -1;
+		int length = commandString.length();
+		int i = 0;
+		while (true) {
+			while (i < length && Character.isWhitespace(commandString.charAt(i))) {
+				i++;
+			}
+			if (i == length) {
+				break;
+			}
+
+			int start = i;
+			while (i < length && !Character.isWhitespace(commandString.charAt(i))) {
+				i++;
+			}
+
+			// An event id can only come before everything else, and isn't counted as a token
+			if (tokenCount == 0 && command.eventStart < 0 && commandString.charAt(start) == EVENT_PREFIX) {
+				if (!ArgumentFormat.WORD.matches(commandString, start + 1, i)) {
+					throw new InvalidCommandException(String.format("Error: invalid event id: %s", commandString.subSequence(start, i)));
+				}
+				command.eventStart = start + 1;
+				command.eventEnd = i;
+				continue;
+			}
+
+			if (tokenCount == 1) {
+				// Parse out the command type, e.g. reserve -> CommandType.RESERVE, bookSeat -> CommandType.BOOKSEAT
+				command.commandType = Command.CommandType.fromName(commandString, previousStart, previousEnd);
+			} else if (tokenCount > 1) {
+				command.addArgument(previousStart, previousEnd);
+			}
+
+			previousStart = start;
+			previousEnd = i;
+			tokenCount++;
+		}
+
+		// Check to see that we have at least the minimum number of tokens
+		if (tokenCount < 2) { // Every commandString must have at least two tokens: "commandType protocol"
 			throw new InvalidCommandException("Error: the command string must contain at least two tokens.");
 		}
-		
-		// Parse out the command type, e.g. reserve -> CommandType.RESERVE, bookSeat -> CommandType.BOOKSEAT
-		// @TODO: Determine if the TA cares about case sensitivity for the commands
-		String commandTypeString = tokens[0].trim();
-		Command.CommandType commandType = null;
-		try {
-			commandType = Command.CommandType.valueOf(commandTypeString.toUpperCase());
-		} catch (IllegalArgumentException e) {
-			throw new InvalidCommandException(String.format("Error: unrecognized command type: %s", commandTypeString));
-		}
-		
-		// Parse out the arguments and validate them according to the format strings in the CommandType from above
-		// For example, CommandType.BOOKSEAT expects arguments that match the following format (regex) strings: "\\w+", "\\d+".
-		//      "\\w+" corresponds to a string of characters
-		//      "\\d+" corresponds to a string of digits
-		List<String> arguments = new ArrayList<String>();
-		for (int i = 1; i < tokens.length - 1; i++) {
-			arguments.add(tokens[i].trim());
-		}
-		commandType.validateArguments(arguments);
-		
+		command.commandType.validateArgumentCount(command.getArgumentCount());
+
 		// Parse out the protocol
-        String protocolString = tokens[tokens.length - 1].trim();
-        Protocol protocol = null;
-        if ("T".equals(protocolString)) {
-            protocol = Protocol.TCP;
-            
-        } else if ("U".equals(protocolString)) {
-        	protocol = Protocol.UDP;            
-        } else {
-            throw new InvalidCommandException(String.format("Error: Invalid protocol encountered: %s", protocolString));
-        }
-		
-		return new Command(commandType, arguments, protocol);
+		if (previousEnd - previousStart == 1 && commandString.charAt(previousStart) == 'T') {
+			command.protocol = Protocol.TCP;
+		} else if (previousEnd - previousStart == 1 && commandString.charAt(previousStart) == 'U') {
+			command.protocol = Protocol.UDP;
+		} else {
+			throw new InvalidCommandException(String.format("Error: Invalid protocol encountered: %s", commandString.subSequence(previousStart, previousEnd)));
+		}
 	}
-	
+
 	// This class is just a POJO. All the work of parsing/validating is done in the CommandParser class.
 	public static class Command {
-		
-		// Each CommandType stores a list of format (regex) strings that can be used to validate a list of string arguments (see validateArguments())
+
+		// Each CommandType stores a list of argument formats that can be used to validate a list of string arguments (see validateArguments())
+		// It also has a fixed opcode that identifies it in the binary protocol (see BinaryProtocol). Never reuse or change an opcode.
 		public enum CommandType {
-			RESERVE("\\w+"),
-			BOOKSEAT("\\w+", "\\d+"),
-			SEARCH("\\w+"),
-			DELETE("\\w+"),
-			SHUTDOWN();
-			
-			private List<String> argumentFormatStrings;
-			
-			CommandType(String ... argumentFormatStrings) {
-				assert (argumentFormatStrings != null);
-				
-				this.argumentFormatStrings = new ArrayList<String>();
-				
-				for (String argumentFormatString : argumentFormatStrings) {
-					this.argumentFormatStrings.add(argumentFormatString);
+			RESERVE(1, ArgumentFormat.WORD),
+			BOOKSEAT(2, ArgumentFormat.WORD, ArgumentFormat.NUMBER),
+			SEARCH(3, ArgumentFormat.WORD),
+			DELETE(4, ArgumentFormat.WORD),
+			SHUTDOWN(5),
+			STATS(6),
+			// "reserve_block <name> <numberOfSeats>" books that many adjacent seats at once
+			RESERVE_BLOCK(7, ArgumentFormat.WORD, ArgumentFormat.NUMBER),
+			// "book_range <name> <firstSeatNum> <lastSeatNum>" books every seat in the range at once
+			BOOK_RANGE(8, ArgumentFormat.WORD, ArgumentFormat.NUMBER, ArgumentFormat.NUMBER),
+			// "hold <name> <seconds>" reserves a seat that is released again after that many seconds, unless it's confirmed
+			HOLD(9, ArgumentFormat.WORD, ArgumentFormat.NUMBER),
+			// "confirm <name>" keeps the seat held for name for good
+			CONFIRM(10, ArgumentFormat.WORD),
+			// "release <name>" gives the seat held for name back right away
+			RELEASE(11, ArgumentFormat.WORD);
+
+			// values() returns a new array every time it is called, so keep our own copy
+			private static final CommandType[] COMMAND_TYPES = values();
+
+			private int opcode;
+			private ArgumentFormat[] argumentFormats;
+
+			CommandType(int opcode, ArgumentFormat ... argumentFormats) {
+				assert (argumentFormats != null);
+
+				this.opcode = opcode;
+				this.argumentFormats = argumentFormats;
+			}
+
+			public int getOpcode() {
+				return opcode;
+			}
+
+			public int getArgumentCount() {
+				return argumentFormats.length;
+			}
+
+			public ArgumentFormat getArgumentFormat(int i) {
+				return argumentFormats[i];
+			}
+
+			public static CommandType fromOpcode(int opcode) throws InvalidCommandException {
+				for (CommandType commandType : COMMAND_TYPES) {
+					if (commandType.opcode == opcode) {
+						return commandType;
+					}
+				}
+				throw new InvalidCommandException(String.format("Error: unrecognized opcode: %d", opcode));
+			}
+
+			// Looks up a command type by name, ignoring case, without building a String
+			// @TODO: Determine if the TA cares about case sensitivity for the commands
+			public static CommandType fromName(CharSequence s, int start, int end) throws InvalidCommandException {
+				for (CommandType commandType : COMMAND_TYPES) {
+					String name = commandType.name();
+					if (name.length() != end - start) {
+						continue;
+					}
+
+					int i = 0;
+					while (i < name.length() && Character.toUpperCase(s.charAt(start + i)) == name.charAt(i)) {
+						i++;
+					}
+					if (i == name.length()) {
+						return commandType;
+					}
 				}
+				throw new InvalidCommandException(String.format("Error: unrecognized command type: %s", s.subSequence(start, end)));
 			}
-			
+
 			public void validateArguments(List<String> arguments) throws InvalidCommandException {
-				if (arguments.size() != argumentFormatStrings.size()) {
+				validateArgumentCount(arguments.size());
+
+				for (int i = 0; i < arguments.size(); i++) {
+					validateArgument(i, arguments.get(i), 0, arguments.get(i).length());
+				}
+			}
+
+			void validateArgumentCount(int argumentCount) throws InvalidCommandException {
+				if (argumentCount != argumentFormats.length) {
 					throw new InvalidCommandException(
 						String.format(
-							"Error: %s expects %d arguments. Received %d instead.", 
-							this.name(), 
-							argumentFormatStrings.size(), 
-							arguments.size()
+							"Error: %s expects %d arguments. Received %d instead.",
+							this.name(),
+							argumentFormats.length,
+							argumentCount
 						)
 					);
 				}
-				
-				for (int i = 0; i < arguments.size(); i++) {
-					if (!Pattern.matches(argumentFormatStrings.get(i), arguments.get(i))) {
-						throw new InvalidCommandException(
-							String.format(
-								"Error: argument \"%s\" does not match expected format \"%s\".", 
-								arguments.get(i), 
-								argumentFormatStrings.get(i)
-							)
-						);
-					}
+			}
+
+			void validateArgument(int i, CharSequence s, int start, int end) throws InvalidCommandException {
+				if (!argumentFormats[i].matches(s, start, end)) {
+					throw new InvalidCommandException(
+						String.format(
+							"Error: argument \"%s\" does not match expected format \"%s\".",
+							s.subSequence(start, end),
+							argumentFormats[i].getFormatString()
+						)
+					);
 				}
 			}
 		}
-		
+
+		private String eventId;
 		private CommandType commandType;
 		private List<String> arguments;
 		private Protocol protocol;
-		
+
 		public Command(CommandType commandType, List<String> arguments,	Protocol protocol) {
+			this(null, commandType, arguments, protocol);
+		}
+
+		public Command(String eventId, CommandType commandType, List<String> arguments,	Protocol protocol) {
+			this.eventId = eventId;
 			this.commandType = commandType;
 			this.arguments = arguments;
 			this.protocol = protocol;
 		}
 
+		// the event the command is aimed at, or null if it didn't name one
+		public String getEventId() {
+			return eventId;
+		}
+
 		public CommandType getCommandType() {
 			return commandType;
 		}
-		
+
 		public List<String> getArguments() {
 			return arguments;
 		}
-		
+
 		public Protocol getProtocol() {
 			return protocol;
 		}
@@ -138,4 +297,101 @@ public class CommandParser {
 			return commandType == CommandType.SHUTDOWN;
 		}
 	}
+
+	// A reusable command, filled in by parseCommand(CharSequence, MutableCommand).
+	// Arguments are kept as offsets into the parsed CharSequence, and NUMBER arguments are already converted to ints,
+	// so parsing doesn't allocate anything. getName() hands out a CharSlice of the parsed text, and only getString()
+	// builds a String, when the caller really needs one.
+	// A MutableCommand is only valid until it is parsed into again, and must not be shared between threads.
+	public static class MutableCommand {
+		private static final int MAX_ARGUMENTS = 8;
+
+		private CharSequence source;
+		private int eventStart;
+		private int eventEnd;
+		private Command.CommandType commandType;
+		private Protocol protocol;
+
+		private int argumentCount;
+		private int[] argumentStarts = new int[MAX_ARGUMENTS];
+		private int[] argumentEnds = new int[MAX_ARGUMENTS];
+		private int[] numbers = new int[MAX_ARGUMENTS];
+		private CharSlice name = new CharSlice();
+
+		public Command.CommandType getCommandType() {
+			return commandType;
+		}
+
+		public Protocol getProtocol() {
+			return protocol;
+		}
+
+		public int getArgumentCount() {
+			return argumentCount;
+		}
+
+		// the event the command is aimed at, copied into a new String, or null if it didn't name one
+		public String getEventId() {
+			return eventStart >= 0 ? source.subSequence(eventStart, eventEnd).toString() : null;
+		}
+
+		// the i-th argument, copied into a new String
+		public String getString(int i) {
+			return source.subSequence(argumentStarts[i], argumentEnds[i]).toString();
+		}
+
+		// the i-th argument, as a slice of the parsed text. The same slice is handed out every time, so it's only good
+		// until the next call to getName() or the next parse.
+		public CharSequence getName(int i) {
+			return name.reset(source, argumentStarts[i], argumentEnds[i]);
+		}
+
+		// the value of the i-th argument, which must be a NUMBER argument
+		public int getInt(int i) {
+			return numbers[i];
+		}
+
+		public boolean isShutdownCommand() {
+			return commandType == Command.CommandType.SHUTDOWN;
+		}
+
+		private void reset(CharSequence source) {
+			this.source = source;
+			this.eventStart = -1;
+			this.eventEnd = -1;
+			this.commandType = null;
+			this.protocol = null;
+			this.argumentCount = 0;
+		}
+
+		// Validates the next argument against the command's argument formats, and records it
+		private void addArgument(int start, int end) throws InvalidCommandException {
+			if (argumentCount >= commandType.getArgumentCount()) {
+				// Too many arguments. Keep counting them for the error message in parseCommand().
+				argumentCount++;
+				return;
+			}
+			commandType.validateArgument(argumentCount, source, start, end);
+
+			if (commandType.getArgumentFormat(argumentCount) == ArgumentFormat.NUMBER) {
+				numbers[argumentCount] = parseInt(start, end);
+			}
+
+			argumentStarts[argumentCount] = start;
+			argumentEnds[argumentCount] = end;
+			argumentCount++;
+		}
+
+		// Converts a run of digits into an int, like Integer.parseInt() but without the substring
+		private int parseInt(int start, int end) throws InvalidCommandException {
+			long value = 0;
+			for (int i = start; i < end; i++) {
+				value = value * 10 + (source.charAt(i) - '0');
+				if (value > Integer.MAX_VALUE) {
+					throw new InvalidCommandException(String.format("Error: number out of range: %s", source.subSequence(start, end)));
+				}
+			}
+			return (int) value;
+		}
+	}
 }
@@ -0,0 +1,483 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A thread safe SeatInventory that lets independent commands run in parallel.
+//
+// The seats are split into sections of SEATS_PER_SECTION consecutive seats, and each section has its own lock
+// (lock striping). A section only guards its own free bitset and its slice of the seat -> name index, so two
+// commands only contend when they touch the same section. The name -> seat index is a ConcurrentHashMap, so
+// SEARCH never takes a lock at all. Its keys are Strings, so a name that comes in as some other CharSequence (e.g. a
+// CharSlice of the request) is copied into a String on the way in.
+//
+// No seat is ever given to two names:
+//      - a seat is only claimed while holding its section's lock
+//      - a name is only bound to a seat if it isn't bound yet (putIfAbsent() or compute()), and the seat is handed back if that fails
+// numberOfReservedSeats only counts the seats once they have been claimed, so a command that is still looking for
+// seats never makes another one think the venue is sold out.
+//
+// A block of adjacent seats (see reserveBlock()) may reach over several sections. It is claimed with the sections it
+// covers locked in index order, so two claims can't deadlock or each get a part of the same seats. Every section finds
+// its lowest block that fits with a FreeRunIndex, and publishes the length of its longest free run, and of the free
+// runs at its start and end, to freeRuns (see SectionRunIndex). That finds the section where the lowest free seat or
+// block starts in O(log n) of the number of sections, so neither RESERVE nor RESERVE_BLOCK goes over the sections
+// one by one. The first seat of a block knows the length of the whole block, the rest of it is freed along with it.
+public class ConcurrentSeatInventory implements SeatInventory {
+	// Called for every reservation by forEachReservation()
+	public interface ReservationConsumer {
+		void accept(String name, int seatNum, int numberOfSeats);
+	}
+
+	private static final int SEATS_PER_SECTION = 1024;
+
+	private int maxNumberOfSeats;
+	private AtomicInteger numberOfReservedSeats;
+
+	private Section[] sections;
+	private SectionRunIndex freeRuns;
+
+	private ConcurrentMap<String, Integer> nameToSeat;
+
+	// told about every booking and release, or null
+	private volatile MutationListener mutationListener;
+
+	public ConcurrentSeatInventory(int maxNumberOfSeats) {
+		assert (maxNumberOfSeats >= 0);
+
+		this.maxNumberOfSeats = maxNumberOfSeats;
+		this.numberOfReservedSeats = new AtomicInteger(0);
+
+		this.freeRuns = new SectionRunIndex(maxNumberOfSeats, SEATS_PER_SECTION);
+		this.sections = new Section[(maxNumberOfSeats + SEATS_PER_SECTION - 1) / SEATS_PER_SECTION];
+		for (int i = 0; i < sections.length; i++) {
+			int firstSeat = i * SEATS_PER_SECTION + 1;
+			sections[i] = new Section(i, firstSeat, Math.min(SEATS_PER_SECTION, maxNumberOfSeats - firstSeat + 1), freeRuns);
+		}
+
+		this.nameToSeat = new ConcurrentHashMap<String, Integer>();
+	}
+
+	@Override
+	public int reserve(CharSequence name) {
+		return reserve(name.toString());
+	}
+
+	private int reserve(String name) {
+		if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+		}
+
+		// Another command may take the seat before we get the section's lock, then look again
+		int seatNum = 0;
+		while (seatNum == 0) {
+			int sectionIndex = freeRuns.findSection(1);
+			if (sectionIndex < 0) {
+				return SOLD_OUT;
+			}
+			seatNum = sections[sectionIndex].claimLowestFreeSeat(name);
+		}
+
+		numberOfReservedSeats.incrementAndGet();
+		return bindName(name, seatNum, 1);
+	}
+
+	@Override
+	public int bookSeat(CharSequence name, int seatNum) {
+		return bookRange(name, seatNum, seatNum);
+	}
+
+	@Override
+	public int reserveBlock(CharSequence name, int numberOfSeats) {
+		return reserveBlock(name.toString(), numberOfSeats);
+	}
+
+	private int reserveBlock(String name, int numberOfSeats) {
+		if (numberOfSeats < 1 || numberOfSeats > maxNumberOfSeats) {
+			return INVALID_SEAT;
+
+		} else if (numberOfReservedSeats.get() + numberOfSeats > maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+		}
+
+		// Another command may take the seats before we get the sections' locks, then look again
+		int seatNum = 0;
+		while (seatNum == 0) {
+			int sectionIndex = freeRuns.findSection(numberOfSeats);
+			if (sectionIndex < 0) {
+				return SEAT_UNAVAILABLE;
+			}
+
+			// A block inside a section starts lower than one that starts in the same section and reaches past its end
+			seatNum = sections[sectionIndex].claimLowestFreeRun(numberOfSeats, name);
+			if (seatNum == 0) {
+				seatNum = claimRunFromEndOf(sectionIndex, numberOfSeats, name);
+			}
+		}
+
+		numberOfReservedSeats.addAndGet(numberOfSeats);
+		return bindName(name, seatNum, numberOfSeats);
+	}
+
+	@Override
+	public int bookRange(CharSequence name, int firstSeatNum, int lastSeatNum) {
+		return bookRange(name.toString(), firstSeatNum, lastSeatNum);
+	}
+
+	private int bookRange(String name, int firstSeatNum, int lastSeatNum) {
+		int numberOfSeats = lastSeatNum - firstSeatNum + 1;
+		if (firstSeatNum < 1 || lastSeatNum > maxNumberOfSeats || numberOfSeats < 1) {
+			return INVALID_SEAT;
+
+		} else if (numberOfReservedSeats.get() + numberOfSeats > maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+
+		} else if (!claimRun(sectionIndexOf(firstSeatNum), firstSeatNum, lastSeatNum, name)) {
+			return SEAT_UNAVAILABLE;
+		}
+
+		numberOfReservedSeats.addAndGet(numberOfSeats);
+		return bindName(name, firstSeatNum, numberOfSeats);
+	}
+
+	@Override
+	public int search(CharSequence name) {
+		return search(name.toString());
+	}
+
+	private int search(String name) {
+		Integer seatNum = nameToSeat.get(name);
+		return seatNum != null ? seatNum : NOT_FOUND;
+	}
+
+	@Override
+	public int delete(CharSequence name) {
+		return delete(name.toString());
+	}
+
+	private int delete(String name) {
+		Integer seatNum = null;
+		final MutationListener listener = mutationListener;
+		if (listener == null) {
+			seatNum = nameToSeat.remove(name);
+
+		} else {
+			// Report the release while we still hold the name, so it can't be booked and reported again in between
+			final int[] removedSeatNum = { 0 };
+			nameToSeat.computeIfPresent(name, (key, existingSeatNum) -> {
+				listener.seatReleased(key, existingSeatNum);
+				removedSeatNum[0] = existingSeatNum;
+				return null;
+			});
+			seatNum = removedSeatNum[0] != 0 ? removedSeatNum[0] : null;
+		}
+
+		if (seatNum == null) {
+			return NOT_FOUND;
+		}
+
+		releaseSeat(seatNum);
+		return seatNum;
+	}
+
+	// Returns the name the seat is booked for (also for a seat in the middle of a block), or null if it's free
+	public String getNameOfSeat(int seatNum) {
+		if (seatNum < 1 || seatNum > maxNumberOfSeats) {
+			return null;
+		}
+		return sectionOf(seatNum).nameAt(seatNum);
+	}
+
+	// Calls action with every reservation (name, first seat number and number of seats) in seat order, without
+	// blocking other commands for more than one section at a time. The reservations are fuzzy: each one is reported
+	// as it was at some point during the call, and changes made while it runs may or may not be seen.
+	public void forEachReservation(ReservationConsumer action) {
+		String[] names = new String[SEATS_PER_SECTION];
+		int[] blockLengths = new int[SEATS_PER_SECTION];
+		for (Section section : sections) {
+			int numberOfSeats = section.copyReservations(names, blockLengths);
+
+			for (int i = 0; i < numberOfSeats; i++) {
+				// A seat is claimed before its name is bound, and the binding may still fail.
+				// Only report the seats that really belong to their name.
+				Integer seatNum = blockLengths[i] > 0 ? nameToSeat.get(names[i]) : null;
+				if (seatNum != null && seatNum == section.firstSeat + i) {
+					action.accept(names[i], seatNum, blockLengths[i]);
+				}
+			}
+		}
+	}
+
+	// Books a seat for a name while the inventory is being recovered (see SeatInventorySnapshot.load()).
+	// It skips most of the checks bookSeat() makes, and no other thread may be using the inventory yet.
+	// Returns false if the name or the seat is already taken.
+	public boolean restoreReservation(String name, int seatNum, int numberOfSeats) {
+		if (nameToSeat.containsKey(name) || !claimRun(sectionIndexOf(seatNum), seatNum, seatNum + numberOfSeats - 1, name)) {
+			return false;
+		}
+
+		nameToSeat.put(name, seatNum);
+		numberOfReservedSeats.addAndGet(numberOfSeats);
+		return true;
+	}
+
+	// Starts reporting every booking and release to listener (see SeatInventory.MutationListener).
+	// Set it before the inventory is shared between threads.
+	public void setMutationListener(MutationListener listener) {
+		this.mutationListener = listener;
+	}
+
+	@Override
+	public int getMaxNumberOfSeats() {
+		return maxNumberOfSeats;
+	}
+
+	@Override
+	public int getNumberOfReservedSeats() {
+		return numberOfReservedSeats.get();
+	}
+
+	// Publishes the name -> seat mapping for a seat (or block of seats) we already claimed.
+	// If another thread booked the same name in the meantime, the seats are handed back.
+	private int bindName(String name, final int seatNum, final int numberOfSeats) {
+		boolean isBound = false;
+		final MutationListener listener = mutationListener;
+		if (listener == null) {
+			isBound = nameToSeat.putIfAbsent(name, seatNum) == null;
+
+		} else {
+			// Report the booking while we hold the name, so a delete of the same name can't be reported before it
+			Integer boundSeatNum = nameToSeat.compute(name, (key, existingSeatNum) -> {
+				if (existingSeatNum != null) {
+					return existingSeatNum;
+				}
+				if (numberOfSeats == 1) {
+					listener.seatBooked(key, seatNum);
+				} else {
+					listener.blockBooked(key, seatNum, numberOfSeats);
+				}
+				return seatNum;
+			});
+			isBound = boundSeatNum == seatNum;
+		}
+
+		if (!isBound) {
+			releaseSeat(seatNum);
+			return ALREADY_BOOKED;
+		}
+
+		return seatNum;
+	}
+
+	// Claims the block that starts in the free run at the end of sections[sectionIndex] and reaches into the sections
+	// after it. Returns its first seat, or 0 if the free runs it would need aren't there.
+	private int claimRunFromEndOf(int sectionIndex, int numberOfSeats, String name) {
+		Section section = sections[sectionIndex];
+		int trailingFreeRun = section.trailingFreeRun;
+		if (trailingFreeRun == 0 || trailingFreeRun >= numberOfSeats) {
+			// No block reaches past the end of the section, or one would have fit inside it
+			return 0;
+		}
+
+		// Every section in between has to be free, and the last one has to start with the rest of the block
+		int seatsNeeded = numberOfSeats - trailingFreeRun;
+		for (int i = sectionIndex + 1; seatsNeeded > 0; i++) {
+			if (i == sections.length) {
+				return 0;
+			}
+
+			int leadingFreeRun = sections[i].leadingFreeRun;
+			if (leadingFreeRun < Math.min(seatsNeeded, sections[i].getNumberOfSeats())) {
+				return 0;
+			}
+			seatsNeeded -= leadingFreeRun;
+		}
+
+		int seatNum = section.firstSeat + section.getNumberOfSeats() - trailingFreeRun;
+		if (!claimRun(sectionIndex, seatNum, seatNum + numberOfSeats - 1, name)) {
+			return 0;
+		}
+		return seatNum;
+	}
+
+	// Claims every seat from seatNum to lastSeatNum for name, if they are all free. sectionIndex is the section of seatNum.
+	// The sections are locked from the first to the last (by calling itself for the next one), and only released once
+	// every seat has been claimed, or turned out to be taken.
+	private boolean claimRun(int sectionIndex, int seatNum, int lastSeatNum, String name) {
+		Section section = sections[sectionIndex];
+		synchronized (section) {
+			if (!section.isRangeFree(seatNum, lastSeatNum)) {
+				return false;
+			}
+
+			boolean isLastSection = lastSeatNum < section.firstSeat + section.getNumberOfSeats();
+			if (!isLastSection && !claimRun(sectionIndex + 1, seatNum, lastSeatNum, name)) {
+				return false;
+			}
+
+			section.takeRange(seatNum, lastSeatNum, name);
+			return true;
+		}
+	}
+
+	// Frees the seat, or the whole block that starts at it
+	private void releaseSeat(int seatNum) {
+		int sectionIndex = sectionIndexOf(seatNum);
+		int numberOfSeats = sections[sectionIndex].freeReservation(seatNum);
+
+		// The rest of a block that reaches into the sections after its first one
+		int lastSeatNum = seatNum + numberOfSeats - 1;
+		for (int i = sectionIndex + 1; i <= sectionIndexOf(lastSeatNum); i++) {
+			sections[i].freeLeadingSeats(Math.min(sections[i].getNumberOfSeats(), lastSeatNum - sections[i].firstSeat + 1));
+		}
+		numberOfReservedSeats.addAndGet(-numberOfSeats);
+	}
+
+	private Section sectionOf(int seatNum) {
+		return sections[sectionIndexOf(seatNum)];
+	}
+
+	private int sectionIndexOf(int seatNum) {
+		return (seatNum - 1) / SEATS_PER_SECTION;
+	}
+
+	// A run of consecutive seats, guarded by its own monitor
+	private static class Section {
+		private int index;
+		private int firstSeat;
+		private int numberOfFreeSeats;
+		private FreeRunIndex freeSeats;
+		private String[] seatToName;
+		// the number of seats of the reservation that starts at each seat, or 0
+		private int[] blockLengths;
+
+		// freeSeats.getLongestRun(), getLeadingRun() and getTrailingRun(), readable without the lock
+		private volatile int longestFreeRun;
+		private volatile int leadingFreeRun;
+		private volatile int trailingFreeRun;
+		// where the runs are published for every section
+		private SectionRunIndex freeRuns;
+
+		public Section(int index, int firstSeat, int numberOfSeats, SectionRunIndex freeRuns) {
+			this.index = index;
+			this.firstSeat = firstSeat;
+			this.freeRuns = freeRuns;
+			this.numberOfFreeSeats = numberOfSeats;
+			this.freeSeats = new FreeRunIndex(numberOfSeats);
+			this.seatToName = new String[numberOfSeats];
+			this.blockLengths = new int[numberOfSeats];
+			updateFreeRuns();
+		}
+
+		public int getNumberOfSeats() {
+			return seatToName.length;
+		}
+
+		// Returns the claimed seat number, or 0 if the section is full
+		public synchronized int claimLowestFreeSeat(String name) {
+			if (numberOfFreeSeats == 0) {
+				return 0;
+			}
+
+			int index = freeSeats.findRun(1);
+			if (index < 0) {
+				throw new IllegalStateException("Error: section has free seats, but none were found!");
+			}
+
+			take(index, 1, name, 1);
+			return firstSeat + index;
+		}
+
+		// Returns the first seat of the claimed block, or 0 if the section has no block of free seats that long
+		public int claimLowestFreeRun(int numberOfSeats, String name) {
+			// Don't bother locking a section that can't have a long enough run
+			if (longestFreeRun < numberOfSeats) {
+				return 0;
+			}
+
+			synchronized (this) {
+				int index = freeSeats.findRun(numberOfSeats);
+				if (index < 0) {
+					return 0;
+				}
+
+				take(index, numberOfSeats, name, numberOfSeats);
+				return firstSeat + index;
+			}
+		}
+
+		// Returns true if every seat from seatNum to lastSeatNum that lies in this section is free
+		public synchronized boolean isRangeFree(int seatNum, int lastSeatNum) {
+			int start = Math.max(seatNum, firstSeat) - firstSeat;
+			int end = Math.min(lastSeatNum, firstSeat + seatToName.length - 1) - firstSeat + 1;
+			return freeSeats.isRangeFree(start, end - start);
+		}
+
+		// Takes every seat from seatNum to lastSeatNum that lies in this section. If seatNum is in this section,
+		// it is the first seat of the reservation.
+		public synchronized void takeRange(int seatNum, int lastSeatNum, String name) {
+			int start = Math.max(seatNum, firstSeat) - firstSeat;
+			int end = Math.min(lastSeatNum, firstSeat + seatToName.length - 1) - firstSeat + 1;
+			take(start, end - start, name, seatNum >= firstSeat ? lastSeatNum - seatNum + 1 : 0);
+		}
+
+		// Copies the name of every seat (or null) into names, and the length of the reservation that starts at every
+		// seat (or 0) into blockLengths. Returns the number of seats in the section.
+		public synchronized int copyReservations(String[] names, int[] blockLengths) {
+			System.arraycopy(seatToName, 0, names, 0, seatToName.length);
+			System.arraycopy(this.blockLengths, 0, blockLengths, 0, seatToName.length);
+			return seatToName.length;
+		}
+
+		public synchronized String nameAt(int seatNum) {
+			return seatToName[seatNum - firstSeat];
+		}
+
+		// Frees the reservation that starts at seatNum, as far as it lies in this section,
+		// and returns how many seats it has in all
+		public synchronized int freeReservation(int seatNum) {
+			int index = seatNum - firstSeat;
+			int numberOfSeats = blockLengths[index];
+			blockLengths[index] = 0;
+			free(index, Math.min(numberOfSeats, seatToName.length - index));
+			return numberOfSeats;
+		}
+
+		// Frees the first numberOfSeats seats, the end of a block that started in an earlier section
+		public synchronized void freeLeadingSeats(int numberOfSeats) {
+			free(0, numberOfSeats);
+		}
+
+		// blockLength is the length of the whole reservation if it starts at index, or 0 if it started in an earlier section
+		private void take(int index, int numberOfSeats, String name, int blockLength) {
+			freeSeats.take(index, numberOfSeats);
+			for (int i = index; i < index + numberOfSeats; i++) {
+				seatToName[i] = name;
+			}
+			blockLengths[index] = blockLength;
+			numberOfFreeSeats -= numberOfSeats;
+			updateFreeRuns();
+		}
+
+		private void free(int index, int numberOfSeats) {
+			freeSeats.free(index, numberOfSeats);
+			for (int i = index; i < index + numberOfSeats; i++) {
+				seatToName[i] = null;
+			}
+			numberOfFreeSeats += numberOfSeats;
+			updateFreeRuns();
+		}
+
+		private void updateFreeRuns() {
+			longestFreeRun = freeSeats.getLongestRun();
+			leadingFreeRun = freeSeats.getLeadingRun();
+			trailingFreeRun = freeSeats.getTrailingRun();
+			freeRuns.update(index, leadingFreeRun, trailingFreeRun, longestFreeRun);
+		}
+	}
+}
@@ -0,0 +1,216 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps track of every open TCP connection, so that the server holds on to exactly the connections that are open,
+// no matter how many come and go over its lifetime.
+//
+// A connection is registered when it is accepted, and deregistered when it closes, whichever side closes it.
+// register() turns a connection away (returns null) once maxConnections are open. The slot is taken before
+// anything else happens, so two connections that arrive at the same time can't both squeeze past the limit.
+//
+// With an idle timeout, a connection that hasn't sent anything for that long is closed. Every connection has a
+// timeout on a TimerWheel, and a reaper thread expires the wheel once per tick. Receiving a message only
+// touches the connection's lastActivity (a single volatile write), instead of moving its timeout around the wheel.
+// When the timeout comes up, the reaper checks lastActivity: a connection that was busy in the meantime just gets
+// a new timeout for the rest of its idle time, and one that wasn't is closed.
+//
+// All methods are thread safe.
+// Example usage:
+//      ConnectionRegistry registry = new ConnectionRegistry(10000, 300000, stats);
+//      registry.start();
+//      ConnectionRegistry.Registration registration = registry.register(tcpMessageHandler);
+//      if (registration == null) {
+//          // too many connections
+//      }
+//      ...
+//      registry.touch(registration); // for every message
+//      ...
+//      registry.deregister(registration);
+public class ConnectionRegistry {
+	// the wheel has this many ticks per idle timeout, so a connection is closed at most 1/TICKS_PER_TIMEOUT late
+	private static final int TICKS_PER_TIMEOUT = 32;
+	private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// The handle of a registered connection
+	public static class Registration {
+		private Closeable connection;
+		private volatile long lastActivity;
+		private volatile TimerWheel.Timeout<Registration> idleTimeout;
+		private AtomicBoolean isRegistered;
+
+		private Registration(Closeable connection) {
+			this.connection = connection;
+			this.lastActivity = System.nanoTime();
+			this.isRegistered = new AtomicBoolean(true);
+		}
+	}
+
+	private int maxConnections;
+	private long idleTimeoutNanos;
+	private ServerStats stats;
+
+	private Set<Registration> registrations;
+	private AtomicInteger numberOfConnections;
+	private LongAdder idleEvictions;
+
+	private TimerWheel<Registration> idleTimeouts;
+	private Thread reaper;
+	private CountDownLatch reaperStopped;
+
+	// maxConnections is 0 for no limit, and idleTimeoutMillis is 0 to never close an idle connection
+	public ConnectionRegistry(int maxConnections, long idleTimeoutMillis, ServerStats stats) {
+		assert (maxConnections >= 0 && idleTimeoutMillis >= 0);
+
+		this.maxConnections = maxConnections;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.stats = stats;
+
+		this.registrations = ConcurrentHashMap.newKeySet();
+		this.numberOfConnections = new AtomicInteger();
+		this.idleEvictions = new LongAdder();
+
+		if (idleTimeoutNanos > 0) {
+			long tickNanos = Math.max(MIN_TICK_NANOS, idleTimeoutNanos / TICKS_PER_TIMEOUT);
+			this.idleTimeouts = new TimerWheel<Registration>(tickNanos, System.nanoTime());
+			this.reaperStopped = new CountDownLatch(1);
+			this.reaper = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					reapIdleConnections();
+				}
+			}, "connection-reaper");
+			this.reaper.setDaemon(true);
+		}
+	}
+
+	public void start() {
+		if (reaper != null) {
+			reaper.start();
+		}
+	}
+
+	// Stops the reaper and closes every connection that is still open
+	public void close() {
+		if (reaper != null) {
+			reaperStopped.countDown();
+			try {
+				reaper.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		for (Registration registration : registrations) {
+			closeQuietly(registration.connection);
+			deregister(registration);
+		}
+	}
+
+	// Returns the new connection's handle, or null if maxConnections are already open.
+	// A connection that was turned away is left for the caller to close.
+	public Registration register(Closeable connection) {
+		while (true) {
+			int open = numberOfConnections.get();
+			if (maxConnections > 0 && open >= maxConnections) {
+				return null;
+			}
+			if (numberOfConnections.compareAndSet(open, open + 1)) {
+				break;
+			}
+		}
+
+		Registration registration = new Registration(connection);
+		registrations.add(registration);
+		stats.connectionOpened();
+		if (idleTimeouts != null) {
+			registration.idleTimeout = idleTimeouts.schedule(registration, registration.lastActivity + idleTimeoutNanos);
+		}
+		return registration;
+	}
+
+	// Called whenever a message arrives over the connection
+	public void touch(Registration registration) {
+		if (idleTimeouts != null) {
+			registration.lastActivity = System.nanoTime();
+		}
+	}
+
+	// Forgets a connection that was closed. It's fine to call this more than once.
+	public void deregister(Registration registration) {
+		if (!registration.isRegistered.compareAndSet(true, false)) {
+			return;
+		}
+
+		registrations.remove(registration);
+		numberOfConnections.decrementAndGet();
+		stats.connectionClosed();
+		if (registration.idleTimeout != null) {
+			idleTimeouts.cancel(registration.idleTimeout);
+		}
+	}
+
+	public int getNumberOfConnections() {
+		return numberOfConnections.get();
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	// the number of connections that were closed for being idle
+	public long getIdleEvictions() {
+		return idleEvictions.sum();
+	}
+
+	private void reapIdleConnections() {
+		List<Registration> expired = new ArrayList<Registration>();
+		try {
+			while (!reaperStopped.await(idleTimeouts.getTickNanos(), TimeUnit.NANOSECONDS)) {
+				long now = System.nanoTime();
+				idleTimeouts.expire(now, expired);
+
+				for (Registration registration : expired) {
+					if (!registration.isRegistered.get()) {
+						continue;
+					}
+
+					long idleSince = registration.lastActivity;
+					if (now - idleSince < idleTimeoutNanos) {
+						registration.idleTimeout = idleTimeouts.schedule(registration, idleSince + idleTimeoutNanos);
+						// It may have been deregistered while we weren't looking, and then nobody would cancel this
+						if (!registration.isRegistered.get()) {
+							idleTimeouts.cancel(registration.idleTimeout);
+						}
+					} else {
+						// Whoever is serving the connection finds out it's closed, and deregisters it too
+						closeQuietly(registration.connection);
+						deregister(registration);
+						idleEvictions.increment();
+						stats.connectionEvicted();
+					}
+				}
+				expired.clear();
+			}
+		} catch (InterruptedException e) {
+			// The registry was closed
+		}
+	}
+
+	private static void closeQuietly(Closeable connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+
+		}
+	}
+}
@@ -0,0 +1,203 @@
+// Keeps track of which seats in a row of seats are free, so that the lowest block of k adjacent free seats can be
+// found in O(log n) time, without looking at the seats one by one.
+//
+// The free seats are a bitset of 64-seat words (a set bit is a free seat), with a segment tree on top that has one
+// leaf per word. Every node of the tree knows three things about the seats below it:
+//      prefix  - how many seats in a row are free at its start
+//      suffix  - how many seats in a row are free at its end
+//      longest - the longest run of free seats anywhere below it
+// A run of k free seats is either entirely inside one child of a node, or it is the left child's suffix followed by
+// the right child's prefix. So findRun() only follows a single path from the root down, and within a leaf, the run
+// is found with a few shifts of its word.
+// Taking or freeing seats updates their words, and then the nodes above them.
+//
+// Seats are numbered from 0 here. This class is not thread safe. The caller is expected to serialize access to it.
+// Example usage:
+//      FreeRunIndex freeSeats = new FreeRunIndex(100); // every seat starts out free
+//      int start = freeSeats.findRun(4); // 0
+//      freeSeats.take(start, 4);
+//      freeSeats.isRangeFree(2, 3); // false
+public class FreeRunIndex {
+	private static final int WORD_LENGTH = 64;
+
+	private int numberOfSeats;
+	private long[] words;
+
+	// The tree is stored like a heap: the root is node 1, the children of node i are 2i and 2i + 1,
+	// and the leaf of word w is node numberOfLeaves + w. numberOfLeaves is a power of two.
+	private int numberOfLeaves;
+	private int[] prefix;
+	private int[] suffix;
+	private int[] longest;
+
+	public FreeRunIndex(int numberOfSeats) {
+		assert (numberOfSeats >= 0);
+
+		this.numberOfSeats = numberOfSeats;
+		this.words = new long[(numberOfSeats + WORD_LENGTH - 1) / WORD_LENGTH];
+
+		this.numberOfLeaves = Integer.highestOneBit(Math.max(1, words.length * 2 - 1));
+		this.prefix = new int[2 * numberOfLeaves];
+		this.suffix = new int[2 * numberOfLeaves];
+		this.longest = new int[2 * numberOfLeaves];
+
+		// The seats past the end of the last word (and the words past the last one) are never free,
+		// so a run can't spill over the end
+		free(0, numberOfSeats);
+	}
+
+	public int getNumberOfSeats() {
+		return numberOfSeats;
+	}
+
+	// the length of the longest run of free seats
+	public int getLongestRun() {
+		return longest[1];
+	}
+
+	// the number of free seats in a row at the start of the row
+	public int getLeadingRun() {
+		return prefix[1];
+	}
+
+	// the number of free seats in a row at the end of the row
+	public int getTrailingRun() {
+		// The tree's suffix also counts the never-free seats past the end, so go over the last words instead
+		int run = 0;
+		for (int w = words.length - 1; w >= 0; w--) {
+			int wordLength = Math.min(WORD_LENGTH, numberOfSeats - w * WORD_LENGTH);
+			// Move the last seat of the word up to the top bit, and count the free seats down from there
+			int free = Long.numberOfLeadingZeros(~(words[w] << (WORD_LENGTH - wordLength)));
+			run += free;
+			if (free < wordLength) {
+				break;
+			}
+		}
+		return run;
+	}
+
+	public boolean isFree(int seat) {
+		return (words[seat >>> 6] & (1L << seat)) != 0;
+	}
+
+	// Returns true if every seat from start to start + length - 1 is free
+	public boolean isRangeFree(int start, int length) {
+		int end = start + length;
+		for (int w = start >>> 6; w <= (end - 1) >>> 6; w++) {
+			long mask = rangeMask(w, start, end);
+			if ((words[w] & mask) != mask) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Returns the first seat of the lowest run of length free seats, or -1 if there is none
+	public int findRun(int length) {
+		if (length < 1 || longest[1] < length) {
+			return -1;
+		}
+
+		int node = 1;
+		int nodeStart = 0;
+		int nodeLength = numberOfLeaves * WORD_LENGTH;
+		while (node < numberOfLeaves) {
+			int left = 2 * node;
+			int right = left + 1;
+			nodeLength /= 2;
+
+			if (longest[left] >= length) {
+				node = left;
+			} else if (suffix[left] + prefix[right] >= length) {
+				return nodeStart + nodeLength - suffix[left];
+			} else {
+				node = right;
+				nodeStart += nodeLength;
+			}
+		}
+
+		// Keep only the bits that start a run of length free seats, by and-ing the word with shifted copies of
+		// itself. Each step doubles the length of the runs the bits stand for, up to length.
+		long starts = words[node - numberOfLeaves];
+		int covered = 1;
+		while (covered < length) {
+			int shift = Math.min(covered, length - covered);
+			starts &= starts >>> shift;
+			covered += shift;
+		}
+		return nodeStart + Long.numberOfTrailingZeros(starts);
+	}
+
+	// Marks every seat from start to start + length - 1 as taken
+	public void take(int start, int length) {
+		update(start, start + length, false);
+	}
+
+	// Marks every seat from start to start + length - 1 as free
+	public void free(int start, int length) {
+		update(start, start + length, true);
+	}
+
+	private void update(int start, int end, boolean isFree) {
+		if (start >= end) {
+			return;
+		}
+
+		int firstWord = start >>> 6;
+		int lastWord = (end - 1) >>> 6;
+		for (int w = firstWord; w <= lastWord; w++) {
+			long mask = rangeMask(w, start, end);
+			words[w] = isFree ? words[w] | mask : words[w] & ~mask;
+			updateLeaf(w);
+		}
+
+		// Fix up every node above the words that changed, one level at a time
+		int firstNode = numberOfLeaves + firstWord;
+		int lastNode = numberOfLeaves + lastWord;
+		int childLength = WORD_LENGTH;
+		while (firstNode > 1) {
+			firstNode /= 2;
+			lastNode /= 2;
+			for (int node = firstNode; node <= lastNode; node++) {
+				updateNode(node, childLength);
+			}
+			childLength *= 2;
+		}
+	}
+
+	private void updateLeaf(int w) {
+		long word = words[w];
+		int node = numberOfLeaves + w;
+		prefix[node] = Long.numberOfTrailingZeros(~word);
+		suffix[node] = Long.numberOfLeadingZeros(~word);
+
+		// Every step shortens each run of set bits by one, so the longest run is the number of steps it takes to clear them all
+		int longestRun = 0;
+		while (word != 0) {
+			word &= word >>> 1;
+			longestRun++;
+		}
+		longest[node] = longestRun;
+	}
+
+	private void updateNode(int node, int childLength) {
+		int left = 2 * node;
+		int right = left + 1;
+		prefix[node] = prefix[left] == childLength ? childLength + prefix[right] : prefix[left];
+		suffix[node] = suffix[right] == childLength ? childLength + suffix[left] : suffix[right];
+		longest[node] = Math.max(Math.max(longest[left], longest[right]), suffix[left] + prefix[right]);
+	}
+
+	// the bits of word w that fall between start (inclusive) and end (exclusive)
+	private static long rangeMask(int w, int start, int end) {
+		int wordStart = w * WORD_LENGTH;
+		long mask = -1L;
+		if (start > wordStart) {
+			mask &= -1L << (start - wordStart);
+		}
+		if (end < wordStart + WORD_LENGTH) {
+			mask &= -1L >>> (wordStart + WORD_LENGTH - end);
+		}
+		return mask;
+	}
+}
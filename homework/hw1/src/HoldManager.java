@@ -0,0 +1,283 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps seats on hold for a checkout: a held seat is booked like any other, but it is released by itself
+// unless it's confirmed in time.
+//
+// Every hold has a timeout on a TimerWheel, so putting a seat on hold and confirming it are O(1), and nothing
+// looks at the holds while they wait. An expirer thread expires the wheel once per tick, and releases every hold
+// that came up in one batch. Even at on-sale time with millions of holds, it only ever touches the ones that are due.
+//
+// A hold is tied to the seat inventory it was made in (e.g. the event of a sharded server) and the name it was made for.
+// Whoever takes a hold out of the map first decides what happens to its seat: the expirer, confirm() or release().
+// The seat of an expiring hold is released before the hold leaves the map, with the hold locked, and forget() waits
+// for that lock, so the expirer never releases a seat that was booked again after a DELETE.
+//
+// The holds of one inventory can be made durable through a HoldListener (the WriteAheadLog, see setHoldListener()).
+// Deadlines are kept in wall clock time as well, so after a restart restore() puts the holds that came back from the
+// log or a snapshot on the wheel again, and releases the ones whose time ran out while the server was down.
+//
+// All methods are thread safe.
+// Example usage:
+//      HoldManager holdManager = new HoldManager();
+//      holdManager.start();
+//      int seatNum = holdManager.hold(inventory, "alice", 300);
+//      ...
+//      holdManager.confirm(inventory, "alice"); // or holdManager.release(inventory, "alice")
+//      ...
+//      holdManager.close();
+public class HoldManager {
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	// Hears about every hold that is put on and confirmed. A hold that is released or expires shows up as the
+	// release of its reservation instead (see SeatInventory.MutationListener).
+	interface HoldListener {
+		void seatHeld(String name, int seatNum, long deadlineMillis);
+
+		void holdConfirmed(String name, int seatNum);
+	}
+
+	// The name of a hold in the map is always a String. A lookup can use any CharSequence, e.g. the CharSlice of a
+	// request, because equals() and hashCode() only look at its characters.
+	private static class Key {
+		private SeatInventory inventory;
+		private CharSequence name;
+
+		public Key(SeatInventory inventory, CharSequence name) {
+			this.inventory = inventory;
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return inventory == key.inventory && CharSlice.contentEquals(name, key.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(inventory) + CharSlice.hash(name);
+		}
+	}
+
+	private static class Hold {
+		private Key key;
+		private int seatNum;
+		// when the hold runs out, in System.currentTimeMillis() time
+		private long deadlineMillis;
+		private TimerWheel.Timeout<Hold> timeout;
+		private Lock lock;
+
+		public Hold(Key key, int seatNum) {
+			this.key = key;
+			this.seatNum = seatNum;
+			this.lock = new ReentrantLock();
+		}
+	}
+
+	private Map<Key, Hold> holds;
+	private TimerWheel<Hold> expirations;
+
+	private Thread expirer;
+	private CountDownLatch expirerStopped;
+
+	// the inventory whose holds are reported to holdListener, or null
+	private SeatInventory listenedInventory;
+	private HoldListener holdListener;
+
+	public HoldManager() {
+		this.holds = new ConcurrentHashMap<Key, Hold>();
+		this.expirations = new TimerWheel<Hold>(TICK_NANOS, System.nanoTime());
+
+		this.expirerStopped = new CountDownLatch(1);
+		this.expirer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				expireHolds();
+			}
+		}, "hold-expirer");
+		this.expirer.setDaemon(true);
+	}
+
+	public void start() {
+		expirer.start();
+	}
+
+	// Reports every hold in inventory to holdListener from now on. Must be called before start().
+	public void setHoldListener(SeatInventory inventory, HoldListener holdListener) {
+		this.listenedInventory = inventory;
+		this.holdListener = holdListener;
+	}
+
+	// Stops the expirer. The seats that are still on hold stay booked, and with a HoldListener they are still on
+	// hold after a restart (see restore()).
+	public void close() {
+		expirerStopped.countDown();
+		try {
+			expirer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Reserves the lowest available seat for name in inventory, and releases it again after seconds unless it's confirmed.
+	// Returns the seat number, or the status code of the reservation that failed (see SeatInventory).
+	public int hold(SeatInventory inventory, CharSequence name, int seconds) {
+		assert (seconds > 0);
+
+		// The hold goes into the map, locked, before the seat is reserved. A DELETE that comes in the meantime
+		// finds it and waits in forget(), so it can't delete the seat before the hold is there to be dropped.
+		Hold hold = new Hold(new Key(inventory, name.toString()), 0);
+		hold.lock.lock();
+		try {
+			if (holds.putIfAbsent(hold.key, hold) != null) {
+				return SeatInventory.ALREADY_BOOKED;
+			}
+
+			int seatNum = inventory.reserve(name);
+			if (seatNum < 0) {
+				holds.remove(hold.key, hold);
+				return seatNum;
+			}
+
+			hold.seatNum = seatNum;
+			hold.deadlineMillis = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+			hold.timeout = expirations.schedule(hold, System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+			if (inventory == listenedInventory) {
+				holdListener.seatHeld(hold.key.name.toString(), seatNum, hold.deadlineMillis);
+			}
+			return seatNum;
+		} finally {
+			hold.lock.unlock();
+		}
+	}
+
+	// Keeps the seat held for name for good. Returns the seat number, or SeatInventory.NOT_FOUND if name has no hold.
+	public int confirm(SeatInventory inventory, CharSequence name) {
+		Hold hold = take(inventory, name);
+		if (hold == null) {
+			return SeatInventory.NOT_FOUND;
+		}
+		if (inventory == listenedInventory) {
+			holdListener.holdConfirmed(hold.key.name.toString(), hold.seatNum);
+		}
+		return hold.seatNum;
+	}
+
+	// Gives the seat held for name back right away. Returns the seat number, or SeatInventory.NOT_FOUND if name has no hold.
+	public int release(SeatInventory inventory, CharSequence name) {
+		Hold hold = take(inventory, name);
+		if (hold == null) {
+			return SeatInventory.NOT_FOUND;
+		}
+		return inventory.delete(name);
+	}
+
+	// Drops the hold of name, if it has one, without touching its seat, e.g. before the reservation is deleted
+	public void forget(SeatInventory inventory, CharSequence name) {
+		take(inventory, name);
+	}
+
+	// the number of seats that are on hold
+	public int getNumberOfHolds() {
+		return holds.size();
+	}
+
+	// Returns the deadline of every hold in inventory, by name
+	public Map<String, Long> getHolds(SeatInventory inventory) {
+		Map<String, Long> deadlines = new HashMap<String, Long>();
+		for (Hold hold : holds.values()) {
+			if (hold.key.inventory == inventory && hold.seatNum > 0) {
+				deadlines.put(hold.key.name.toString(), hold.deadlineMillis);
+			}
+		}
+		return deadlines;
+	}
+
+	// Puts the holds of a previous run back on hold, given their deadlines by name. Their seats must already be
+	// booked in inventory. A hold whose deadline has passed gets its seat released right away.
+	public void restore(SeatInventory inventory, Map<String, Long> deadlines) {
+		long nowMillis = System.currentTimeMillis();
+		long nowNanos = System.nanoTime();
+		for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+			String name = entry.getKey();
+			long deadlineMillis = entry.getValue();
+			int seatNum = inventory.search(name);
+			if (seatNum <= 0) {
+				continue;
+			}
+
+			if (deadlineMillis <= nowMillis) {
+				inventory.delete(name);
+				continue;
+			}
+
+			Hold hold = new Hold(new Key(inventory, name), seatNum);
+			hold.deadlineMillis = deadlineMillis;
+			hold.lock.lock();
+			try {
+				if (holds.putIfAbsent(hold.key, hold) == null) {
+					hold.timeout = expirations.schedule(hold, nowNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis - nowMillis));
+				}
+			} finally {
+				hold.lock.unlock();
+			}
+		}
+	}
+
+	// Takes the hold of name out of the map and cancels its timeout. Returns the hold, or null if there wasn't one.
+	private Hold take(SeatInventory inventory, CharSequence name) {
+		Hold hold = holds.get(new Key(inventory, name));
+		if (hold == null) {
+			return null;
+		}
+
+		// Wait for the expirer, if it's releasing this hold's seat right now, or for hold(), if it's still reserving it
+		hold.lock.lock();
+		try {
+			if (!holds.remove(hold.key, hold)) {
+				return null;
+			}
+			expirations.cancel(hold.timeout);
+			return hold;
+		} finally {
+			hold.lock.unlock();
+		}
+	}
+
+	private void expireHolds() {
+		List<Hold> expired = new ArrayList<Hold>();
+		try {
+			while (!expirerStopped.await(TICK_NANOS, TimeUnit.NANOSECONDS)) {
+				expirations.expire(System.nanoTime(), expired);
+
+				for (Hold hold : expired) {
+					hold.lock.lock();
+					try {
+						// It may have been confirmed or released in the meantime
+						if (holds.get(hold.key) == hold) {
+							hold.key.inventory.delete(hold.key.name);
+							holds.remove(hold.key, hold);
+						}
+					} finally {
+						hold.lock.unlock();
+					}
+				}
+				expired.clear();
+			}
+		} catch (InterruptedException e) {
+			// The manager was closed
+		}
+	}
+}
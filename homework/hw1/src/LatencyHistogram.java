@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts how long something took, in nanoseconds, so percentiles like p99 can be read off later.
+//
+// Every power of two is split into SUB_BUCKETS equal buckets (log-linear buckets, like HdrHistogram), so any value
+// is reported within about 6% of what was recorded, from 1ns to hundreds of years, in a fixed 8 KB of counters.
+// Recording is a single atomic increment, so many threads can record into the same histogram at once.
+// Histograms with the same layout can be added together, e.g. to combine the TCP and UDP latencies of a command.
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// values below SUB_BUCKETS get a bucket each, then every power of two from 2^SUB_BUCKET_BITS up to 2^62
+	private static final int NUMBER_OF_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;
+
+	public LatencyHistogram() {
+		this.counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(Math.max(nanos, 0)));
+	}
+
+	// Adds every value recorded in other to this histogram
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	// Returns the value that percentile percent of the recorded values are at or below, e.g. 99.9 for p999.
+	// The value is the top of its bucket, so it errs on the slow side. Returns 0 if nothing was recorded.
+	public long getValueAtPercentile(double percent) {
+		long[] snapshot = new long[NUMBER_OF_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return highestValueOf(i);
+			}
+		}
+		return highestValueOf(NUMBER_OF_BUCKETS - 1);
+	}
+
+	// the largest recorded value, rounded up to the top of its bucket
+	public long getMax() {
+		for (int i = NUMBER_OF_BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) != 0) {
+				return highestValueOf(i);
+			}
+		}
+		return 0;
+	}
+
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		// The highest set bit picks the power of two, and the SUB_BUCKET_BITS bits below it pick the sub bucket
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	private static long highestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket & (SUB_BUCKETS - 1);
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
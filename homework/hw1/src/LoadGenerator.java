@@ -0,0 +1,293 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a server with a fixed rate of commands, to find out how much load it can take and what the latency is
+// at that load. Unlike Client, it doesn't wait for a response before it decides to send the next command:
+//
+// Every connection gets an equal share of the requested rate, and a schedule of when each of its commands is due.
+// A connection sends a command when it is due (or right away, if it's already late), and waits for the response.
+// The latency of a command is measured from the time it was due, not the time it was sent. If the server stalls,
+// the commands that should have gone out during the stall are charged for the time they spent waiting, just like
+// real users would have been. Measuring from the send time instead would hide the stall (coordinated omission).
+// Both are reported: "latency" is from the due time, "service time" is from the send time.
+// UDP commands are tagged with a request id (see ClientUDPMessageHandler.sendRequest()), so a response that arrives
+// after its command timed out is thrown away instead of being taken for the response to the next one.
+// A UDP command whose response doesn't arrive within --udp-timeout is counted as lost, and measured as if it had been
+// answered the moment it was given up on. That is the least it cost, and leaving it out would hide the worst latencies.
+// A BUSY response (see AdmissionController) is counted, but not measured.
+//
+// Usage:
+//      java LoadGenerator <hostAddress> <tcpPort> <udpPort> [--rate=1000] [--duration=10] [--connections=16] ...
+// See main() for every option.
+public class LoadGenerator {
+	private static final CommandParser.Command.CommandType[] COMMAND_TYPES = {
+		CommandParser.Command.CommandType.RESERVE,
+		CommandParser.Command.CommandType.BOOKSEAT,
+		CommandParser.Command.CommandType.SEARCH,
+		CommandParser.Command.CommandType.DELETE
+	};
+
+	private String hostAddress;
+	private int tcpPort;
+	private int udpPort;
+
+	private double rate;
+	private long durationNanos;
+	private long warmupNanos;
+	private int numberOfConnections;
+	private int numberOfUDPConnections;
+	private int[] mix;
+	private int numberOfNames;
+	private int numberOfSeats;
+	private int udpTimeoutMillis;
+
+	// indexed by the position of the command type in COMMAND_TYPES
+	private LatencyHistogram[] latencies;
+	private LatencyHistogram serviceTimes;
+	private LongAdder completed;
+	private LongAdder timeouts;
+	private LongAdder errors;
+	// commands the server turned away, see AdmissionController
+	private LongAdder busy;
+
+	public LoadGenerator(String hostAddress, int tcpPort, int udpPort, ServerOptions options) {
+		this.hostAddress = hostAddress;
+		this.tcpPort = tcpPort;
+		this.udpPort = udpPort;
+
+		this.rate = options.getInt("rate", 1000);
+		this.durationNanos = options.getInt("duration", 10) * 1000000000L;
+		this.warmupNanos = options.getInt("warmup", 2) * 1000000000L;
+		this.numberOfConnections = options.getInt("connections", 16);
+		this.numberOfUDPConnections = numberOfConnections * options.getInt("udp-percent", 0) / 100;
+		this.mix = parseMix(options.getString("mix", "reserve:25,bookseat:25,search:25,delete:25"));
+		this.numberOfNames = options.getInt("names", 10000);
+		this.numberOfSeats = options.getInt("seats", 10000);
+		this.udpTimeoutMillis = options.getInt("udp-timeout", 1000);
+
+		if (rate <= 0 || numberOfConnections <= 0) {
+			throw new IllegalArgumentException("Error: --rate and --connections must be positive");
+		}
+		if (numberOfUDPConnections > 0 && udpTimeoutMillis <= 0) {
+			throw new IllegalArgumentException("Error: --udp-timeout must be positive");
+		}
+
+		this.latencies = new LatencyHistogram[COMMAND_TYPES.length];
+		for (int i = 0; i < COMMAND_TYPES.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+		this.serviceTimes = new LatencyHistogram();
+		this.completed = new LongAdder();
+		this.timeouts = new LongAdder();
+		this.errors = new LongAdder();
+		this.busy = new LongAdder();
+	}
+
+	// Parses a mix like "reserve:40,search:60" into a weight per entry of COMMAND_TYPES
+	private static int[] parseMix(String mixString) {
+		int[] weights = new int[COMMAND_TYPES.length];
+		for (String entry : mixString.split(",")) {
+			String[] parts = entry.split(":");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException(String.format("Error: --mix entries must look like command:weight: %s", entry));
+			}
+
+			boolean found = false;
+			for (int i = 0; i < COMMAND_TYPES.length; i++) {
+				if (COMMAND_TYPES[i].name().equalsIgnoreCase(parts[0].trim())) {
+					weights[i] = Integer.parseInt(parts[1].trim());
+					found = true;
+				}
+			}
+			if (!found) {
+				throw new IllegalArgumentException(String.format("Error: --mix can't send %s", parts[0]));
+			}
+		}
+		return weights;
+	}
+
+	public void run() throws InterruptedException, IOException {
+		// Connect everything up front, so connecting isn't part of the measurement
+		MessageHandler[] connections = new MessageHandler[numberOfConnections];
+		for (int i = 0; i < numberOfConnections; i++) {
+			if (i < numberOfUDPConnections) {
+				ClientUDPMessageHandler udpConnection = new ClientUDPMessageHandler(hostAddress, udpPort);
+				// A single attempt, a retransmission would send the command twice in one slot of the schedule
+				udpConnection.setRetransmission(udpTimeoutMillis, udpTimeoutMillis, 1);
+				connections[i] = udpConnection;
+			} else {
+				connections[i] = new TCPMessageHandler(hostAddress, tcpPort);
+			}
+		}
+
+		final long intervalNanos = (long) (1e9 * numberOfConnections / rate);
+		final long startTime = System.nanoTime() + 100000000L;
+		final long measureFrom = startTime + warmupNanos;
+		final long endTime = measureFrom + durationNanos;
+		final CountDownLatch doneSignal = new CountDownLatch(numberOfConnections);
+
+		for (int i = 0; i < numberOfConnections; i++) {
+			final MessageHandler connection = connections[i];
+			final Protocol protocol = i < numberOfUDPConnections ? Protocol.UDP : Protocol.TCP;
+			// Spread the connections' schedules out, so they don't all send at the same instant
+			final long firstDue = startTime + intervalNanos * i / numberOfConnections;
+			final Random random = new Random(i);
+
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (long due = firstDue; due < endTime; due += intervalNanos) {
+							long now = System.nanoTime();
+							while (now < due) {
+								LockSupport.parkNanos(due - now);
+								now = System.nanoTime();
+							}
+							execute(connection, protocol, random, due, due >= measureFrom);
+						}
+					} finally {
+						doneSignal.countDown();
+					}
+				}
+			}, "load-generator-" + i).start();
+		}
+
+		doneSignal.await();
+		for (MessageHandler connection : connections) {
+			connection.close();
+		}
+
+		report(endTime - measureFrom);
+	}
+
+	private void execute(MessageHandler connection, Protocol protocol, Random random, long due, boolean isMeasured) {
+		int commandIndex = pickCommand(random);
+		String name = "load" + random.nextInt(numberOfNames);
+		String protocolToken = protocol == Protocol.TCP ? "T" : "U";
+
+		String command = null;
+		switch (COMMAND_TYPES[commandIndex]) {
+			case BOOKSEAT:
+				command = String.format("bookSeat %s %d %s", name, 1 + random.nextInt(numberOfSeats), protocolToken);
+				break;
+			default:
+				command = String.format("%s %s %s", COMMAND_TYPES[commandIndex].name().toLowerCase(), name, protocolToken);
+				break;
+		}
+
+		long sendTime = System.nanoTime();
+		try {
+			String response;
+			if (protocol == Protocol.UDP) {
+				response = ((ClientUDPMessageHandler) connection).sendRequest(command);
+			} else {
+				connection.sendMessage(command);
+				response = connection.receiveMessage();
+			}
+			long responseTime = System.nanoTime();
+
+			if (response.startsWith("Error")) {
+				errors.increment();
+			} else if (response.equals(AdmissionController.BUSY)) {
+				busy.increment();
+			} else if (isMeasured) {
+				latencies[commandIndex].record(responseTime - due);
+				serviceTimes.record(responseTime - sendTime);
+				completed.increment();
+			}
+		} catch (SocketTimeoutException e) {
+			timeouts.increment();
+			if (isMeasured) {
+				long giveUpTime = System.nanoTime();
+				latencies[commandIndex].record(giveUpTime - due);
+				serviceTimes.record(giveUpTime - sendTime);
+			}
+		} catch (Exception e) {
+			errors.increment();
+		}
+	}
+
+	private int pickCommand(Random random) {
+		int total = 0;
+		for (int weight : mix) {
+			total += weight;
+		}
+
+		int pick = random.nextInt(total);
+		for (int i = 0; i < mix.length; i++) {
+			pick -= mix[i];
+			if (pick < 0) {
+				return i;
+			}
+		}
+		return mix.length - 1;
+	}
+
+	private void report(long measuredNanos) {
+		LatencyHistogram allLatencies = new LatencyHistogram();
+		for (LatencyHistogram histogram : latencies) {
+			allLatencies.add(histogram);
+		}
+
+		System.out.println(String.format("target rate:  %.0f commands/s over %d connections (%d UDP)", rate, numberOfConnections, numberOfUDPConnections));
+		System.out.println(String.format("throughput:   %.0f commands/s", completed.sum() * 1e9 / measuredNanos));
+		System.out.println(String.format("completed:    %d   errors: %d   busy: %d   UDP timeouts: %d", completed.sum(), errors.sum(), busy.sum(), timeouts.sum()));
+		printHistogram("latency", allLatencies);
+		printHistogram("service time", serviceTimes);
+		for (int i = 0; i < COMMAND_TYPES.length; i++) {
+			printHistogram("  " + COMMAND_TYPES[i].name().toLowerCase(), latencies[i]);
+		}
+	}
+
+	private static void printHistogram(String name, LatencyHistogram histogram) {
+		if (histogram.getCount() == 0) {
+			return;
+		}
+
+		System.out.println(String.format("%-14s p50=%9.1fus p90=%9.1fus p99=%9.1fus p999=%9.1fus max=%9.1fus",
+				name + ":",
+				histogram.getValueAtPercentile(50) / 1000.0,
+				histogram.getValueAtPercentile(90) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0,
+				histogram.getValueAtPercentile(99.9) / 1000.0,
+				histogram.getMax() / 1000.0));
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.out.println("ERROR: Provide 3 arguments");
+			System.out.println("\t(1) <hostAddress>: the address of the server");
+			System.out.println("\t(2) <tcpPort>: the port number for TCP connection");
+			System.out.println("\t(3) <udpPort>: the port number for UDP connection");
+			System.out.println("Followed by any of these options:");
+			System.out.println("\t--rate=<commands/s>: how many commands to send per second, in total (default: 1000)");
+			System.out.println("\t--duration=<seconds>: how long to measure for (default: 10)");
+			System.out.println("\t--warmup=<seconds>: how long to send commands before measuring (default: 2)");
+			System.out.println("\t--connections=<count>: how many connections to spread the commands over (default: 16)");
+			System.out.println("\t--udp-percent=<percent>: how many of the connections use UDP instead of TCP (default: 0)");
+			System.out.println("\t--mix=<command:weight,...>: how often each command is sent (default: reserve:25,bookseat:25,search:25,delete:25)");
+			System.out.println("\t--names=<count>: how many different names to use (default: 10000)");
+			System.out.println("\t--seats=<count>: the range of seat numbers bookSeat asks for (default: 10000)");
+			System.out.println("\t--udp-timeout=<ms>: how long to wait for a UDP response before counting it as lost (default: 1000)");
+			System.exit(1);
+		}
+
+		try {
+			ServerOptions options = ServerOptions.parse(args, 3);
+			LoadGenerator loadGenerator = new LoadGenerator(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), options);
+			loadGenerator.run();
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			System.out.println("Error: the load generator failed.");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
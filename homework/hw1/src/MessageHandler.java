@@ -1,3 +1,4 @@
+import java.io.Closeable;
 import java.io.IOException;
 
 // This interface allows us to send and receive messages without having knowledge
@@ -7,7 +8,8 @@ import java.io.IOException;
 //      response = messageHandler.receiveMessage();
 // In this example, whether the protocol is TCP or UDP, it doesn't affect how we
 // send or receive messages from this level of abstraction.
-public interface MessageHandler {
+// A MessageHandler is Closeable, so the server's ConnectionRegistry can close it, e.g. when it's idle for too long.
+public interface MessageHandler extends Closeable {
     // sends a message over a connection
     void sendMessage(String message) throws IOException;
     
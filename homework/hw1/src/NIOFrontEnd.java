@@ -0,0 +1,376 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A non-blocking alternative to the thread-per-connection TCPMessageHandler/CommandHandler model.
+//
+// A small, fixed number of event loops serve every TCP connection. Each event loop owns a Selector and the
+// connections registered with it. The first event loop also owns the ServerSocketChannel, and hands every
+// accepted connection to the next event loop in round-robin order.
+//
+// The wire protocol is the same newline terminated text protocol that TCPMessageHandler speaks:
+//      - bytes are accumulated in a per-connection read buffer until a full line has arrived
+//      - each line is executed as a command, in order, on the connection's event loop
+//      - responses are queued in a per-connection write buffer, which is flushed whenever the socket is writable
+//      - once more than MAX_PENDING_WRITE_LENGTH bytes of responses are waiting, the connection isn't read from until
+//        the client has taken them, so a client that keeps sending commands but never reads can't run the heap out
+// A connection whose command fails to execute is closed, just like CommandHandler stops serving it.
+// A connection that starts with BinaryProtocol.MAGIC speaks the binary protocol instead, framed the same way.
+// Every connection is registered with the server's ConnectionRegistry. Once it is full, new connections are sent
+// a BUSY line and closed right away. The registry may also close a connection that has been idle for too long,
+// from its own thread, in which case the connection's event loop is woken up to notice.
+public class NIOFrontEnd {
+	private static final int INITIAL_BUFFER_LENGTH = GlobalConstants.MAX_BUFFER_LENGTH;
+	private static final int MAX_LINE_LENGTH = 64 * GlobalConstants.MAX_BUFFER_LENGTH;
+	private static final int MAX_PENDING_WRITE_LENGTH = 64 * GlobalConstants.MAX_BUFFER_LENGTH;
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private ServerSocketChannel serverSocketChannel;
+	private CommandExecutor commandExecutor;
+	private ServerStats stats;
+	private ConnectionRegistry connectionRegistry;
+
+	private EventLoop[] eventLoops;
+	private Thread[] eventLoopThreads;
+	private int nextEventLoop;
+
+	private volatile boolean isRunning;
+
+	public NIOFrontEnd(int tcpPort, int numberOfEventLoops, ConnectionRegistry connectionRegistry, ServerStats stats, CommandExecutor commandExecutor) throws IOException {
+		assert (numberOfEventLoops > 0);
+
+		this.commandExecutor = commandExecutor;
+		this.stats = stats;
+		this.connectionRegistry = connectionRegistry;
+
+		this.serverSocketChannel = ServerSocketChannel.open();
+		this.serverSocketChannel.bind(new InetSocketAddress(tcpPort));
+		this.serverSocketChannel.configureBlocking(false);
+
+		this.eventLoops = new EventLoop[numberOfEventLoops];
+		this.eventLoopThreads = new Thread[numberOfEventLoops];
+		for (int i = 0; i < numberOfEventLoops; i++) {
+			eventLoops[i] = new EventLoop();
+			eventLoopThreads[i] = new Thread(eventLoops[i], "nio-event-loop-" + i);
+		}
+
+		// The first event loop is also in charge of accepting new connections
+		serverSocketChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public void start() {
+		isRunning = true;
+		for (Thread eventLoopThread : eventLoopThreads) {
+			eventLoopThread.start();
+		}
+	}
+
+	public void close() {
+		isRunning = false;
+
+		try {
+			serverSocketChannel.close();
+		} catch (IOException e) {
+
+		}
+
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.selector.wakeup();
+		}
+	}
+
+	// Called on the first event loop whenever the server socket has a pending connection
+	private void acceptIncomingTCPConnections() throws IOException {
+		SocketChannel socketChannel;
+		while ((socketChannel = serverSocketChannel.accept()) != null) {
+			socketChannel.configureBlocking(false);
+
+			EventLoop eventLoop = eventLoops[nextEventLoop];
+			Connection connection = new Connection(socketChannel, eventLoop);
+			connection.registration = connectionRegistry.register(connection);
+			if (connection.registration == null) {
+				// The socket's send buffer is empty, so this short line goes out without blocking
+				stats.busy();
+				try {
+					socketChannel.write(CHARSET.encode(AdmissionController.BUSY + "\n"));
+				} catch (IOException e) {
+
+				}
+				closeQuietly(socketChannel);
+				continue;
+			}
+
+			nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+			eventLoop.register(connection);
+		}
+	}
+
+	private class EventLoop implements Runnable {
+		private Selector selector;
+
+		// connections that were accepted on another event loop, waiting to be registered with this selector
+		private Queue<Connection> pendingRegistrations;
+
+		public EventLoop() throws IOException {
+			this.selector = Selector.open();
+			this.pendingRegistrations = new ConcurrentLinkedQueue<Connection>();
+		}
+
+		// A Selector can only be safely registered with from its own thread, so hand the connection over and wake it up
+		public void register(Connection connection) {
+			pendingRegistrations.add(connection);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (isRunning) {
+					selector.select();
+					registerPendingConnections();
+
+					Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+					while (selectedKeys.hasNext()) {
+						SelectionKey key = selectedKeys.next();
+						selectedKeys.remove();
+						handleKey(key);
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				// The front end can't do anything useful without its selector
+			} finally {
+				closeAllConnections();
+			}
+		}
+
+		private void registerPendingConnections() {
+			Connection connection;
+			while ((connection = pendingRegistrations.poll()) != null) {
+				try {
+					connection.socketChannel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					// including a connection the registry closed before it got here
+					connection.closeAndDeregister();
+				}
+			}
+		}
+
+		private void handleKey(SelectionKey key) {
+			if (!key.isValid()) {
+				return;
+			}
+
+			if (key.isAcceptable()) {
+				try {
+					acceptIncomingTCPConnections();
+				} catch (IOException e) {
+					// Leave the remaining connections alone, the next select() will retry the accept
+				}
+				return;
+			}
+
+			Connection connection = (Connection) key.attachment();
+			try {
+				if (key.isReadable()) {
+					connection.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					connection.flush();
+				}
+				if (key.isValid()) {
+					key.interestOps(connection.getInterestOps());
+				}
+			} catch (Exception e) {
+				key.cancel();
+				connection.closeAndDeregister();
+			}
+		}
+
+		private void closeAllConnections() {
+			try {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).closeAndDeregister();
+					}
+				}
+				selector.close();
+			} catch (IOException | ClosedSelectorException e) {
+
+			}
+
+			Connection connection;
+			while ((connection = pendingRegistrations.poll()) != null) {
+				connection.closeAndDeregister();
+			}
+		}
+	}
+
+	// Per-connection state. It is only ever touched by the event loop that the connection is registered with,
+	// apart from close(), which the ConnectionRegistry may call from its own thread.
+	private class Connection implements Closeable {
+		private SocketChannel socketChannel;
+		private EventLoop eventLoop;
+		private ConnectionRegistry.Registration registration;
+		private ByteBuffer readBuffer;
+		private ByteBuffer writeBuffer;
+
+		private boolean protocolNegotiated;
+		private boolean useBinaryProtocol;
+
+		public Connection(SocketChannel socketChannel, EventLoop eventLoop) {
+			this.socketChannel = socketChannel;
+			this.eventLoop = eventLoop;
+			this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+			this.writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+			this.writeBuffer.flip();
+		}
+
+		// Reads whatever is available, and executes every complete line (or binary frame) that has arrived
+		public void read() throws IOException, CommandParser.InvalidCommandException {
+			int bytesRead = socketChannel.read(readBuffer);
+			if (bytesRead < 0) {
+				throw new IOException("Connection closed by the client");
+			}
+			connectionRegistry.touch(registration);
+
+			readBuffer.flip();
+
+			// The first byte of a connection tells us whether it speaks text or the binary protocol
+			if (!protocolNegotiated && readBuffer.hasRemaining()) {
+				protocolNegotiated = true;
+				if ((readBuffer.get(readBuffer.position()) & 0xFF) == BinaryProtocol.MAGIC) {
+					readBuffer.get();
+					useBinaryProtocol = true;
+				}
+			}
+
+			if (useBinaryProtocol) {
+				executeFrames();
+			} else {
+				executeLines();
+			}
+			readBuffer.compact();
+
+			// A partial line or frame is still pending. Make room for the rest of it, within reason.
+			if (!readBuffer.hasRemaining()) {
+				if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+					throw new IOException("Error: command line too long");
+				}
+				readBuffer = grow(readBuffer, readBuffer.capacity() * 2);
+			}
+
+			flush();
+		}
+
+		private void executeLines() throws CommandParser.InvalidCommandException {
+			int lineStart = readBuffer.position();
+			for (int i = readBuffer.position(); i < readBuffer.limit(); i++) {
+				if (readBuffer.get(i) == '\n') {
+					executeLine(lineStart, i);
+					lineStart = i + 1;
+				}
+			}
+			readBuffer.position(lineStart);
+		}
+
+		private void executeFrames() throws IOException {
+			ByteBuffer payload;
+			while ((payload = BinaryProtocol.readFrame(readBuffer)) != null) {
+				ByteBuffer response = commandExecutor.executeBinaryFrame(payload);
+
+				long respondTime = System.nanoTime();
+				queueResponse(response);
+				stats.recordStage(ServerStats.Stage.RESPOND, System.nanoTime() - respondTime);
+			}
+		}
+
+		private void executeLine(int start, int end) throws CommandParser.InvalidCommandException {
+			ByteBuffer line = readBuffer.duplicate();
+			line.limit(end);
+			line.position(start);
+
+			String commandString = CHARSET.decode(line).toString().trim();
+			String response = commandExecutor.executeCommand(commandString);
+
+			// The socket is written once all the lines that arrived together are executed, so this is the time it
+			// takes to encode and buffer the response
+			long respondTime = System.nanoTime();
+			queueResponse(response);
+			stats.recordStage(ServerStats.Stage.RESPOND, System.nanoTime() - respondTime);
+		}
+
+		private void queueResponse(String response) {
+			queueResponse(CHARSET.encode(CharBuffer.wrap(response + "\n")));
+		}
+
+		private void queueResponse(ByteBuffer encoded) {
+			writeBuffer.compact();
+			if (writeBuffer.remaining() < encoded.remaining()) {
+				writeBuffer = grow(writeBuffer, Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + encoded.remaining()));
+			}
+			writeBuffer.put(encoded);
+			writeBuffer.flip();
+		}
+
+		// Writes as much of the pending responses as the socket will take right now
+		public void flush() throws IOException {
+			if (writeBuffer.hasRemaining()) {
+				socketChannel.write(writeBuffer);
+			}
+
+			// Don't hang on to a big buffer after a burst of responses
+			if (!writeBuffer.hasRemaining() && writeBuffer.capacity() > INITIAL_BUFFER_LENGTH) {
+				writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+				writeBuffer.flip();
+			}
+		}
+
+		// Stop reading while too many responses are waiting for the client, and start again once it has caught up
+		public int getInterestOps() {
+			if (writeBuffer.remaining() > MAX_PENDING_WRITE_LENGTH) {
+				return SelectionKey.OP_WRITE;
+			}
+			return writeBuffer.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+		}
+
+		// A channel that is closed while it's registered with a selector isn't really closed until the selector
+		// gets around to it, so don't leave the event loop sleeping in select()
+		@Override
+		public void close() {
+			closeQuietly(socketChannel);
+			eventLoop.selector.wakeup();
+		}
+
+		public void closeAndDeregister() {
+			closeQuietly(socketChannel);
+			connectionRegistry.deregister(registration);
+		}
+
+		// Copies the contents of buffer (which is being written to) into a bigger buffer, which is left in the same state
+		private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			grown.put(buffer);
+			return grown;
+		}
+	}
+
+	private static void closeQuietly(SocketChannel socketChannel) {
+		try {
+			socketChannel.close();
+		} catch (IOException e) {
+			// Nothing more we can do for this connection
+		}
+	}
+}
@@ -0,0 +1,330 @@
+import java.util.Arrays;
+
+// A map from name to seat, built for the millions of small entries a seat inventory has.
+// A HashMap<String, Integer> spends over 100 bytes on each one: the entry, the String, its byte array and the boxed
+// Integer, all separate objects in separate places in memory. Here an entry is 16 bytes in a single int array, plus
+// its name in a shared byte array, so it takes several times less memory, and a lookup touches one or two cache
+// lines instead of four or five.
+//
+// Names are kept as UTF-8 in an arena (one big byte array), each one a varint length followed by its bytes.
+// The slots are an open addressing hash table with linear probing, four ints per slot:
+//      [hash][offset of the name in the arena][first seat][number of seats]
+// A slot whose first seat is EMPTY has never been used, and one that is DELETED held a name that was removed.
+// Lookups take any CharSequence, hash its UTF-8 bytes, encoding the name as they go, and only compare the names whose
+// hash matches. Nothing is allocated by a lookup, so a name can be looked up straight from the request, through a
+// CharSlice, without a String ever being built for it. put() copies the name into the arena.
+// Removed names leave garbage in the arena, and DELETED slots behind. Both are cleaned up by the next rehash().
+//
+// A name's slot can be found once with indexOf(), and then read or removed without looking the name up again.
+// It backs the per-event inventories (BitSetSeatInventory), the default ConcurrentSeatInventory keeps its own map.
+// This class is not thread safe. The caller is expected to serialize access to it. A lookup that races a change
+// may give a wrong answer or throw, but it always returns, so an optimistic reader can check and retry it.
+// Example usage:
+//      NameSeatMap nameToSeat = new NameSeatMap();
+//      nameToSeat.put("alice", 12, 1);
+//      int slot = nameToSeat.indexOf("alice");
+//      int seatNum = nameToSeat.getSeatNum(slot); // 12
+//      nameToSeat.removeAt(slot);
+public class NameSeatMap {
+	private static final int EMPTY = 0;
+	private static final int DELETED = -1;
+
+	private static final int SLOT_LENGTH = 4;
+	private static final int HASH = 0;
+	private static final int NAME_OFFSET = 1;
+	private static final int SEAT_NUM = 2;
+	private static final int NUMBER_OF_SEATS = 3;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int INITIAL_ARENA_LENGTH = 256;
+
+	private int[] slots;
+	// the number of slots, always a power of two
+	private int capacity;
+	private int size;
+	private int numberOfDeletedSlots;
+
+	private byte[] names;
+	private int namesLength;
+	// the bytes of the arena that belong to removed names
+	private int garbageLength;
+
+	public NameSeatMap() {
+		this.capacity = INITIAL_CAPACITY;
+		this.slots = new int[capacity * SLOT_LENGTH];
+		this.names = new byte[INITIAL_ARENA_LENGTH];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean containsKey(CharSequence name) {
+		return indexOf(name, 0, name.length()) >= 0;
+	}
+
+	// Returns the first seat of name, or SeatInventory.NOT_FOUND
+	public int get(CharSequence name) {
+		int slot = indexOf(name, 0, name.length());
+		return slot >= 0 ? slots[slot + SEAT_NUM] : SeatInventory.NOT_FOUND;
+	}
+
+	public int indexOf(CharSequence name) {
+		return indexOf(name, 0, name.length());
+	}
+
+	// Returns the slot of the name made of the characters from start to end - 1 of s, or -1 if it isn't in the map
+	private int indexOf(CharSequence s, int start, int end) {
+		int hash = hash(s, start, end);
+		int mask = capacity - 1;
+		// The table always has an EMPTY slot, so the probes only run out for a reader that races a writer
+		// (see PublishedSeatInventory), which may see the fields half way through a rehash()
+		int i = hash & mask;
+		for (int probes = 0; probes <= mask; probes++, i = (i + 1) & mask) {
+			int slot = i * SLOT_LENGTH;
+			int seatNum = slots[slot + SEAT_NUM];
+			if (seatNum == EMPTY) {
+				return -1;
+			} else if (seatNum != DELETED && slots[slot + HASH] == hash && nameEquals(slots[slot + NAME_OFFSET], s, start, end)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	public int getSeatNum(int slot) {
+		return slots[slot + SEAT_NUM];
+	}
+
+	public int getNumberOfSeats(int slot) {
+		return slots[slot + NUMBER_OF_SEATS];
+	}
+
+	// Adds name, which must not be in the map yet. seatNum must be at least 1.
+	public void put(CharSequence name, int seatNum, int numberOfSeats) {
+		assert (seatNum > 0 && indexOf(name) < 0);
+
+		// Keep the table at most 3/4 full, counting the DELETED slots, which make lookups longer too
+		if (4 * (size + numberOfDeletedSlots + 1) > 3 * capacity) {
+			rehash(size + 1);
+		}
+
+		int hash = hash(name, 0, name.length());
+		int nameOffset = append(name);
+
+		int slot = insert(slots, capacity, hash);
+		if (slots[slot + SEAT_NUM] == DELETED) {
+			numberOfDeletedSlots--;
+		}
+		slots[slot + HASH] = hash;
+		slots[slot + NAME_OFFSET] = nameOffset;
+		slots[slot + SEAT_NUM] = seatNum;
+		slots[slot + NUMBER_OF_SEATS] = numberOfSeats;
+		size++;
+	}
+
+	// Removes the entry in slot, which indexOf() returned
+	public void removeAt(int slot) {
+		int varint = readVarint(slots[slot + NAME_OFFSET]);
+		garbageLength += (varint & 7) + (varint >>> 3);
+
+		slots[slot + SEAT_NUM] = DELETED;
+		size--;
+		numberOfDeletedSlots++;
+	}
+
+	// Copies the name to the end of the arena, and returns where it starts
+	private int append(CharSequence name) {
+		int length = utf8Length(name, 0, name.length());
+		if (namesLength + 5 + length > names.length) {
+			// Get rid of the garbage first, if that makes enough room
+			if (garbageLength > namesLength / 2) {
+				rehash(size);
+			}
+			if (namesLength + 5 + length > names.length) {
+				names = Arrays.copyOf(names, Math.max(2 * names.length, namesLength + 5 + length));
+			}
+		}
+
+		int nameOffset = namesLength;
+		int position = writeVarint(nameOffset, length);
+		for (int i = 0; i < name.length(); i++) {
+			int codePoint = codePointAt(name, i, name.length());
+			if (codePoint > 0xffff) {
+				i++;
+			}
+			int n = utf8Length(codePoint);
+			for (int b = 0; b < n; b++) {
+				names[position++] = (byte) utf8Byte(codePoint, n, b);
+			}
+		}
+		namesLength = position;
+		return nameOffset;
+	}
+
+	// Moves every entry into a fresh table with room for at least numberOfEntries of them, and copies their names
+	// into a fresh arena. This drops the DELETED slots, and the names that were removed.
+	private void rehash(int numberOfEntries) {
+		int newCapacity = INITIAL_CAPACITY;
+		while (2 * numberOfEntries > newCapacity) {
+			newCapacity *= 2;
+		}
+
+		int[] newSlots = new int[newCapacity * SLOT_LENGTH];
+		byte[] newNames = new byte[Math.max(INITIAL_ARENA_LENGTH, 2 * (namesLength - garbageLength))];
+		int newNamesLength = 0;
+
+		for (int slot = 0; slot < slots.length; slot += SLOT_LENGTH) {
+			int seatNum = slots[slot + SEAT_NUM];
+			if (seatNum == EMPTY || seatNum == DELETED) {
+				continue;
+			}
+
+			int nameOffset = slots[slot + NAME_OFFSET];
+			int varint = readVarint(nameOffset);
+			int recordLength = (varint & 7) + (varint >>> 3);
+			System.arraycopy(names, nameOffset, newNames, newNamesLength, recordLength);
+
+			int hash = slots[slot + HASH];
+			int newSlot = insert(newSlots, newCapacity, hash);
+			newSlots[newSlot + HASH] = hash;
+			newSlots[newSlot + NAME_OFFSET] = newNamesLength;
+			newSlots[newSlot + SEAT_NUM] = seatNum;
+			newSlots[newSlot + NUMBER_OF_SEATS] = slots[slot + NUMBER_OF_SEATS];
+			newNamesLength += recordLength;
+		}
+
+		this.slots = newSlots;
+		this.capacity = newCapacity;
+		this.numberOfDeletedSlots = 0;
+		this.names = newNames;
+		this.namesLength = newNamesLength;
+		this.garbageLength = 0;
+	}
+
+	// Returns the first slot along hash's probe sequence that a new entry may go in
+	private static int insert(int[] slots, int capacity, int hash) {
+		int mask = capacity - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			int slot = i * SLOT_LENGTH;
+			int seatNum = slots[slot + SEAT_NUM];
+			if (seatNum == EMPTY || seatNum == DELETED) {
+				return slot;
+			}
+		}
+	}
+
+	// Compares the name at nameOffset with the UTF-8 encoding of s, encoding it as it goes
+	private boolean nameEquals(int nameOffset, CharSequence s, int start, int end) {
+		int varint = readVarint(nameOffset);
+		int position = nameOffset + (varint & 7);
+		int nameEnd = position + (varint >>> 3);
+
+		for (int i = start; i < end; i++) {
+			int codePoint = codePointAt(s, i, end);
+			if (codePoint > 0xffff) {
+				i++;
+			}
+			int n = utf8Length(codePoint);
+			if (position + n > nameEnd) {
+				return false;
+			}
+			for (int b = 0; b < n; b++) {
+				if (names[position++] != (byte) utf8Byte(codePoint, n, b)) {
+					return false;
+				}
+			}
+		}
+		return position == nameEnd;
+	}
+
+	// A name's length is written 7 bits at a time, low bits first, with the high bit set on every byte but the last.
+	// Returns where the name's bytes start.
+	private int writeVarint(int position, int value) {
+		while (value >= 0x80) {
+			names[position++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		names[position++] = (byte) value;
+		return position;
+	}
+
+	// Returns the length of the name at position, shifted left by 3, or-ed with the number of bytes the length took up
+	private int readVarint(int position) {
+		int value = 0;
+		int n = 0;
+		int b;
+		do {
+			b = names[position + n];
+			value |= (b & 0x7f) << (7 * n);
+			n++;
+		} while ((b & 0x80) != 0);
+		return (value << 3) | n;
+	}
+
+	// FNV-1a over the UTF-8 bytes, with the high bits mixed into the low ones, which are the ones that pick the slot
+	private static int hash(CharSequence s, int start, int end) {
+		int hash = 0x811c9dc5;
+		for (int i = start; i < end; i++) {
+			int codePoint = codePointAt(s, i, end);
+			if (codePoint > 0xffff) {
+				i++;
+			}
+			int n = utf8Length(codePoint);
+			for (int b = 0; b < n; b++) {
+				hash ^= utf8Byte(codePoint, n, b);
+				hash *= 0x01000193;
+			}
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int utf8Length(CharSequence s, int start, int end) {
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			int codePoint = codePointAt(s, i, end);
+			if (codePoint > 0xffff) {
+				i++;
+			}
+			length += utf8Length(codePoint);
+		}
+		return length;
+	}
+
+	// The code point at s[i], which takes up two chars if it is above 0xffff.
+	// A lone surrogate becomes '?', the same as String.getBytes() does.
+	private static int codePointAt(CharSequence s, int i, int end) {
+		char c = s.charAt(i);
+		if (!Character.isSurrogate(c)) {
+			return c;
+		} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+			return Character.toCodePoint(c, s.charAt(i + 1));
+		} else {
+			return '?';
+		}
+	}
+
+	private static int utf8Length(int codePoint) {
+		if (codePoint < 0x80) {
+			return 1;
+		} else if (codePoint < 0x800) {
+			return 2;
+		} else if (codePoint < 0x10000) {
+			return 3;
+		} else {
+			return 4;
+		}
+	}
+
+	// the b-th of the n bytes that encode codePoint in UTF-8
+	private static int utf8Byte(int codePoint, int n, int b) {
+		if (n == 1) {
+			return codePoint;
+		} else if (b == 0) {
+			// 110xxxxx, 1110xxxx or 11110xxx, followed by the top bits of the code point
+			return ((0xf00 >> n) & 0xff) | (codePoint >> (6 * (n - 1)));
+		} else {
+			return 0x80 | ((codePoint >> (6 * (n - 1 - b))) & 0x3f);
+		}
+	}
+}
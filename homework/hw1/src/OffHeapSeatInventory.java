@@ -0,0 +1,378 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A SeatInventory for stadium sized venues, that keeps its reservations outside the Java heap.
+// A HashMap<String, Integer> costs well over 100 bytes of heap per reservation (the entry, the String, its char array
+// and the boxed Integer), and the garbage collector has to trace all of them. Here, a reservation costs about
+// 40 bytes of native memory and nothing on the heap, so the heap (and the GC pauses) stay the same size no matter
+// how many seats are sold.
+//
+// Two direct buffers hold the reservations:
+//      names - an arena of names, each one an int length followed by its UTF-8 bytes
+//      index - an open addressing hash table (linear probing) from name to seat, with a 16 byte slot per entry:
+//              [hash][offset of the name in names][first seat][number of seats]
+// A slot whose first seat is EMPTY has never been used, and one that is DELETED used to hold a name that was deleted.
+// A lookup hashes the UTF-8 bytes of the name, and only compares the bytes of the names whose hash matches.
+// Deleted names leave garbage behind in the arena, and DELETED slots in the index. Once either gets too big,
+// rehash() copies the live entries into fresh buffers.
+//
+// Free seats are tracked by a FreeRunIndex, which finds both the lowest free seat and the lowest block of adjacent
+// free seats. It is a few bits per seat, allocated once up front.
+//
+// Every command that changes the inventory takes the write lock, and search() only takes the read lock,
+// so any number of searches can run at the same time.
+// Example usage:
+//      SeatInventory stadium = new OffHeapSeatInventory(5000000);
+//      int seatNum = stadium.reserve("alice");
+public class OffHeapSeatInventory implements SeatInventory {
+	private static final int EMPTY = 0;
+	private static final int DELETED = -1;
+
+	private static final int SLOT_LENGTH = 16;
+	private static final int HASH = 0;
+	private static final int NAME_OFFSET = 4;
+	private static final int SEAT_NUM = 8;
+	private static final int NUMBER_OF_SEATS = 12;
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int INITIAL_ARENA_LENGTH = 16 * 1024;
+
+	private int maxNumberOfSeats;
+	private int numberOfReservedSeats;
+	private FreeRunIndex freeSeats;
+
+	private ReadWriteLock lock;
+
+	private ByteBuffer index;
+	// the number of slots in index, always a power of two
+	private int capacity;
+	private int numberOfEntries;
+	private int numberOfDeletedSlots;
+
+	private ByteBuffer names;
+	private int namesLength;
+	// the bytes of names that belong to deleted entries
+	private int garbageLength;
+
+	public OffHeapSeatInventory(int maxNumberOfSeats) {
+		assert (maxNumberOfSeats >= 0);
+
+		this.maxNumberOfSeats = maxNumberOfSeats;
+		this.freeSeats = new FreeRunIndex(maxNumberOfSeats);
+		this.lock = new ReentrantReadWriteLock();
+
+		this.capacity = INITIAL_CAPACITY;
+		this.index = allocate(capacity * SLOT_LENGTH);
+		this.names = allocate(INITIAL_ARENA_LENGTH);
+	}
+
+	@Override
+	public int reserve(CharSequence name) {
+		byte[] nameBytes = name.toString().getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			if (numberOfReservedSeats == maxNumberOfSeats) {
+				return SOLD_OUT;
+			} else if (find(nameBytes) >= 0) {
+				return ALREADY_BOOKED;
+			}
+
+			int seatNum = freeSeats.findRun(1) + 1;
+			assign(nameBytes, seatNum, 1);
+			return seatNum;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int bookSeat(CharSequence name, int seatNum) {
+		if (seatNum < 1 || seatNum > maxNumberOfSeats) {
+			return INVALID_SEAT;
+		}
+
+		byte[] nameBytes = name.toString().getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			if (numberOfReservedSeats == maxNumberOfSeats) {
+				return SOLD_OUT;
+			} else if (find(nameBytes) >= 0) {
+				return ALREADY_BOOKED;
+			} else if (!freeSeats.isFree(seatNum - 1)) {
+				return SEAT_UNAVAILABLE;
+			}
+
+			assign(nameBytes, seatNum, 1);
+			return seatNum;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int reserveBlock(CharSequence name, int numberOfSeats) {
+		if (numberOfSeats < 1 || numberOfSeats > maxNumberOfSeats) {
+			return INVALID_SEAT;
+		}
+
+		byte[] nameBytes = name.toString().getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			if (numberOfReservedSeats + numberOfSeats > maxNumberOfSeats) {
+				return SOLD_OUT;
+			} else if (find(nameBytes) >= 0) {
+				return ALREADY_BOOKED;
+			}
+
+			int start = freeSeats.findRun(numberOfSeats);
+			if (start < 0) {
+				return SEAT_UNAVAILABLE;
+			}
+
+			assign(nameBytes, start + 1, numberOfSeats);
+			return start + 1;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int bookRange(CharSequence name, int firstSeatNum, int lastSeatNum) {
+		int numberOfSeats = lastSeatNum - firstSeatNum + 1;
+		if (firstSeatNum < 1 || lastSeatNum > maxNumberOfSeats || numberOfSeats < 1) {
+			return INVALID_SEAT;
+		}
+
+		byte[] nameBytes = name.toString().getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			if (numberOfReservedSeats + numberOfSeats > maxNumberOfSeats) {
+				return SOLD_OUT;
+			} else if (find(nameBytes) >= 0) {
+				return ALREADY_BOOKED;
+			} else if (!freeSeats.isRangeFree(firstSeatNum - 1, numberOfSeats)) {
+				return SEAT_UNAVAILABLE;
+			}
+
+			assign(nameBytes, firstSeatNum, numberOfSeats);
+			return firstSeatNum;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int search(CharSequence name) {
+		byte[] nameBytes = name.toString().getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			int slot = find(nameBytes);
+			return slot >= 0 ? index.getInt(slot + SEAT_NUM) : NOT_FOUND;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int delete(CharSequence name) {
+		byte[] nameBytes = name.toString().getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = find(nameBytes);
+			if (slot < 0) {
+				return NOT_FOUND;
+			}
+
+			int seatNum = index.getInt(slot + SEAT_NUM);
+			int numberOfSeats = index.getInt(slot + NUMBER_OF_SEATS);
+			index.putInt(slot + SEAT_NUM, DELETED);
+			numberOfEntries--;
+			numberOfDeletedSlots++;
+			garbageLength += 4 + nameBytes.length;
+
+			freeSeats.free(seatNum - 1, numberOfSeats);
+			numberOfReservedSeats -= numberOfSeats;
+			return seatNum;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int getMaxNumberOfSeats() {
+		return maxNumberOfSeats;
+	}
+
+	@Override
+	public int getNumberOfReservedSeats() {
+		lock.readLock().lock();
+		try {
+			return numberOfReservedSeats;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// the number of bytes of native memory the reservations take up right now
+	public long getOffHeapBytes() {
+		lock.readLock().lock();
+		try {
+			return (long) index.capacity() + names.capacity();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Returns the position of name's slot in index, or -1 if it has none
+	private int find(byte[] nameBytes) {
+		int hash = hash(nameBytes);
+		int mask = capacity - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			int slot = i * SLOT_LENGTH;
+			int seatNum = index.getInt(slot + SEAT_NUM);
+			if (seatNum == EMPTY) {
+				return -1;
+			} else if (seatNum != DELETED && index.getInt(slot + HASH) == hash && nameEquals(index.getInt(slot + NAME_OFFSET), nameBytes)) {
+				return slot;
+			}
+		}
+	}
+
+	// Only call this once find() has made sure name isn't in the index yet
+	private void assign(byte[] nameBytes, int seatNum, int numberOfSeats) {
+		// Keep the index at most 3/4 full, counting the DELETED slots, which make lookups longer too
+		if (4 * (numberOfEntries + numberOfDeletedSlots + 1) > 3 * capacity) {
+			rehash(numberOfEntries + 1);
+		}
+		if (namesLength + 4 + nameBytes.length > names.capacity()) {
+			if (garbageLength > namesLength / 2) {
+				rehash(numberOfEntries + 1);
+			}
+			names = reallocate(names, namesLength, namesLength + 4 + nameBytes.length);
+		}
+
+		int nameOffset = namesLength;
+		names.putInt(nameOffset, nameBytes.length);
+		for (int i = 0; i < nameBytes.length; i++) {
+			names.put(nameOffset + 4 + i, nameBytes[i]);
+		}
+		namesLength += 4 + nameBytes.length;
+
+		int hash = hash(nameBytes);
+		int slot = insert(index, capacity, hash);
+		if (index.getInt(slot + SEAT_NUM) == DELETED) {
+			numberOfDeletedSlots--;
+		}
+		index.putInt(slot + HASH, hash);
+		index.putInt(slot + NAME_OFFSET, nameOffset);
+		index.putInt(slot + SEAT_NUM, seatNum);
+		index.putInt(slot + NUMBER_OF_SEATS, numberOfSeats);
+		numberOfEntries++;
+
+		freeSeats.take(seatNum - 1, numberOfSeats);
+		numberOfReservedSeats += numberOfSeats;
+	}
+
+	// Returns the position of the first slot along hash's probe sequence that a new entry may go in
+	private static int insert(ByteBuffer index, int capacity, int hash) {
+		int mask = capacity - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			int slot = i * SLOT_LENGTH;
+			int seatNum = index.getInt(slot + SEAT_NUM);
+			if (seatNum == EMPTY || seatNum == DELETED) {
+				return slot;
+			}
+		}
+	}
+
+	// Copies every live entry, and its name, into fresh buffers that have room for at least numberOfEntries of them.
+	// This drops the DELETED slots, and the names of the deleted entries.
+	private void rehash(int numberOfEntries) {
+		int newCapacity = INITIAL_CAPACITY;
+		while (2 * numberOfEntries > newCapacity) {
+			newCapacity *= 2;
+		}
+		if ((long) newCapacity * SLOT_LENGTH > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Error: too many reservations for an OffHeapSeatInventory");
+		}
+
+		ByteBuffer newIndex = allocate(newCapacity * SLOT_LENGTH);
+		ByteBuffer newNames = allocate(Math.max(INITIAL_ARENA_LENGTH, 2 * (namesLength - garbageLength)));
+		int newNamesLength = 0;
+
+		for (int slot = 0; slot < capacity * SLOT_LENGTH; slot += SLOT_LENGTH) {
+			int seatNum = index.getInt(slot + SEAT_NUM);
+			if (seatNum == EMPTY || seatNum == DELETED) {
+				continue;
+			}
+
+			int nameOffset = index.getInt(slot + NAME_OFFSET);
+			int recordLength = 4 + names.getInt(nameOffset);
+			for (int i = 0; i < recordLength; i++) {
+				newNames.put(newNamesLength + i, names.get(nameOffset + i));
+			}
+
+			int hash = index.getInt(slot + HASH);
+			int newSlot = insert(newIndex, newCapacity, hash);
+			newIndex.putInt(newSlot + HASH, hash);
+			newIndex.putInt(newSlot + NAME_OFFSET, newNamesLength);
+			newIndex.putInt(newSlot + SEAT_NUM, seatNum);
+			newIndex.putInt(newSlot + NUMBER_OF_SEATS, index.getInt(slot + NUMBER_OF_SEATS));
+			newNamesLength += recordLength;
+		}
+
+		this.index = newIndex;
+		this.capacity = newCapacity;
+		this.numberOfDeletedSlots = 0;
+		this.names = newNames;
+		this.namesLength = newNamesLength;
+		this.garbageLength = 0;
+	}
+
+	private boolean nameEquals(int nameOffset, byte[] nameBytes) {
+		if (names.getInt(nameOffset) != nameBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < nameBytes.length; i++) {
+			if (names.get(nameOffset + 4 + i) != nameBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// FNV-1a, with the high bits mixed into the low ones, which are the ones that pick the slot
+	private static int hash(byte[] nameBytes) {
+		int hash = 0x811c9dc5;
+		for (byte b : nameBytes) {
+			hash ^= b & 0xff;
+			hash *= 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static ByteBuffer allocate(int length) {
+		return ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+	}
+
+	// Returns a buffer of at least minLength bytes that starts with the first length bytes of buffer
+	private static ByteBuffer reallocate(ByteBuffer buffer, int length, int minLength) {
+		if (minLength <= buffer.capacity()) {
+			return buffer;
+		}
+		if (minLength < 0) {
+			throw new IllegalStateException("Error: too many names for an OffHeapSeatInventory");
+		}
+
+		int newLength = (int) Math.min(Integer.MAX_VALUE, Math.max(2L * buffer.capacity(), minLength));
+		ByteBuffer newBuffer = allocate(newLength);
+		ByteBuffer source = buffer.duplicate();
+		source.position(0).limit(length);
+		newBuffer.put(source);
+		newBuffer.clear();
+		return newBuffer;
+	}
+}
@@ -0,0 +1,111 @@
+import java.util.concurrent.locks.StampedLock;
+
+// Wraps a SeatInventory that isn't thread safe (like BitSetSeatInventory) so that search() can be called from any
+// thread, at any time, without a lock, while one writer at a time keeps changing the inventory.
+//
+// Every change made through the wrapper runs under the write lock of a StampedLock. search() reads the inner
+// inventory optimistically: it looks the name up without taking a lock, and then checks that no change started in
+// the meantime. If one did, the answer may be garbage (or the lookup may have thrown), so it is thrown away and the
+// search runs again under the read lock. Only the searches that overlap a change pay for that, the rest don't write
+// to shared memory at all, and no second copy of the names has to be kept for them.
+// It stays linearizable: a search that starts after a reserve/bookSeat/delete has returned always sees its result,
+// and a search that overlaps one sees it or doesn't.
+//
+// The inner inventory's search() must always return, even when it races a change (see NameSeatMap).
+// The caller still has to make sure that only one thread at a time calls reserve(), bookSeat() and delete()
+// (e.g. a single owner thread, or a lock that only the writers take), so the write lock is never contended by writers.
+public class PublishedSeatInventory implements SeatInventory {
+	private SeatInventory seatInventory;
+	private StampedLock lock;
+
+	public PublishedSeatInventory(SeatInventory seatInventory) {
+		this.seatInventory = seatInventory;
+		this.lock = new StampedLock();
+	}
+
+	@Override
+	public int reserve(CharSequence name) {
+		long stamp = lock.writeLock();
+		try {
+			return seatInventory.reserve(name);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int bookSeat(CharSequence name, int seatNum) {
+		long stamp = lock.writeLock();
+		try {
+			return seatInventory.bookSeat(name, seatNum);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int reserveBlock(CharSequence name, int numberOfSeats) {
+		long stamp = lock.writeLock();
+		try {
+			return seatInventory.reserveBlock(name, numberOfSeats);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int bookRange(CharSequence name, int firstSeatNum, int lastSeatNum) {
+		long stamp = lock.writeLock();
+		try {
+			return seatInventory.bookRange(name, firstSeatNum, lastSeatNum);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// Safe to call from any thread, see the class comment
+	@Override
+	public int search(CharSequence name) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				int seatNum = seatInventory.search(name);
+				if (lock.validate(stamp)) {
+					return seatNum;
+				}
+			} catch (RuntimeException e) {
+				// It raced a change. If it didn't, the error is real.
+				if (lock.validate(stamp)) {
+					throw e;
+				}
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return seatInventory.search(name);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public int delete(CharSequence name) {
+		long stamp = lock.writeLock();
+		try {
+			return seatInventory.delete(name);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int getMaxNumberOfSeats() {
+		return seatInventory.getMaxNumberOfSeats();
+	}
+
+	@Override
+	public int getNumberOfReservedSeats() {
+		return seatInventory.getNumberOfReservedSeats();
+	}
+}
@@ -0,0 +1,53 @@
+// A SeatInventory keeps track of which seats are free and which name each reserved seat belongs to.
+// Every operation returns either a seat number (1 to N) or one of the negative status codes below.
+// It is up to the caller to turn a status code into a response for the client (see Server).
+//
+// A name holds a single reservation, which is either one seat or a block of adjacent seats (see reserveBlock()).
+// For a block, search() and delete() return its first seat, and delete() frees the whole block.
+// A name can be any CharSequence, e.g. a CharSlice of the request it came in. Its characters are only good for the
+// length of the call, so an inventory that keeps the name copies it.
+public interface SeatInventory {
+	int SOLD_OUT = -1;
+	int ALREADY_BOOKED = -2;
+	int SEAT_UNAVAILABLE = -3;
+	int INVALID_SEAT = -4;
+	int NOT_FOUND = -5;
+
+	// assigns the lowest numbered free seat to name
+	int reserve(CharSequence name);
+
+	// assigns seatNum to name, if seatNum is free
+	int bookSeat(CharSequence name, int seatNum);
+
+	// assigns the lowest numbered block of numberOfSeats adjacent free seats to name, and returns its first seat
+	// SEAT_UNAVAILABLE means there are enough free seats, but not next to each other
+	int reserveBlock(CharSequence name, int numberOfSeats);
+
+	// assigns every seat from firstSeatNum to lastSeatNum to name, if they are all free, and returns firstSeatNum
+	int bookRange(CharSequence name, int firstSeatNum, int lastSeatNum);
+
+	// returns the seat assigned to name
+	int search(CharSequence name);
+
+	// frees the seat assigned to name and returns it
+	int delete(CharSequence name);
+
+	int getMaxNumberOfSeats();
+
+	int getNumberOfReservedSeats();
+
+	// Gets told about every change to the inventory, e.g. to write it to a log (see WriteAheadLog).
+	// Changes are reported in an order that can be replayed: a name is always released before it is booked again,
+	// and a seat is always released by its old name before it is booked by a new one.
+	// The callbacks run while the inventory is in the middle of the change, so they must be quick and must not call back
+	// into the inventory.
+	interface MutationListener {
+		void seatBooked(String name, int seatNum);
+
+		// a block of more than one seat was booked, starting at seatNum
+		void blockBooked(String name, int seatNum, int numberOfSeats);
+
+		// the whole reservation of name was released. For a block, seatNum is its first seat.
+		void seatReleased(String name, int seatNum);
+	}
+}
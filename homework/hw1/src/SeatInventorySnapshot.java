@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// A compact copy of every reservation in a ConcurrentSeatInventory, kept in a memory-mapped file, so a restart only
+// has to replay the tail of the WriteAheadLog instead of its whole history.
+//
+// The file looks like this:
+//      header: long MAGIC, int VERSION, int maxNumberOfSeats, long walPosition, int numberOfReservations, int numberOfHolds, int crc32
+//      body:   one entry per reservation, in seat order: int seatNum, int numberOfSeats, unsigned short nameLength, name (UTF-8)
+//              followed by one entry per hold (see HoldManager): long deadlineMillis, unsigned short nameLength, name (UTF-8)
+// The checksum covers the body. walPosition is the LSN of the log when the snapshot was started.
+// The holds are copied after the reservations, so a hold whose HELD record is before walPosition is in the snapshot.
+//
+// Snapshots are fuzzy: the reservations are copied while commands keep running, so the copy doesn't match the
+// inventory at any single moment. That's fine, because every change made after walPosition is also in the log,
+// and replaying the log from walPosition brings every name and seat up to date (see WriteAheadLog.apply()).
+//
+// A snapshot is written to a temporary file and renamed over the old one, so a crash while writing it leaves the
+// previous snapshot in place. A snapshot that fails its checksum is ignored, and the whole log is replayed instead.
+public class SeatInventorySnapshot {
+	private static final long MAGIC = 0x53454154534E4150L; // "SEATSNAP"
+	// version 2 added numberOfSeats, for blocks of seats. Version 3 made it an int, a block can span many sections.
+	// Version 4 added the holds.
+	private static final int VERSION = 4;
+
+	private static final int HEADER_LENGTH = 8 + 4 + 4 + 8 + 4 + 4 + 4;
+
+	// how much of the file is mapped at a time while it is being written
+	private static final int WINDOW_LENGTH = 16 * 1024 * 1024;
+
+	// Writes a snapshot of seatInventory, and of its holds in holdManager, to path. writeAheadLog must be the log that
+	// records seatInventory's changes. Commands keep running while the snapshot is taken.
+	public static void write(Path path, ConcurrentSeatInventory seatInventory, HoldManager holdManager, WriteAheadLog writeAheadLog) throws IOException {
+		// Everything the log holds past this point will be replayed on top of the snapshot,
+		// so it has to be taken before we look at a single reservation
+		long walPosition = writeAheadLog.getAppendedPosition();
+
+		Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel fileChannel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			final BodyWriter bodyWriter = new BodyWriter(fileChannel);
+			try {
+				seatInventory.forEachReservation((name, seatNum, numberOfSeats) -> bodyWriter.write(name, seatNum, numberOfSeats));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			Map<String, Long> holds = holdManager.getHolds(seatInventory);
+			for (Map.Entry<String, Long> hold : holds.entrySet()) {
+				bodyWriter.writeHold(hold.getKey(), hold.getValue());
+			}
+			long bodyEnd = bodyWriter.finish();
+
+			// The snapshot may contain changes that are appended to the log, but not durable yet.
+			// Make them durable, so a crash can't leave the snapshot ahead of the log.
+			writeAheadLog.syncAll();
+
+			MappedByteBuffer header = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+			header.putLong(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(seatInventory.getMaxNumberOfSeats());
+			header.putLong(walPosition);
+			header.putInt(bodyWriter.numberOfReservations);
+			header.putInt(holds.size());
+			header.putInt((int) bodyWriter.crc32.getValue());
+			header.force();
+
+			fileChannel.truncate(bodyEnd);
+			fileChannel.force(true);
+		}
+
+		Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Books every reservation in the snapshot at path into seatInventory, which must be empty, and puts the deadline
+	// of every hold into pendingHolds, by name.
+	// Returns the LSN the log should be replayed from, or -1 if there is no usable snapshot.
+	public static long load(Path path, ConcurrentSeatInventory seatInventory, Map<String, Long> pendingHolds) throws IOException {
+		if (!Files.exists(path)) {
+			return -1;
+		}
+
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long length = fileChannel.size();
+			if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+				return -1;
+			}
+
+			MappedByteBuffer snapshot = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (snapshot.getLong() != MAGIC || snapshot.getInt() != VERSION) {
+				return -1;
+			}
+
+			int maxNumberOfSeats = snapshot.getInt();
+			long walPosition = snapshot.getLong();
+			int numberOfReservations = snapshot.getInt();
+			int numberOfHolds = snapshot.getInt();
+			int checksum = snapshot.getInt();
+
+			if (maxNumberOfSeats != seatInventory.getMaxNumberOfSeats()) {
+				throw new IOException(String.format("Error: the snapshot is for %d seats, but the server has %d", maxNumberOfSeats, seatInventory.getMaxNumberOfSeats()));
+			}
+
+			CRC32 crc32 = new CRC32();
+			crc32.update(snapshot.duplicate());
+			if ((int) crc32.getValue() != checksum) {
+				return -1;
+			}
+
+			byte[] name = new byte[WriteAheadLog.MAX_NAME_BYTES];
+			for (int i = 0; i < numberOfReservations; i++) {
+				int seatNum = snapshot.getInt();
+				int numberOfSeats = snapshot.getInt();
+				int nameLength = snapshot.getShort() & 0xFFFF;
+				snapshot.get(name, 0, nameLength);
+				// A name that moved while the snapshot was taken can show up at both seats. Keep the first one,
+				// the log has the move and sorts it out.
+				seatInventory.restoreReservation(new String(name, 0, nameLength, StandardCharsets.UTF_8), seatNum, numberOfSeats);
+			}
+
+			for (int i = 0; i < numberOfHolds; i++) {
+				long deadlineMillis = snapshot.getLong();
+				int nameLength = snapshot.getShort() & 0xFFFF;
+				snapshot.get(name, 0, nameLength);
+				pendingHolds.put(new String(name, 0, nameLength, StandardCharsets.UTF_8), deadlineMillis);
+			}
+
+			return walPosition;
+		}
+	}
+
+	// Appends entries to the body of the snapshot file, mapping one window of the file at a time
+	private static class BodyWriter {
+		private FileChannel fileChannel;
+		private MappedByteBuffer window;
+		private long windowStart;
+
+		private int numberOfReservations;
+		private CRC32 crc32;
+
+		public BodyWriter(FileChannel fileChannel) throws IOException {
+			this.fileChannel = fileChannel;
+			this.crc32 = new CRC32();
+			map(HEADER_LENGTH);
+		}
+
+		public void write(String name, int seatNum, int numberOfSeats) {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			assert (nameBytes.length <= WriteAheadLog.MAX_NAME_BYTES);
+			makeRoom(4 + 4 + 2 + nameBytes.length);
+
+			int entryStart = window.position();
+			window.putInt(seatNum);
+			window.putInt(numberOfSeats);
+			window.putShort((short) nameBytes.length);
+			window.put(nameBytes);
+
+			crc32.update(window.duplicate().position(entryStart).limit(window.position()));
+			numberOfReservations++;
+		}
+
+		public void writeHold(String name, long deadlineMillis) {
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			assert (nameBytes.length <= WriteAheadLog.MAX_NAME_BYTES);
+			makeRoom(8 + 2 + nameBytes.length);
+
+			int entryStart = window.position();
+			window.putLong(deadlineMillis);
+			window.putShort((short) nameBytes.length);
+			window.put(nameBytes);
+
+			crc32.update(window.duplicate().position(entryStart).limit(window.position()));
+		}
+
+		private void makeRoom(int entryLength) {
+			try {
+				if (window.remaining() < entryLength) {
+					map(windowStart + window.position());
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// Flushes the last window, and returns where the body ends
+		public long finish() {
+			window.force();
+			return windowStart + window.position();
+		}
+
+		private void map(long start) throws IOException {
+			if (window != null) {
+				window.force();
+			}
+			window = fileChannel.map(FileChannel.MapMode.READ_WRITE, start, WINDOW_LENGTH);
+			windowStart = start;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Finds the lowest section where a block of adjacent free seats starts, over the sections of a ConcurrentSeatInventory,
+// in O(log n) of the number of sections, without locking any of them.
+//
+// It is a segment tree like the one in FreeRunIndex, with a leaf per section instead of per word. Each section
+// reports the free runs at its start and end, and its longest one (see update()), and every node knows the same three
+// things about the seats below it. A block either fits inside one section, or it is the trailing run of one section
+// followed by the leading runs of the ones after it, so findSection() only follows a single path down from the root.
+//
+// The sections update their leaves at the same time, each under its own lock. Every node is an immutable Runs that is
+// replaced with a compareAndSet: a thread that changed a leaf recomputes every node above it from the node's children,
+// and tries again if another thread replaced the node in the meantime. So whatever a node ends up with was computed
+// from children that include every change that had finished by then. A search may still see a change that is only
+// half way up the tree, so the section it returns is a hint, which the caller has to check under the section's lock.
+//
+// Sections are numbered from 0, and every section but the last has seatsPerSection seats. All methods are thread safe.
+// Example usage:
+//      SectionRunIndex freeRuns = new SectionRunIndex(2048, 1024); // every seat starts out free
+//      freeRuns.update(0, 0, 1023, 1023); // the first seat of section 0 is taken
+//      int sectionIndex = freeRuns.findSection(1500); // 0, the block starts at the end of section 0
+public class SectionRunIndex {
+	private static class Runs {
+		private final int prefix;
+		private final int suffix;
+		private final int longest;
+
+		public Runs(int prefix, int suffix, int longest) {
+			this.prefix = prefix;
+			this.suffix = suffix;
+			this.longest = longest;
+		}
+	}
+
+	private int seatsPerSection;
+
+	// Stored like a heap, the same way as in FreeRunIndex. The leaves past the last section have no seats.
+	private int numberOfLeaves;
+	// the number of seats below each node
+	private int[] lengths;
+	private AtomicReferenceArray<Runs> nodes;
+
+	public SectionRunIndex(int numberOfSeats, int seatsPerSection) {
+		assert (numberOfSeats >= 0 && seatsPerSection > 0);
+
+		this.seatsPerSection = seatsPerSection;
+		int numberOfSections = (numberOfSeats + seatsPerSection - 1) / seatsPerSection;
+		this.numberOfLeaves = Integer.highestOneBit(Math.max(1, numberOfSections * 2 - 1));
+		this.lengths = new int[2 * numberOfLeaves];
+		this.nodes = new AtomicReferenceArray<Runs>(2 * numberOfLeaves);
+
+		for (int i = 0; i < numberOfLeaves; i++) {
+			int length = i < numberOfSections ? Math.min(seatsPerSection, numberOfSeats - i * seatsPerSection) : 0;
+			lengths[numberOfLeaves + i] = length;
+			nodes.set(numberOfLeaves + i, new Runs(length, length, length));
+		}
+		for (int node = numberOfLeaves - 1; node >= 1; node--) {
+			lengths[node] = lengths[2 * node] + lengths[2 * node + 1];
+			nodes.set(node, combine(node));
+		}
+	}
+
+	// Sets the free runs of a section. Calls for the same section must not overlap (the section's lock sees to that).
+	public void update(int sectionIndex, int leadingRun, int trailingRun, int longestRun) {
+		int node = numberOfLeaves + sectionIndex;
+		nodes.set(node, new Runs(leadingRun, trailingRun, longestRun));
+
+		for (node /= 2; node >= 1; node /= 2) {
+			while (true) {
+				// Read the node before its children, so a node that changes after we read them fails the compareAndSet
+				Runs current = nodes.get(node);
+				Runs updated = combine(node);
+				if (current.prefix == updated.prefix && current.suffix == updated.suffix && current.longest == updated.longest) {
+					// Nothing above changes either. Whoever gave it these values takes care of the nodes above.
+					return;
+				} else if (nodes.compareAndSet(node, current, updated)) {
+					break;
+				}
+			}
+		}
+	}
+
+	// Returns the section where the lowest block of length free seats starts, or -1 if there seems to be none.
+	// If the block fits inside the section, it is the section's lowest block that fits, otherwise it starts with
+	// the section's trailing run.
+	public int findSection(int length) {
+		if (length < 1 || nodes.get(1).longest < length) {
+			return -1;
+		}
+
+		int node = 1;
+		int nodeStart = 0;
+		while (node < numberOfLeaves) {
+			int left = 2 * node;
+			int right = left + 1;
+			Runs leftRuns = nodes.get(left);
+
+			if (leftRuns.longest >= length) {
+				node = left;
+			} else if (leftRuns.suffix + nodes.get(right).prefix >= length) {
+				return (nodeStart + lengths[left] - leftRuns.suffix) / seatsPerSection;
+			} else {
+				node = right;
+				nodeStart += lengths[left];
+			}
+		}
+		return nodes.get(node).longest >= length ? node - numberOfLeaves : -1;
+	}
+
+	private Runs combine(int node) {
+		int left = 2 * node;
+		int right = left + 1;
+		Runs leftRuns = nodes.get(left);
+		Runs rightRuns = nodes.get(right);
+
+		int prefix = leftRuns.prefix == lengths[left] ? lengths[left] + rightRuns.prefix : leftRuns.prefix;
+		int suffix = rightRuns.suffix == lengths[right] ? lengths[right] + leftRuns.suffix : rightRuns.suffix;
+		int longest = Math.max(Math.max(leftRuns.longest, rightRuns.longest), leftRuns.suffix + rightRuns.prefix);
+		return new Runs(prefix, suffix, longest);
+	}
+}
@@ -1,85 +1,338 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
 		
 	private int maxNumberOfSeats;
-    private Map<String, Integer> reservedSeats;
+	
+	// keeps track of who is sitting where, see ConcurrentSeatInventory for details
+	// with --inventory=sharded, this is the default event of shardedSeatInventory
+    private SeatInventory seatInventory;
+    
+    // keeps a separate seat inventory for every event when the server is started with --inventory=sharded, or null
+    private ShardedSeatInventory shardedSeatInventory;
+    
+    // the seats that were put on hold with HOLD, and are released by themselves unless they're confirmed in time
+    private HoldManager holdManager;
+    
+    // makes every change to the seat inventory durable when the server is started with --wal, or null
+    private WriteAheadLog writeAheadLog;
+    
+    // periodically writes a snapshot of the seat inventory when the server is started with --snapshot, or null
+    // the snapshot lets a restart skip most of the write-ahead log
+    private Thread snapshotter;
+    private Path snapshotPath;
+    // stops the snapshotter. It must not be interrupted, because it may be writing to the write-ahead log.
+    private CountDownLatch snapshotterStopped;
     
     private ServerSocket serverSocket;
     
-    // tracks all the message handlers that are created, so we can close them
-    // when the server is stopped
-    private List<MessageHandler> messageHandlers;
+    // tracks every open TCP connection, so they can be capped, closed when they're idle, and closed when the server
+    // is stopped. Connections leave it as soon as they close, see ConnectionRegistry.
+    private ConnectionRegistry connectionRegistry;
+    
+    // the message handler every udpHandler shares, closed when the server is stopped
+    private ServerUDPMessageHandler serverUDPMessageHandler;
     
     // handles incoming connections from tcp clients
     // for each incoming connection, a tcp handler is created to handle messages over that connection
     // see acceptIncomingTCPConnection() for details
 	private Thread serverSocketHandler;
 	
-	// handles messages over a udp connection
-	private Thread udpHandler;
+	// serves every tcp connection when the server is started with --frontend=nio
+	// in that case, there is no server socket or serverSocketHandler
+	private NIOFrontEnd nioFrontEnd;
+	
+	// handle messages over a udp connection
+	// every one of them receives and answers requests from the same ServerUDPMessageHandler, in parallel
+	private Thread[] udpHandlers;
+	
+	// creates every thread the server runs a handler on, either platform or virtual threads (see --threads)
+	private ThreadFactory threadFactory;
+	
+	// every thread that executes commands parses them into its own reusable command, see CommandParser.MutableCommand
+	private ThreadLocal<CommandParser.MutableCommand> parsedCommands = new ThreadLocal<CommandParser.MutableCommand>() {
+		
+		@Override
+		protected CommandParser.MutableCommand initialValue() {
+			return new CommandParser.MutableCommand();
+		}
+	};
+	
+	// counters and latency histograms for every request, see the STATS command
+	private ServerStats stats;
+	
+	// prints the stats every --stats-interval seconds, or null
+	private Thread statsPrinter;
+	
+	// turns commands away with BUSY when too many of them are executing or waiting, or null to admit every command
+	private AdmissionController admissionController;
 	
 	// coordinates the activity of all the threads that are handling tcp/udp connections
 	private volatile boolean isRunning;	
     
     public Server(int maxNumberOfSeats, int tcpPort, int udpPort) throws IOException {
+    	this(maxNumberOfSeats, tcpPort, udpPort, new ServerOptions());
+    }
+    
+    public Server(int maxNumberOfSeats, int tcpPort, int udpPort, ServerOptions options) throws IOException {
+    	// Turn it down before anything is opened, not halfway through starting up
+    	if (options.getThreadType() == ServerOptions.ThreadType.VIRTUAL && !VirtualThreads.isSupported()) {
+    		throw new IllegalArgumentException(String.format("Error: --threads=virtual requires Java 21 or later. This JVM is %s.", System.getProperty("java.version")));
+    	}
+    	
     	this.maxNumberOfSeats = maxNumberOfSeats;
-    	this.reservedSeats = new HashMap<String, Integer>(this.maxNumberOfSeats);    	
+    	this.stats = new ServerStats();
+    	if (options.getInventoryMode() == ServerOptions.InventoryMode.SHARDED) {
+    		if (options.getWALPath() != null) {
+    			throw new IllegalArgumentException("Error: --wal doesn't work with --inventory=sharded yet");
+    		}
+    		
+    		// Every event gets maxNumberOfSeats seats of its own
+    		this.shardedSeatInventory = new ShardedSeatInventory(this.maxNumberOfSeats, options.getNumberOfShards(), options.getMaxNumberOfEvents());
+    		try {
+    			this.seatInventory = shardedSeatInventory.getEvent(ShardedSeatInventory.DEFAULT_EVENT);
+    		} catch (CommandParser.InvalidCommandException e) {
+    			throw new IllegalArgumentException(e.getMessage());
+    		}
+    	}
+    	
+    	if (options.getInventoryMode() == ServerOptions.InventoryMode.OFFHEAP) {
+    		if (options.getWALPath() != null) {
+    			throw new IllegalArgumentException("Error: --wal doesn't work with --inventory=offheap yet");
+    		}
+    		this.seatInventory = new OffHeapSeatInventory(this.maxNumberOfSeats);
+    	}
+    	
+    	ConcurrentSeatInventory concurrentSeatInventory = null;
+    	if (this.seatInventory == null) {
+    		concurrentSeatInventory = new ConcurrentSeatInventory(this.maxNumberOfSeats);
+    		this.seatInventory = concurrentSeatInventory;
+    	}
+    	
+    	// the holds that were still pending when the previous run stopped, deadline by name
+    	Map<String, Long> pendingHolds = new HashMap<String, Long>();
+    	if (options.getWALPath() != null) {
+    		// Bring back every reservation from the previous run before the log starts recording new ones.
+    		// Start from the latest snapshot if there is one, so only the changes made after it are replayed.
+    		Path walPath = Paths.get(options.getWALPath());
+    		long walStart = 0;
+    		if (options.getSnapshotPath() != null) {
+    			this.snapshotPath = Paths.get(options.getSnapshotPath());
+    			walStart = Math.max(SeatInventorySnapshot.load(snapshotPath, concurrentSeatInventory, pendingHolds), 0);
+    		}
+    		WriteAheadLog.replay(walPath, walStart, concurrentSeatInventory, pendingHolds);
+    		
+    		this.writeAheadLog = new WriteAheadLog(walPath, options.getWALSyncPolicy(), options.getWALSyncIntervalMillis());
+    		concurrentSeatInventory.setMutationListener(writeAheadLog);
+    		
+    	} else if (options.getSnapshotPath() != null) {
+    		throw new IllegalArgumentException("Error: --snapshot only works together with --wal");
+    	}
+    	
+    	if (snapshotPath != null) {
+    		final long snapshotIntervalMillis = options.getSnapshotIntervalSeconds() * 1000L;
+    		this.snapshotterStopped = new CountDownLatch(1);
+    		this.snapshotter = new Thread(new Runnable() {
+    			
+    			@Override
+    			public void run() {
+    				try {
+    					while (!snapshotterStopped.await(snapshotIntervalMillis, TimeUnit.MILLISECONDS)) {
+    						writeSnapshot();
+    					}
+    				} catch (InterruptedException e) {
+    					
+    				}
+    			}
+    		}, "snapshotter");
+    		this.snapshotter.setDaemon(true);
+    	}
     	        
         this.isRunning = false;
+        this.holdManager = new HoldManager();
+        if (writeAheadLog != null) {
+        	// Holds survive a restart: the ones that are still running are put back on hold, the rest are released
+        	holdManager.setHoldListener(seatInventory, writeAheadLog);
+        	holdManager.restore(seatInventory, pendingHolds);
+        }
         
-        this.serverSocket = new ServerSocket(tcpPort);
-        this.messageHandlers = new ArrayList<MessageHandler>();
+        if (options.getMaxInFlight() > 0) {
+        	this.admissionController = new AdmissionController(options.getAdmissionLimitPolicy(), options.getMaxInFlight(), options.getMaxQueueLength(), options.getQueueTimeoutMillis());
+        }
+        this.connectionRegistry = new ConnectionRegistry(options.getMaxConnections(), options.getIdleTimeoutSeconds() * 1000L, stats);
         
-        // Create a thread specifically for handling incoming TCP connections over the server socket.
-        // It will continually accept new connections until the server is shut down
-        this.serverSocketHandler = new Thread(
-        	new Runnable() {
-			
-			@Override
-			public void run() {
-				while (isRunning) {
-					try {
-						acceptIncomingTCPConnection();
-					} catch (IOException e) {
-						synchronized(Server.this) {
-							isRunning = false;
-							Server.this.notify();
-						}
+        switch (options.getThreadType()) {
+        	case PLATFORM:
+        		this.threadFactory = new ThreadFactory() {
+        			
+					@Override
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable);
 					}
-				}				
-			}
-    	});
+				};
+        		break;
+        		
+        	case VIRTUAL:
+        		// Blocking handlers park their virtual thread instead of holding on to an OS thread,
+        		// so idle connections only cost a little bit of heap
+        		this.threadFactory = VirtualThreads.newThreadFactory("server-handler-");
+        		break;
+        }
+        
+        switch (options.getFrontEnd()) {
+        	case THREADS:
+        		this.serverSocket = new ServerSocket(tcpPort);
+        		
+		        // Create a thread specifically for handling incoming TCP connections over the server socket.
+		        // It will continually accept new connections until the server is shut down
+		        this.serverSocketHandler = threadFactory.newThread(
+		        	new Runnable() {
+					
+					@Override
+					public void run() {
+						while (isRunning) {
+							try {
+								acceptIncomingTCPConnection();
+							} catch (IOException e) {
+								synchronized(Server.this) {
+									isRunning = false;
+									Server.this.notify();
+								}
+							}
+						}				
+					}
+		    	});
+		        break;
+		        
+        	case NIO:
+        		// Every TCP connection is served by a few event loops instead of a thread each
+        		// An event loop must never wait for its turn to execute a command, it would hold up all of its connections
+        		this.nioFrontEnd = new NIOFrontEnd(tcpPort, options.getNumberOfEventLoops(), connectionRegistry, stats, new CommandExecutor() {
+					
+					@Override
+					public String executeCommand(String commandString) throws CommandParser.InvalidCommandException {
+						return Server.this.executeMessage(commandString, false);
+					}
+					
+					@Override
+					public ByteBuffer executeBinaryFrame(ByteBuffer payload) {
+						return Server.this.executeBinaryFrame(payload, false);
+					}
+				});
+        		break;
+        }
+        
+        if (options.getStatsIntervalSeconds() > 0) {
+        	final long statsIntervalMillis = options.getStatsIntervalSeconds() * 1000L;
+        	this.statsPrinter = new Thread(new Runnable() {
+        		
+        		@Override
+        		public void run() {
+        			while (isRunning) {
+        				try {
+        					Thread.sleep(statsIntervalMillis);
+        				} catch (InterruptedException e) {
+        					break;
+        				}
+        				System.out.println(stats.summary());
+        			}
+        		}
+        	}, "stats-printer");
+        	this.statsPrinter.setDaemon(true);
+        }
         
         // Create a message handler for the UDP protocol
-        ServerUDPMessageHandler serverUDPMessageHandler = new ServerUDPMessageHandler(udpPort);
-        messageHandlers.add(serverUDPMessageHandler);
+        this.serverUDPMessageHandler = new ServerUDPMessageHandler(udpPort, options.getMaxUDPResponses());
         
-        udpHandler = new Thread(new CommandHandler(serverUDPMessageHandler));
+        udpHandlers = new Thread[options.getNumberOfUDPWorkers()];
+        for (int i = 0; i < udpHandlers.length; i++) {
+        	udpHandlers[i] = threadFactory.newThread(new CommandHandler(serverUDPMessageHandler, null));
+        }
     }
     
     public void start() {
 		this.isRunning = true;
-		this.serverSocketHandler.start();	
-		this.udpHandler.start();
+		if (this.shardedSeatInventory != null) {
+			this.shardedSeatInventory.start();
+		}
+		this.holdManager.start();
+		this.connectionRegistry.start();
+		if (this.serverSocketHandler != null) {
+			this.serverSocketHandler.start();
+		}
+		if (this.nioFrontEnd != null) {
+			this.nioFrontEnd.start();
+		}
+		for (Thread udpHandler : this.udpHandlers) {
+			udpHandler.start();
+		}
+		if (this.snapshotter != null) {
+			this.snapshotter.start();
+		}
+		if (this.statsPrinter != null) {
+			this.statsPrinter.start();
+		}
 	}
 
 	private void stop() {
+		if (statsPrinter != null) {
+			statsPrinter.interrupt();
+		}
+		
 		// Close all of the message handlers so they aren't waiting for messages from clients
-		for (MessageHandler messageHandler : messageHandlers) {
-			messageHandler.close();
+		connectionRegistry.close();
+		serverUDPMessageHandler.close();
+		
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+			
+			}
 		}
 		
+		if (nioFrontEnd != null) {
+			nioFrontEnd.close();
+		}
+		
+		holdManager.close();
+		
+		// Leave a fresh snapshot behind, so the next start has (almost) nothing to replay
+		if (snapshotter != null) {
+			snapshotterStopped.countDown();
+			try {
+				snapshotter.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writeSnapshot();
+		}
+		
+		if (writeAheadLog != null) {
+			writeAheadLog.close();
+		}
+		
+		if (shardedSeatInventory != null) {
+			shardedSeatInventory.close();
+		}
+	}
+	
+	private void writeSnapshot() {
 		try {
-			serverSocket.close();
+			SeatInventorySnapshot.write(snapshotPath, (ConcurrentSeatInventory) seatInventory, holdManager, writeAheadLog);
 		} catch (IOException e) {
-		
+			// The log still has everything, the next restart will just have more of it to replay
+			System.out.println("Error: could not write a snapshot: " + e.getMessage());
 		}
 	}
 
@@ -88,104 +341,369 @@ public class Server {
 		
 		// Create a message handler for the current TCP connection
 		TCPMessageHandler tcpMessageHandler = new TCPMessageHandler(socket);
-		messageHandlers.add(tcpMessageHandler);
 		
-		Thread tcpHandler = new Thread(new CommandHandler(tcpMessageHandler));
+		// Turn the connection away before it costs us a thread
+		ConnectionRegistry.Registration registration = connectionRegistry.register(tcpMessageHandler);
+		if (registration == null) {
+			stats.busy();
+			tcpMessageHandler.sendMessage(AdmissionController.BUSY);
+			tcpMessageHandler.close();
+			return;
+		}
+		
+		Thread tcpHandler = threadFactory.newThread(new CommandHandler(tcpMessageHandler, registration));
 		tcpHandler.start();
 	}
     
+    // Every message from a client comes through here, whether it's a plain command or a pipelined one.
+    // A pipelined message carries a request id (see TaggedMessage), and so does its response.
+    // A pipelined command that is invalid gets an error response instead of ending the connection,
+    // because the client may already have more requests in flight behind it.
+    // It is package-private so SeatServerBenchmarks can measure it without a socket in the way.
+    String executeMessage(String message) throws CommandParser.InvalidCommandException {
+    	return executeMessage(message, true);
+    }
+    
+    // A message that isn't admitted (see AdmissionController) is answered with BUSY, tagged if the message was.
+    // mayWait is false for a caller that must not wait for its turn, which is then turned away instead.
+    private String executeMessage(String message, boolean mayWait) throws CommandParser.InvalidCommandException {
+    	stats.requestStarted();
+    	long admittedTime = 0;
+    	try {
+    		if (!admit(mayWait)) {
+    			stats.busy();
+    			if (TaggedMessage.isTagged(message)) {
+    				return new TaggedMessage(TaggedMessage.parse(message).getRequestId(), AdmissionController.BUSY).toString();
+    			}
+    			return AdmissionController.BUSY;
+    		}
+    		admittedTime = System.nanoTime();
+    		
+	    	if (!TaggedMessage.isTagged(message)) {
+	    		return executeCommand(message);
+	    	}
+	    	
+	    	TaggedMessage request = TaggedMessage.parse(message);
+	    	String response = null;
+	    	try {
+	    		response = executeCommand(request.getMessage());
+	    	} catch (CommandParser.InvalidCommandException e) {
+	    		stats.error();
+	    		response = e.getMessage();
+	    	}
+	    	
+	    	return new TaggedMessage(request.getRequestId(), response).toString();
+	    	
+    	} catch (CommandParser.InvalidCommandException e) {
+    		stats.error();
+    		throw e;
+    	} finally {
+    		release(admittedTime);
+    		stats.requestFinished();
+    	}
+    }
+    
     // This method is in charge of all the logic related to executing commands.
     // Commands that arrive over TCP or UDP should both be handle by this method.
-    private synchronized String executeCommand(String commandString) throws CommandParser.InvalidCommandException {
+    // It is called concurrently by every CommandHandler, so it must not hold any lock of its own.
+    // The seat inventory takes care of its own thread safety.
+    private String executeCommand(String commandString) throws CommandParser.InvalidCommandException {
+    	long startTime = System.nanoTime();
     	String result = null;
-    	CommandParser.Command command = CommandParser.parseCommand(commandString);
-    	
-    	// This is for debugging purpose only
-    	// Remove when finished
-    	System.out.println(commandString);
+    	CommandParser.MutableCommand command = parsedCommands.get();
+    	CommandParser.parseCommand(commandString, command);
+    	SeatInventory inventory = getInventory(command.getEventId());
+    	long parsedTime = System.nanoTime();
     	
     	// @TODO: Handle each command type
-    	List<String> arguments = command.getArguments();
     	switch (command.getCommandType()) {
     		case RESERVE:
-    			result = reserve(arguments.get(0));
+    			result = reserve(inventory, command.getName(0));
     			break;
     		case BOOKSEAT:
-    			result = bookSeat(arguments.get(0), Integer.parseInt(arguments.get(1)));
+    			result = bookSeat(inventory, command.getName(0), command.getInt(1));
+    			break;
+    		case RESERVE_BLOCK:
+    			result = reserveBlock(inventory, command.getName(0), command.getInt(1));
+    			break;
+    		case BOOK_RANGE:
+    			result = bookRange(inventory, command.getName(0), command.getInt(1), command.getInt(2));
     			break;
     		case SEARCH:
-    			result = search(arguments.get(0));
+    			result = search(inventory, command.getName(0));
     			break;
     		case DELETE:
-    			result = delete(arguments.get(0));
+    			result = delete(inventory, command.getName(0));
+    			break;
+    		case HOLD:
+    			result = hold(inventory, command.getName(0), command.getInt(1));
+    			break;
+    		case CONFIRM:
+    			result = confirm(inventory, command.getName(0));
+    			break;
+    		case RELEASE:
+    			result = release(inventory, command.getName(0));
     			break;
     		case SHUTDOWN:
     			result = shutdown();
     			break;
+    		case STATS:
+    			result = stats(command.getProtocol());
+    			break;
     	}    	   	
     	
+    	long executedTime = System.nanoTime();
+    	waitUntilDurable();
+    	long durableTime = System.nanoTime();
+    	
+    	stats.recordStage(ServerStats.Stage.PARSE, parsedTime - startTime);
+    	stats.recordStage(ServerStats.Stage.EXECUTE, executedTime - parsedTime);
+    	stats.recordStage(ServerStats.Stage.SYNC, durableTime - executedTime);
+    	stats.recordCommand(command.getCommandType(), command.getProtocol(), durableTime - startTime);
     	return result;
     }
     
+    // Executes a request that arrived in the binary protocol, and returns the response frame.
+    // Commands are answered with a status code (see BinaryProtocol) rather than the English text responses,
+    // so nothing needs to be parsed or formatted.
+    private ByteBuffer executeBinaryFrame(ByteBuffer payload, boolean mayWait) {
+    	stats.requestStarted();
+    	long admittedTime = 0;
+    	try {
+    		if (!admit(mayWait)) {
+    			stats.busy();
+    			return BinaryProtocol.encodeResponse(BinaryProtocol.peekRequestId(payload), BinaryProtocol.STATUS_BUSY, 0, null);
+    		}
+    		admittedTime = System.nanoTime();
+    		return executeBinaryRequest(payload);
+    	} finally {
+    		release(admittedTime);
+    		stats.requestFinished();
+    	}
+    }
+    
+    private boolean admit(boolean mayWait) {
+    	return admissionController == null || admissionController.acquire(mayWait);
+    }
+    
+    // Tells the admission controller how long an admitted command took. admittedTime is 0 if it wasn't admitted.
+    private void release(long admittedTime) {
+    	if (admissionController != null && admittedTime != 0) {
+    		admissionController.release(System.nanoTime() - admittedTime);
+    	}
+    }
+    
+    private ByteBuffer executeBinaryRequest(ByteBuffer payload) {
+    	long startTime = System.nanoTime();
+    	BinaryProtocol.Request request = null;
+    	SeatInventory inventory = null;
+    	// Decoding moves the payload's position past the request id, so read it first for the error response
+    	long requestId = BinaryProtocol.peekRequestId(payload);
+    	try {
+    		request = BinaryProtocol.decodeRequest(payload);
+    		inventory = getInventory(request.getEventId());
+    		if (request.getCommandType() == CommandParser.Command.CommandType.STATS) {
+    			throw new CommandParser.InvalidCommandException("Error: STATS is only answered in the text protocol.");
+    		}
+    		if (request.getCommandType() == CommandParser.Command.CommandType.HOLD) {
+    			validateHoldSeconds(request.getNumber());
+    		}
+    	} catch (CommandParser.InvalidCommandException e) {
+    		stats.error();
+    		return BinaryProtocol.encodeResponse(requestId, BinaryProtocol.STATUS_INVALID_COMMAND, 0, e.getMessage());
+    	}
+    	long parsedTime = System.nanoTime();
+    	
+    	int result = 0;
+    	switch (request.getCommandType()) {
+    		case RESERVE:
+    			result = inventory.reserve(request.getName());
+    			break;
+    		case BOOKSEAT:
+    			result = inventory.bookSeat(request.getName(), request.getNumber());
+    			break;
+    		case RESERVE_BLOCK:
+    			result = inventory.reserveBlock(request.getName(), request.getNumber());
+    			break;
+    		case BOOK_RANGE:
+    			result = inventory.bookRange(request.getName(), request.getNumber(), request.getSecondNumber());
+    			break;
+    		case SEARCH:
+    			result = inventory.search(request.getName());
+    			break;
+    		case DELETE:
+    			holdManager.forget(inventory, request.getName());
+    			result = inventory.delete(request.getName());
+    			break;
+    		case HOLD:
+    			result = holdManager.hold(inventory, request.getName(), request.getNumber());
+    			break;
+    		case CONFIRM:
+    			result = holdManager.confirm(inventory, request.getName());
+    			break;
+    		case RELEASE:
+    			result = holdManager.release(inventory, request.getName());
+    			break;
+    		case SHUTDOWN:
+    			shutdown();
+    			break;
+    		case STATS:
+    			break;
+    	}
+    	
+    	long executedTime = System.nanoTime();
+    	waitUntilDurable();
+    	long durableTime = System.nanoTime();
+    	
+    	stats.recordStage(ServerStats.Stage.PARSE, parsedTime - startTime);
+    	stats.recordStage(ServerStats.Stage.EXECUTE, executedTime - parsedTime);
+    	stats.recordStage(ServerStats.Stage.SYNC, durableTime - executedTime);
+    	stats.recordCommand(request.getCommandType(), Protocol.TCP, durableTime - startTime);
+    	return BinaryProtocol.encodeResponse(request.getRequestId(), BinaryProtocol.toStatus(result), result, null);
+    }
+    
+    // Returns the seat inventory a command should run against. Commands that don't name an event use the default one.
+    private SeatInventory getInventory(String eventId) throws CommandParser.InvalidCommandException {
+    	if (eventId == null) {
+    		return seatInventory;
+    	} else if (shardedSeatInventory == null) {
+    		throw new CommandParser.InvalidCommandException("Error: this server only has one event. Start it with --inventory=sharded to use @event.");
+    	}
+    	return shardedSeatInventory.getEvent(eventId);
+    }
+    
+    // A client must never hear about a reservation that could be lost in a crash,
+    // so wait for the write-ahead log to make this thread's changes durable before answering
+    private void waitUntilDurable() {
+    	if (writeAheadLog == null) {
+    		return;
+    	}
+    	
+    	try {
+    		writeAheadLog.sync();
+    	} catch (IOException e) {
+    		throw new IllegalStateException("Error: could not sync the write-ahead log", e);
+    	}
+    }
+    
 	private synchronized String shutdown() {
 		this.isRunning = false;		
 		notify();
 		return "Server is shutting down!";
 	}
 
-	private String delete(String name) {
-		Integer seatNum = reservedSeats.remove(name);
-		if (seatNum != null) {
-			return seatNum.toString();
+	// A UDP response has to fit in a single datagram, so cut the stats short if they don't.
+	// Leave room for the request id of a tagged response.
+	private String stats(Protocol protocol) {
+		String summary = stats.summary();
+		int maxLength = GlobalConstants.MAX_BUFFER_LENGTH - TaggedMessage.MAX_TAG_LENGTH;
+		if (protocol == Protocol.UDP && summary.length() > maxLength) {
+			summary = summary.substring(0, maxLength - 3) + "...";
+		}
+		return summary;
+	}
+
+	private String delete(SeatInventory inventory, CharSequence name) {
+		// A held seat that is deleted isn't held anymore
+		holdManager.forget(inventory, name);
+		int seatNum = inventory.delete(name);
+		if (seatNum != SeatInventory.NOT_FOUND) {
+			return Integer.toString(seatNum);
 		} else {
 			return String.format("No reservation found for %s", name);
 		}
 	}
 
-	private String search(String name) {
-		if (reservedSeats.containsKey(name)) {
-			return Integer.toString(reservedSeats.get(name));
+	private String search(SeatInventory inventory, CharSequence name) {
+		int seatNum = inventory.search(name);
+		if (seatNum != SeatInventory.NOT_FOUND) {
+			return Integer.toString(seatNum);
 			
 		} else {
 			return String.format("No reservation found for %s", name);
 		}
 	}
 
-	private String bookSeat(String name, int seatNum) {
-		if (seatNum < 1 || seatNum > maxNumberOfSeats) {
-			return "This isn't Hilbert's Grand Hotel. We don't have that many seats!";
-			
-		} else if (reservedSeats.size() == maxNumberOfSeats) {
-			return "Sold out - No seat available";
-			
-		} else if (reservedSeats.containsKey(name)) {
-			return "Seat already booked against the name provided";
-			
-		} else if (reservedSeats.containsValue(seatNum)) {
-			return String.format("%d is not available", seatNum);
-			
+	private String bookSeat(SeatInventory inventory, CharSequence name, int seatNum) {
+		return formatAssignment(inventory.bookSeat(name, seatNum), seatNum);
+	}
+
+	private String reserve(SeatInventory inventory, CharSequence name) {
+		return formatAssignment(inventory.reserve(name), 0);
+	}
+
+	private String reserveBlock(SeatInventory inventory, CharSequence name, int numberOfSeats) {
+		int result = inventory.reserveBlock(name, numberOfSeats);
+		if (result == SeatInventory.SEAT_UNAVAILABLE) {
+			return String.format("No %d adjacent seats are available", numberOfSeats);
+		}
+		return formatBlockAssignment(result, numberOfSeats);
+	}
+
+	private String bookRange(SeatInventory inventory, CharSequence name, int firstSeatNum, int lastSeatNum) {
+		int result = inventory.bookRange(name, firstSeatNum, lastSeatNum);
+		if (result == SeatInventory.SEAT_UNAVAILABLE) {
+			return String.format("%d-%d is not available", firstSeatNum, lastSeatNum);
+		}
+		return formatBlockAssignment(result, lastSeatNum - firstSeatNum + 1);
+	}
+
+	private String hold(SeatInventory inventory, CharSequence name, int seconds) throws CommandParser.InvalidCommandException {
+		validateHoldSeconds(seconds);
+		int result = holdManager.hold(inventory, name, seconds);
+		if (result < 0) {
+			return formatAssignment(result, 0);
+		}
+		return String.format("Seat %d is held for you for %d seconds", result, seconds);
+	}
+
+	private String confirm(SeatInventory inventory, CharSequence name) {
+		int seatNum = holdManager.confirm(inventory, name);
+		if (seatNum != SeatInventory.NOT_FOUND) {
+			return String.format("Seat %d is confirmed", seatNum);
 		} else {
-			reservedSeats.put(name, seatNum);
-			return String.format("Seat assigned to you is %d", seatNum);
+			return String.format("No hold found for %s", name);
 		}
 	}
 
-	private String reserve(String name) {
-		if (reservedSeats.size() == maxNumberOfSeats) {
-			return "Sold out - No seat available";
-			
-		} else if (reservedSeats.containsKey(name)) {
-			return "Seat already booked against the name provided";
-			
+	private String release(SeatInventory inventory, CharSequence name) {
+		int seatNum = holdManager.release(inventory, name);
+		if (seatNum != SeatInventory.NOT_FOUND) {
+			return String.format("Seat %d is released", seatNum);
 		} else {
-			for (int i = 1; i <= maxNumberOfSeats; i++) {
-	    		if (!reservedSeats.containsValue(i)) {
-	    			reservedSeats.put(name, i);
-	    			return String.format("Seat assigned to you is %d", i);
-	    		}
-			}
-			
-			return "Uh oh, someone stole your seat, dude. This should never happen!";
+			return String.format("No hold found for %s", name);
+		}
+	}
+
+	private static void validateHoldSeconds(int seconds) throws CommandParser.InvalidCommandException {
+		if (seconds < 1) {
+			throw new CommandParser.InvalidCommandException(String.format("Error: a seat must be held for at least 1 second. Received %d instead.", seconds));
+		}
+	}
+
+	// Turns the result of a reserveBlock/bookRange into the response that is sent back to the client
+	private String formatBlockAssignment(int result, int numberOfSeats) {
+		if (result == SeatInventory.SOLD_OUT) {
+			return String.format("Sold out - Fewer than %d seats available", numberOfSeats);
+		} else if (result < 0) {
+			return formatAssignment(result, 0);
+		}
+		return String.format("Seats assigned to you are %d-%d", result, result + numberOfSeats - 1);
+	}
+
+	// Turns the result of a reserve/bookSeat into the response that is sent back to the client
+	private String formatAssignment(int result, int requestedSeatNum) {
+		switch (result) {
+			case SeatInventory.INVALID_SEAT:
+				return "This isn't Hilbert's Grand Hotel. We don't have that many seats!";
+			case SeatInventory.SOLD_OUT:
+				return "Sold out - No seat available";
+			case SeatInventory.ALREADY_BOOKED:
+				return "Seat already booked against the name provided";
+			case SeatInventory.SEAT_UNAVAILABLE:
+				return String.format("%d is not available", requestedSeatNum);
+			default:
+				return String.format("Seat assigned to you is %d", result);
 		}
 	}
 
@@ -195,34 +713,132 @@ public class Server {
     
     // The CommandHandler is a wrapper around the message handler.
     // It simply waits for a command, executes the command when it receives one, and sends a response back to the client
+    // Pipelined clients don't wait for a response before sending the next command, so the commands simply queue up
+    // in the connection and are answered in the order they arrived
+    // A TCP connection is closed and deregistered once its CommandHandler is done with it.
     private class CommandHandler implements Runnable {
     	private MessageHandler messageHandler;
+    	// the TCP connection's handle in the connectionRegistry, or null for UDP
+    	private ConnectionRegistry.Registration registration;
     	
-    	public CommandHandler(MessageHandler messageHandler) {
+    	public CommandHandler(MessageHandler messageHandler, ConnectionRegistry.Registration registration) {
     		this.messageHandler = messageHandler;
+    		this.registration = registration;
     	}
     	
 		@Override
 		public void run() {
+			try {
+				// A TCP client may ask for the binary protocol instead of text commands
+				if (messageHandler instanceof TCPMessageHandler && ((TCPMessageHandler) messageHandler).negotiateBinaryProtocol()) {
+					runBinary((TCPMessageHandler) messageHandler);
+				} else {
+					runText();
+				}
+			} catch (IOException e) {
+				// The connection was closed before it sent anything
+			} finally {
+				if (registration != null) {
+					messageHandler.close();
+					connectionRegistry.deregister(registration);
+				}
+			}
+		}
+		
+		// An invalid command closes a TCP connection. A UDP worker answers it with the error and keeps going,
+		// it serves every client, and a malformed datagram mustn't take it away from the others.
+		private void runText() {
 			while (isRunning) {
 				try {
 					String command = messageHandler.receiveMessage();
-					String response = executeCommand(command);
+					touch();
+					String response = executeMessage(command);
+					
+					long respondTime = System.nanoTime();
 					messageHandler.sendMessage(response);
+					stats.recordStage(ServerStats.Stage.RESPOND, System.nanoTime() - respondTime);
+				} catch (CommandParser.InvalidCommandException e) {
+					if (registration != null) {
+						break;
+					}
+					try {
+						messageHandler.sendMessage(e.getMessage());
+					} catch (IOException e1) {
+						abortUDPRequest();
+						break;
+					}
+				} catch (IOException e) {
+					abortUDPRequest();
+					break;
+				} catch (RuntimeException e) {
+					// The request couldn't be answered, but the UDP worker can go on with the next one
+					if (registration != null) {
+						break;
+					}
+					abortUDPRequest();
+				}
+			}
+		}
+		
+		// Forgets the UDP request this worker was answering, so a retransmission of it isn't dropped as in progress
+		private void abortUDPRequest() {
+			if (registration == null) {
+				serverUDPMessageHandler.abortMessage();
+			}
+		}
+		
+		private void runBinary(TCPMessageHandler tcpMessageHandler) {
+			while (isRunning) {
+				try {
+					ByteBuffer payload = tcpMessageHandler.receiveBinaryFrame();
+					touch();
+					ByteBuffer response = executeBinaryFrame(payload, true);
+					
+					long respondTime = System.nanoTime();
+					tcpMessageHandler.sendBinaryFrame(response);
+					stats.recordStage(ServerStats.Stage.RESPOND, System.nanoTime() - respondTime);
 				} catch (Exception e) {
 					break;
 				}
-			}			
+			}
+		}
+		
+		// Tells the connectionRegistry the connection isn't idle
+		private void touch() {
+			if (registration != null) {
+				connectionRegistry.touch(registration);
+			}
 		}
     }
     
     public static void main(String[] args) {
-        if (args.length != 3) {
+        if (args.length < 3) {
             System.out.println("ERROR: Provide 3 arguments");
             System.out.println("\t(1) <N>: the total number of available seats");
             System.out.println("\t\t\tassume the seat numbers are from 1 to N");
             System.out.println("\t(2) <tcpPort>: the port number for TCP connection");
             System.out.println("\t(3) <udpPort>: the port number for UDP connection");
+            System.out.println("Followed by any of these options:");
+            System.out.println("\t--frontend=threads|nio: how TCP connections are served (default: threads)");
+            System.out.println("\t--event-loops=<count>: the number of event loops for --frontend=nio (default: number of cores)");
+            System.out.println("\t--udp-workers=<count>: the number of threads answering UDP requests (default: number of cores)");
+            System.out.println("\t--udp-responses=<count>: the number of UDP responses kept to answer retransmitted requests (default: 65536)");
+            System.out.println("\t--threads=platform|virtual: the kind of threads that handlers run on (default: platform)");
+            System.out.println("\t--wal=<path>: keep a write-ahead log of every reservation in this file, and recover from it on startup");
+            System.out.println("\t--wal-sync=per-op|batched|interval: when the log is forced to disk (default: batched)");
+            System.out.println("\t--wal-sync-interval=<ms>: how often the log is forced to disk for --wal-sync=interval (default: 10)");
+            System.out.println("\t--inventory=single|sharded|offheap: one pool of seats, one per event with commands like \"@show42 reserve alice T\", or one pool kept off the Java heap (default: single)");
+            System.out.println("\t--shards=<count>: the number of threads owning the events for --inventory=sharded (default: number of cores)");
+            System.out.println("\t--max-events=<count>: the number of events that can be created for --inventory=sharded (default: 1024)");
+            System.out.println("\t--stats-interval=<seconds>: print the same stats as the STATS command this often (default: 0, never)");
+            System.out.println("\t--snapshot=<path>: keep a snapshot of the reservations in this file, so a restart only replays the end of the --wal log");
+            System.out.println("\t--snapshot-interval=<seconds>: how often a snapshot is taken (default: 60)");
+            System.out.println("\t--max-in-flight=<count>: answer BUSY instead of executing more commands than this at once (default: 0, no limit)");
+            System.out.println("\t--admission-limit=fixed|adaptive: keep the limit at --max-in-flight, or lower it while commands slow down (default: adaptive)");
+            System.out.println("\t--max-queue=<count>: the number of commands that may wait for their turn before the rest get BUSY (default: --max-in-flight)");
+            System.out.println("\t--queue-timeout=<ms>: how long a command waits for its turn before it gets BUSY (default: 50)");
+            System.out.println("\t--max-connections=<count>: answer BUSY to new TCP connections beyond this many (default: 0, no limit)");
+            System.out.println("\t--idle-timeout=<seconds>: close TCP connections that haven't sent anything for this long (default: 0, never)");
 
             System.exit(1);
         }
@@ -231,10 +847,21 @@ public class Server {
         int tcpPort = Integer.parseInt(args[1]);
         int udpPort = Integer.parseInt(args[2]);
         
+        ServerOptions options = null;
+        try {
+        	options = ServerOptions.parse(args, 3);
+        } catch (IllegalArgumentException e) {
+        	System.out.println(e.getMessage());
+        	System.exit(1);
+        }
+        
         // Create the server
         Server server = null;
         try {
-        	server = new Server(N, tcpPort, udpPort);
+        	server = new Server(N, tcpPort, udpPort, options);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+        	System.out.println(e.getMessage());
+        	System.exit(1);
         } catch (IOException e) {
             System.out.println("Error: Could not initialize the server.");
             e.printStackTrace();
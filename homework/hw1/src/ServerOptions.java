@@ -0,0 +1,186 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// Optional settings for the Server. They are given on the command line after the required arguments,
+// each one in the form --name=value. Any setting that isn't given falls back to its default.
+// Example:
+//      java Server 100 8000 9000 --frontend=nio --event-loops=4
+//      java Server 100 8000 9000 --threads=virtual
+//      java Server 100 8000 9000 --wal=seats.wal --wal-sync=batched
+//      java Server 100 8000 9000 --inventory=sharded --shards=8
+//      java Server 100 8000 9000 --wal=seats.wal --snapshot=seats.snapshot --snapshot-interval=30
+//      java Server 100 8000 9000 --max-in-flight=64 --max-queue=256 --max-connections=10000
+public class ServerOptions {
+
+	// Selects how the server accepts and serves TCP connections
+	public enum FrontEnd {
+		// one blocking TCPMessageHandler and CommandHandler thread per connection
+		THREADS,
+		// a few event loop threads multiplexing every connection, see NIOFrontEnd
+		NIO
+	}
+
+	// Selects how the seats are kept
+	public enum InventoryMode {
+		// one pool of seats shared by every command, see ConcurrentSeatInventory
+		SINGLE,
+		// one pool of seats per event, spread over single-writer shards, see ShardedSeatInventory
+		SHARDED,
+		// one pool of seats kept outside the Java heap, for venues with millions of seats, see OffHeapSeatInventory
+		OFFHEAP
+	}
+
+	// Selects what kind of threads run the accept loop, the CommandHandlers and the UDP handler
+	public enum ThreadType {
+		PLATFORM,
+		// cheap enough to keep one per idle connection, see VirtualThreads
+		VIRTUAL
+	}
+
+	private Map<String, String> values;
+
+	public ServerOptions() {
+		this.values = new HashMap<String, String>();
+	}
+
+	// Parses every argument from index first onwards as a --name=value option
+	public static ServerOptions parse(String[] args, int first) {
+		ServerOptions options = new ServerOptions();
+
+		for (int i = first; i < args.length; i++) {
+			String argument = args[i].trim();
+			int separator = argument.indexOf('=');
+			if (!argument.startsWith("--") || separator < 3) {
+				throw new IllegalArgumentException(String.format("Error: options must look like --name=value: %s", argument));
+			}
+
+			options.set(argument.substring(2, separator), argument.substring(separator + 1));
+		}
+
+		return options;
+	}
+
+	public ServerOptions set(String name, String value) {
+		values.put(name, value);
+		return this;
+	}
+
+	public String getString(String name, String defaultValue) {
+		String value = values.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		String value = values.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Error: --%s expects a number: %s", name, value));
+		}
+	}
+
+	public <E extends Enum<E>> E getEnum(String name, Class<E> enumClass, E defaultValue) {
+		String value = values.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Enum.valueOf(enumClass, value.toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(String.format("Error: unrecognized value for --%s: %s", name, value));
+		}
+	}
+
+	public FrontEnd getFrontEnd() {
+		return getEnum("frontend", FrontEnd.class, FrontEnd.THREADS);
+	}
+
+	public ThreadType getThreadType() {
+		return getEnum("threads", ThreadType.class, ThreadType.PLATFORM);
+	}
+
+	public InventoryMode getInventoryMode() {
+		return getEnum("inventory", InventoryMode.class, InventoryMode.SINGLE);
+	}
+
+	public int getNumberOfShards() {
+		return getInt("shards", Runtime.getRuntime().availableProcessors());
+	}
+
+	public int getMaxNumberOfEvents() {
+		return getInt("max-events", 1024);
+	}
+
+	public int getNumberOfEventLoops() {
+		return getInt("event-loops", Runtime.getRuntime().availableProcessors());
+	}
+
+	public int getNumberOfUDPWorkers() {
+		return getInt("udp-workers", Runtime.getRuntime().availableProcessors());
+	}
+
+	// the file the WriteAheadLog is kept in, or null to keep the reservations in memory only
+	public String getWALPath() {
+		return getString("wal", null);
+	}
+
+	public WriteAheadLog.SyncPolicy getWALSyncPolicy() {
+		return getEnum("wal-sync", WriteAheadLog.SyncPolicy.class, WriteAheadLog.SyncPolicy.BATCHED);
+	}
+
+	public int getWALSyncIntervalMillis() {
+		return getInt("wal-sync-interval", 10);
+	}
+
+	// the file a SeatInventorySnapshot is kept in, or null to recover from the write-ahead log alone
+	public String getSnapshotPath() {
+		return getString("snapshot", null);
+	}
+
+	public int getSnapshotIntervalSeconds() {
+		return getInt("snapshot-interval", 60);
+	}
+
+	// how often the server prints its ServerStats, or 0 to never print them
+	public int getStatsIntervalSeconds() {
+		return getInt("stats-interval", 0);
+	}
+
+	// the most commands that may execute at once (see AdmissionController), or 0 to admit every command
+	public int getMaxInFlight() {
+		return getInt("max-in-flight", 0);
+	}
+
+	public AdmissionController.LimitPolicy getAdmissionLimitPolicy() {
+		return getEnum("admission-limit", AdmissionController.LimitPolicy.class, AdmissionController.LimitPolicy.ADAPTIVE);
+	}
+
+	// the most commands that may wait for their turn to execute, beyond the ones that are executing
+	public int getMaxQueueLength() {
+		return getInt("max-queue", getMaxInFlight());
+	}
+
+	public int getQueueTimeoutMillis() {
+		return getInt("queue-timeout", 50);
+	}
+
+	// how many responses to tagged UDP requests are kept, to answer retransmissions (see UDPResponseCache)
+	public int getMaxUDPResponses() {
+		return getInt("udp-responses", 65536);
+	}
+
+	// the most TCP connections that may be open at once, or 0 for no limit
+	public int getMaxConnections() {
+		return getInt("max-connections", 0);
+	}
+
+	// how long a TCP connection may go without sending anything before it is closed, or 0 to keep it open forever
+	public int getIdleTimeoutSeconds() {
+		return getInt("idle-timeout", 0);
+	}
+}
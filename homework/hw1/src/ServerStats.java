@@ -0,0 +1,160 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for everything the server does, reported by the STATS command and --stats-interval.
+//
+// Every command that is executed is timed from the moment it starts being parsed until its changes are durable,
+// in one histogram per CommandType and Protocol. The stages of a request get a histogram each as well:
+//      PARSE   - turning the command string or binary frame into a command
+//      EXECUTE - running it against the seat inventory (including any wait for a section lock or a shard)
+//      SYNC    - waiting for the write-ahead log to make it durable
+//      RESPOND - handing the response to the socket
+// Time spent waiting for a request to arrive isn't counted, because an idle connection would swamp everything else.
+//
+// All of it can be updated from any number of threads without locks.
+public class ServerStats {
+	public enum Stage {
+		PARSE,
+		EXECUTE,
+		SYNC,
+		RESPOND
+	}
+
+	private static final CommandParser.Command.CommandType[] COMMAND_TYPES = CommandParser.Command.CommandType.values();
+	private static final Protocol[] PROTOCOLS = Protocol.values();
+	private static final Stage[] STAGES = Stage.values();
+
+	// indexed by [CommandType.ordinal()][Protocol.ordinal()]
+	private LatencyHistogram[][] commandLatencies;
+	private LatencyHistogram[] stageLatencies;
+
+	private LongAdder connectionsOpened;
+	private AtomicInteger openConnections;
+	private AtomicInteger requestsInFlight;
+	private LongAdder errors;
+	private LongAdder busy;
+	private LongAdder evicted;
+
+	private long startTime;
+
+	public ServerStats() {
+		this.commandLatencies = new LatencyHistogram[COMMAND_TYPES.length][PROTOCOLS.length];
+		for (int i = 0; i < COMMAND_TYPES.length; i++) {
+			for (int j = 0; j < PROTOCOLS.length; j++) {
+				commandLatencies[i][j] = new LatencyHistogram();
+			}
+		}
+
+		this.stageLatencies = new LatencyHistogram[STAGES.length];
+		for (int i = 0; i < STAGES.length; i++) {
+			stageLatencies[i] = new LatencyHistogram();
+		}
+
+		this.connectionsOpened = new LongAdder();
+		this.openConnections = new AtomicInteger();
+		this.requestsInFlight = new AtomicInteger();
+		this.errors = new LongAdder();
+		this.busy = new LongAdder();
+		this.evicted = new LongAdder();
+
+		this.startTime = System.nanoTime();
+	}
+
+	public void recordCommand(CommandParser.Command.CommandType commandType, Protocol protocol, long nanos) {
+		commandLatencies[commandType.ordinal()][protocol.ordinal()].record(nanos);
+	}
+
+	public void recordStage(Stage stage, long nanos) {
+		stageLatencies[stage.ordinal()].record(nanos);
+	}
+
+	// The latencies of a command over both protocols
+	public LatencyHistogram getCommandLatencies(CommandParser.Command.CommandType commandType) {
+		LatencyHistogram merged = new LatencyHistogram();
+		for (LatencyHistogram histogram : commandLatencies[commandType.ordinal()]) {
+			merged.add(histogram);
+		}
+		return merged;
+	}
+
+	public void connectionOpened() {
+		connectionsOpened.increment();
+		openConnections.incrementAndGet();
+	}
+
+	public void connectionClosed() {
+		openConnections.decrementAndGet();
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public void requestStarted() {
+		requestsInFlight.incrementAndGet();
+	}
+
+	public void requestFinished() {
+		requestsInFlight.decrementAndGet();
+	}
+
+	// an invalid command, or a connection that failed
+	public void error() {
+		errors.increment();
+	}
+
+	// a command or connection that was turned away with BUSY, see AdmissionController
+	public void busy() {
+		busy.increment();
+	}
+
+	// a connection that was closed for being idle, see ConnectionRegistry
+	public void connectionEvicted() {
+		evicted.increment();
+	}
+
+	// Everything on a single line, so it fits in a response:
+	//      uptime=12s connections=3 open=1 inFlight=1 errors=0 busy=0 evicted=0 | RESERVE/TCP n=10 p50=12.0us p99=40.1us p999=40.1us max=40.1us | ...
+	// Histograms that are still empty are left out.
+	public String summary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(
+			"uptime=%ds connections=%d open=%d inFlight=%d errors=%d busy=%d evicted=%d",
+			(System.nanoTime() - startTime) / 1000000000L,
+			connectionsOpened.sum(),
+			openConnections.get(),
+			requestsInFlight.get(),
+			errors.sum(),
+			busy.sum(),
+			evicted.sum()
+		));
+
+		for (CommandParser.Command.CommandType commandType : COMMAND_TYPES) {
+			for (Protocol protocol : PROTOCOLS) {
+				appendHistogram(summary, commandType.name() + "/" + protocol.name(), commandLatencies[commandType.ordinal()][protocol.ordinal()]);
+			}
+		}
+		for (Stage stage : STAGES) {
+			appendHistogram(summary, stage.name(), stageLatencies[stage.ordinal()]);
+		}
+
+		return summary.toString();
+	}
+
+	private static void appendHistogram(StringBuilder summary, String name, LatencyHistogram histogram) {
+		long count = histogram.getCount();
+		if (count == 0) {
+			return;
+		}
+
+		summary.append(String.format(
+			" | %s n=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+			name,
+			count,
+			histogram.getValueAtPercentile(50) / 1000.0,
+			histogram.getValueAtPercentile(99) / 1000.0,
+			histogram.getValueAtPercentile(99.9) / 1000.0,
+			histogram.getMax() / 1000.0
+		));
+	}
+}
@@ -1,48 +1,161 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
 
 // This UDP message handler is intended for use by the server.
 // It differs from the ClientUDPMessageHandler because the DatagramSocket needs to be
 // bound to a port.
+//
+// Several workers can share one ServerUDPMessageHandler. Every datagram that is received becomes a
+// UDPRequestContext that remembers its own reply address, so workers can receive and answer requests
+// in parallel and in any order:
+//      UDPRequestContext request = handler.receiveRequest();
+//      handler.sendResponse(request, response);
+// The MessageHandler methods still work as before. receiveMessage() remembers the request for the calling thread,
+// and the next sendMessage() from that thread answers it, or abortMessage() gives up on it.
+//
+// Tagged requests (see TaggedMessage) are the ones a client retransmits when it gets no answer
+// (see ClientUDPMessageHandler.sendRequest()). Their responses are kept in a UDPResponseCache, and
+// receiveRequest() answers a retransmission from there itself, so it never reaches a worker and is never
+// executed twice. Untagged requests are handed to the workers like before.
+//
+// The underlying DatagramChannel is in blocking mode, and the buffers for sending and receiving come from a pool.
 // See UDPMessageHandler and MessageHandler for more details
 public class ServerUDPMessageHandler extends UDPMessageHandler {
-	private int len = 1024;
-	private byte[] receiveData = new byte[len];
-	private DatagramPacket receivePacket;
-	
-	private volatile boolean newMessageReceived;
+	private static final Charset CHARSET = Charset.defaultCharset();
 
-	public ServerUDPMessageHandler(int udpPort) throws SocketException {
-		super(new DatagramSocket(udpPort));
-		receivePacket = new DatagramPacket(receiveData, receiveData.length);
-		newMessageReceived = false;
+	private DatagramChannel datagramChannel;
+	private ByteBufferPool bufferPool;
+	private UDPResponseCache responseCache;
+
+	// the request that each worker thread received last, and hasn't answered yet
+	private ThreadLocal<UDPRequestContext> currentRequest = new ThreadLocal<UDPRequestContext>();
+
+	// maxNumberOfResponses is how many responses to tagged requests are kept for retransmissions
+	public ServerUDPMessageHandler(int udpPort, int maxNumberOfResponses) throws IOException {
+		this(DatagramChannel.open().bind(new InetSocketAddress(udpPort)), maxNumberOfResponses);
 	}
 
-	public synchronized void sendMessage(String message) throws IOException {
-		if (newMessageReceived != true) {
-			throw new RuntimeException("Error: sendMessage() called before receiveMessage()!");
+	private ServerUDPMessageHandler(DatagramChannel datagramChannel, int maxNumberOfResponses) {
+		super(datagramChannel.socket());
+
+		this.datagramChannel = datagramChannel;
+		this.bufferPool = new ByteBufferPool(GlobalConstants.MAX_BUFFER_LENGTH, 4 * Runtime.getRuntime().availableProcessors());
+		this.responseCache = new UDPResponseCache(maxNumberOfResponses);
+	}
+
+	// Returns the next request that has to be executed. Retransmissions of tagged requests are taken care of here.
+	public UDPRequestContext receiveRequest() throws IOException {
+		while (true) {
+			UDPRequestContext request = receiveDatagram();
+			if (!request.isTagged()) {
+				return request;
+			}
+
+			String response = responseCache.begin(request.getReplyAddress(), request.getRequestId());
+			if (response == null) {
+				return request;
+			} else if (response != UDPResponseCache.IN_PROGRESS) {
+				send(request.getReplyAddress(), response);
+			}
 		}
-		
+	}
+
+	public void sendResponse(UDPRequestContext request, String message) throws IOException {
+		if (request.isTagged()) {
+			if (isBusy(message)) {
+				responseCache.abort(request.getReplyAddress(), request.getRequestId());
+			} else {
+				responseCache.complete(request.getReplyAddress(), request.getRequestId(), message);
+			}
+		}
+		send(request.getReplyAddress(), message);
+	}
+
+	// Forgets a request that couldn't be answered, e.g. because executing it threw. A retransmission of it
+	// gets executed then, instead of being dropped as in progress until it's evicted from the cache.
+	public void abortRequest(UDPRequestContext request) {
+		if (request.isTagged()) {
+			responseCache.abort(request.getReplyAddress(), request.getRequestId());
+		}
+	}
+
+	private UDPRequestContext receiveDatagram() throws IOException {
+		String message;
+		SocketAddress replyAddress;
+		ByteBuffer buffer = bufferPool.acquire();
+		try {
+			replyAddress = datagramChannel.receive(buffer);
+			buffer.flip();
+			message = CHARSET.decode(buffer).toString();
+		} finally {
+			bufferPool.release(buffer);
+		}
+
+		if (TaggedMessage.isTagged(message)) {
+			try {
+				return new UDPRequestContext(message, replyAddress, TaggedMessage.parse(message).getRequestId());
+			} catch (CommandParser.InvalidCommandException e) {
+				// Let the worker answer it with the error
+			}
+		}
+		return new UDPRequestContext(message, replyAddress);
+	}
+
+	// A request the server turned away wasn't executed, so a retransmission should be
+	private static boolean isBusy(String response) {
+		try {
+			return TaggedMessage.parse(response).getMessage().equals(AdmissionController.BUSY);
+		} catch (CommandParser.InvalidCommandException e) {
+			return false;
+		}
+	}
+
+	private void send(SocketAddress replyAddress, String message) throws IOException {
 		byte[] sendData = message.getBytes();
-		if (sendData.length > len) {
+		if (sendData.length > bufferPool.getBufferLength()) {
 			throw new RuntimeException(String.format("Error: Message too long"));
 		}
-		
-		DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, receivePacket.getAddress(), receivePacket.getPort());		
-		super.datagramSocket.send(sendPacket);
-		newMessageReceived = false;
+
+		ByteBuffer buffer = bufferPool.acquire();
+		try {
+			buffer.put(sendData);
+			buffer.flip();
+			datagramChannel.send(buffer, replyAddress);
+		} finally {
+			bufferPool.release(buffer);
+		}
 	}
 
-	public synchronized String receiveMessage() throws IOException {
-		if (newMessageReceived != false) {
+	public void sendMessage(String message) throws IOException {
+		UDPRequestContext request = currentRequest.get();
+		if (request == null) {
 			throw new RuntimeException("Error: sendMessage() called before receiveMessage()!");
 		}
-				
-		super.datagramSocket.receive(receivePacket);
-		
-		newMessageReceived = true;
-		return new String(receivePacket.getData(), 0, receivePacket.getLength());
+
+		currentRequest.remove();
+		sendResponse(request, message);
+	}
+
+	// Gives up on the request the calling thread received last, if it hasn't answered it (see abortRequest())
+	public void abortMessage() {
+		UDPRequestContext request = currentRequest.get();
+		if (request != null) {
+			currentRequest.remove();
+			abortRequest(request);
+		}
+	}
+
+	public String receiveMessage() throws IOException {
+		if (currentRequest.get() != null) {
+			throw new RuntimeException("Error: receiveMessage() called twice without a sendMessage()!");
+		}
+
+		UDPRequestContext request = receiveRequest();
+		currentRequest.set(request);
+		return request.getMessage();
 	}
-}
\ No newline at end of file
+}
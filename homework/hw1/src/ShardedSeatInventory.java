@@ -0,0 +1,258 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+// Keeps a separate seat inventory for every event (show), so one server can sell seats for many of them.
+//
+// The events are spread over a fixed number of shards by the hash of their id. Every shard is owned by a single
+// thread, and only that thread ever changes the seat data of its events, so each event is a plain (not thread
+// safe) BitSetSeatInventory behind a StampedLock that only searches racing a change ever wait on. Other threads hand their requests to the shard through its
+// queue, and wait for the answer. Commands for events in different shards run in parallel, so throughput grows
+// with the number of shards, as long as the load is spread over many events.
+// SEARCH doesn't go through the queue at all. The calling thread reads the event's seats itself, optimistically
+// (see PublishedSeatInventory), so it doesn't wait behind the bookings.
+//
+// Events are created the first time a command names them, each with maxNumberOfSeatsPerEvent seats.
+// Example usage:
+//      ShardedSeatInventory events = new ShardedSeatInventory(100, 4, 1024);
+//      events.start();
+//      SeatInventory show = events.getEvent("show42");
+//      int seatNum = show.reserve("alice"); // runs on show42's shard thread
+public class ShardedSeatInventory {
+	// the event that commands go to when they don't name one
+	public static final String DEFAULT_EVENT = "default";
+
+	private static final int QUEUE_LENGTH = 1024;
+
+	private static final int RESERVE = 1;
+	private static final int BOOK_SEAT = 2;
+	private static final int DELETE = 4;
+	private static final int COUNT_RESERVED_SEATS = 5;
+	private static final int RESERVE_BLOCK = 6;
+	private static final int BOOK_RANGE = 7;
+
+	private int maxNumberOfSeatsPerEvent;
+	private int maxNumberOfEvents;
+
+	private Shard[] shards;
+	private ConcurrentMap<String, Event> events;
+
+	public ShardedSeatInventory(int maxNumberOfSeatsPerEvent, int numberOfShards, int maxNumberOfEvents) {
+		assert (numberOfShards > 0);
+
+		this.maxNumberOfSeatsPerEvent = maxNumberOfSeatsPerEvent;
+		this.maxNumberOfEvents = maxNumberOfEvents;
+
+		this.shards = new Shard[numberOfShards];
+		for (int i = 0; i < numberOfShards; i++) {
+			shards[i] = new Shard("inventory-shard-" + i);
+		}
+
+		this.events = new ConcurrentHashMap<String, Event>();
+	}
+
+	public void start() {
+		for (Shard shard : shards) {
+			shard.thread.start();
+		}
+	}
+
+	// Stops the shard threads. The requests that are still waiting fail with an IllegalStateException.
+	public void close() {
+		for (Shard shard : shards) {
+			shard.isClosed = true;
+			shard.thread.interrupt();
+		}
+	}
+
+	// Returns the seat inventory of an event, creating it if this is the first time it's used.
+	// Every call on the returned inventory is executed by the event's shard thread.
+	public SeatInventory getEvent(String eventId) throws CommandParser.InvalidCommandException {
+		Event event = events.get(eventId);
+		if (event != null) {
+			return event;
+		}
+
+		if (events.size() >= maxNumberOfEvents) {
+			throw new CommandParser.InvalidCommandException(String.format("Error: no more than %d events can be created", maxNumberOfEvents));
+		}
+
+		return events.computeIfAbsent(eventId, new Function<String, Event>() {
+
+			@Override
+			public Event apply(String eventId) {
+				Shard shard = shards[Math.floorMod(eventId.hashCode(), shards.length)];
+				return new Event(shard, new PublishedSeatInventory(new BitSetSeatInventory(maxNumberOfSeatsPerEvent)));
+			}
+		});
+	}
+
+	public int getNumberOfEvents() {
+		return events.size();
+	}
+
+	// The handle for one event. Its seats may only be changed by its shard's thread, so every other call is sent there.
+	private static class Event implements SeatInventory {
+		private Shard shard;
+		private PublishedSeatInventory seats;
+
+		public Event(Shard shard, PublishedSeatInventory seats) {
+			this.shard = shard;
+			this.seats = seats;
+		}
+
+		@Override
+		public int reserve(CharSequence name) {
+			return shard.execute(this, RESERVE, name, 0, 0);
+		}
+
+		@Override
+		public int bookSeat(CharSequence name, int seatNum) {
+			return shard.execute(this, BOOK_SEAT, name, seatNum, 0);
+		}
+
+		@Override
+		public int reserveBlock(CharSequence name, int numberOfSeats) {
+			return shard.execute(this, RESERVE_BLOCK, name, numberOfSeats, 0);
+		}
+
+		@Override
+		public int bookRange(CharSequence name, int firstSeatNum, int lastSeatNum) {
+			return shard.execute(this, BOOK_RANGE, name, firstSeatNum, lastSeatNum);
+		}
+
+		// Runs on the calling thread, it only reads what the shard thread has published
+		@Override
+		public int search(CharSequence name) {
+			return seats.search(name);
+		}
+
+		@Override
+		public int delete(CharSequence name) {
+			return shard.execute(this, DELETE, name, 0, 0);
+		}
+
+		@Override
+		public int getMaxNumberOfSeats() {
+			return seats.getMaxNumberOfSeats();
+		}
+
+		@Override
+		public int getNumberOfReservedSeats() {
+			return shard.execute(this, COUNT_RESERVED_SEATS, null, 0, 0);
+		}
+	}
+
+	// A request waiting in a shard's queue. The thread that sent it parks until the shard sets isDone.
+	// If the request failed, failure says why, and result means nothing.
+	// name can be a CharSlice of the sender's own request, since the sender doesn't move on until the shard is done with it.
+	private static class Request {
+		private Event event;
+		private int operation;
+		private CharSequence name;
+		private int number;
+		private int secondNumber;
+
+		private Thread waiter;
+		private int result;
+		private RuntimeException failure;
+		private volatile boolean isDone;
+
+		public Request(Event event, int operation, CharSequence name, int number, int secondNumber) {
+			this.event = event;
+			this.operation = operation;
+			this.name = name;
+			this.number = number;
+			this.secondNumber = secondNumber;
+			this.waiter = Thread.currentThread();
+		}
+	}
+
+	private static class Shard implements Runnable {
+		private BlockingQueue<Request> queue;
+		private Thread thread;
+		private volatile boolean isClosed;
+
+		public Shard(String name) {
+			this.queue = new ArrayBlockingQueue<Request>(QUEUE_LENGTH);
+			this.thread = new Thread(this, name);
+			this.thread.setDaemon(true);
+		}
+
+		// Sends a request to the shard's thread, and waits for its result.
+		// Parking doesn't pin virtual threads, unlike waiting on a monitor.
+		public int execute(Event event, int operation, CharSequence name, int number, int secondNumber) {
+			Request request = new Request(event, operation, name, number, secondNumber);
+			try {
+				queue.put(request);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Error: interrupted while waiting for the seat inventory", e);
+			}
+
+			while (!request.isDone) {
+				// Once the shard is closed, nobody may take the request anymore
+				if (isClosed && queue.remove(request)) {
+					throw new IllegalStateException("Error: the seat inventory was closed");
+				}
+				LockSupport.park(this);
+			}
+
+			if (request.failure != null) {
+				throw new IllegalStateException(request.failure.getMessage(), request.failure);
+			}
+			return request.result;
+		}
+
+		// A request that throws only fails its own caller, the shard goes on with the next one
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Request request = queue.take();
+					try {
+						request.result = apply(request);
+					} catch (RuntimeException e) {
+						request.failure = e;
+					}
+					finish(request);
+				}
+			} catch (InterruptedException e) {
+				// The inventory was closed. Don't leave anyone waiting for a request that will never run.
+				Request request;
+				while ((request = queue.poll()) != null) {
+					request.failure = new IllegalStateException("Error: the seat inventory was closed");
+					finish(request);
+				}
+			}
+		}
+
+		private void finish(Request request) {
+			request.isDone = true;
+			LockSupport.unpark(request.waiter);
+		}
+
+		private int apply(Request request) {
+			PublishedSeatInventory seats = request.event.seats;
+			switch (request.operation) {
+				case RESERVE:
+					return seats.reserve(request.name);
+				case BOOK_SEAT:
+					return seats.bookSeat(request.name, request.number);
+				case RESERVE_BLOCK:
+					return seats.reserveBlock(request.name, request.number);
+				case BOOK_RANGE:
+					return seats.bookRange(request.name, request.number, request.secondNumber);
+				case DELETE:
+					return seats.delete(request.name);
+				case COUNT_RESERVED_SEATS:
+					return seats.getNumberOfReservedSeats();
+				default:
+					throw new IllegalStateException(String.format("Error: unknown shard operation: %d", request.operation));
+			}
+		}
+	}
+}
@@ -1,14 +1,30 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TCPMessageHandler implements MessageHandler {
     private Socket socket;
     BufferedReader reader;
     PrintWriter writer;
+    
+    // the raw streams underneath reader and writer, for the binary protocol (see BinaryProtocol)
+    private DataInputStream input;
+    private OutputStream output;
+    
+    // lets several threads send over the same connection, e.g. when pipelining requests.
+    // This is a Lock rather than synchronized, so a blocked virtual thread doesn't pin its carrier thread.
+    private Lock writeLock = new ReentrantLock();
+    
     // this is a convenience constructor that creates a Socket object in addition to creating a TCPMessageHandler object.
     public TCPMessageHandler(String hostAddress, int tcpPort) throws UnknownHostException, IOException {
     	this(new Socket(hostAddress, tcpPort));
@@ -17,19 +33,86 @@ public class TCPMessageHandler implements MessageHandler {
     public TCPMessageHandler(Socket socket) throws IOException {
     	this.socket = socket;
     	
-    	reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-    	writer = new PrintWriter(socket.getOutputStream());
+    	input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    	output = socket.getOutputStream();
+    	
+    	reader = new BufferedReader(new InputStreamReader(input));
+    	writer = new PrintWriter(output);
     }
 
 	public void sendMessage(String message) {
-		writer.println(message);
-		writer.flush();
+		writeLock.lock();
+		try {
+			writer.println(message);
+			writer.flush();
+		} finally {
+			writeLock.unlock();
+		}
     }
 
 	public String receiveMessage() throws IOException {
 		return reader.readLine().trim();
 	}
 	
+	// sends a message tagged with requestId, see TaggedMessage
+	public void sendTaggedMessage(long requestId, String message) {
+		sendMessage(new TaggedMessage(requestId, message).toString());
+	}
+	
+	// receives a message tagged with a request id, see TaggedMessage
+	public TaggedMessage receiveTaggedMessage() throws IOException {
+		String line = receiveMessage();
+		try {
+			return TaggedMessage.parse(line);
+		} catch (CommandParser.InvalidCommandException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+	
+	// Used by the client to switch the connection over to the binary protocol.
+	// It must be called before anything else is sent over the connection.
+	public void enableBinaryProtocol() throws IOException {
+		writeLock.lock();
+		try {
+			output.write(BinaryProtocol.MAGIC);
+			output.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	// Used by the server to find out which protocol the client is going to speak. It blocks until the first byte
+	// arrives, and returns true (consuming the byte) if the client asked for the binary protocol.
+	// It must be called before anything else is received over the connection.
+	public boolean negotiateBinaryProtocol() throws IOException {
+		input.mark(1);
+		int firstByte = input.read();
+		if (firstByte < 0) {
+			throw new EOFException();
+		} else if (firstByte == BinaryProtocol.MAGIC) {
+			return true;
+		}
+		
+		input.reset();
+		return false;
+	}
+	
+	// sends a frame built by BinaryProtocol
+	public void sendBinaryFrame(ByteBuffer frame) throws IOException {
+		writeLock.lock();
+		try {
+			output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+			output.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	// receives a frame and returns its payload, which can be decoded by BinaryProtocol
+	public ByteBuffer receiveBinaryFrame() throws IOException {
+		return BinaryProtocol.readFrame(input);
+	}
+	
 	public void close() {
 		try {
 			socket.close();
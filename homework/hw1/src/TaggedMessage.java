@@ -0,0 +1,57 @@
+// A message tagged with a request id, for the pipelined protocol.
+// On the wire, a tagged message is a regular message prefixed with '#' and its request id:
+//      #42 bookSeat alice 12 T
+//      #42 Seat assigned to you is 12
+// A client can send many tagged requests over one connection without waiting for the responses in between.
+// Each response carries the id of the request it answers, so the client can match them up no matter what order
+// they arrive in. Messages without a tag are answered exactly like before.
+public class TaggedMessage {
+	// the most characters a tag adds to a message: '#', a long and a space
+	public static final int MAX_TAG_LENGTH = 1 + 20 + 1;
+
+	private static final char TAG_PREFIX = '#';
+
+	private long requestId;
+	private String message;
+
+	public TaggedMessage(long requestId, String message) {
+		this.requestId = requestId;
+		this.message = message;
+	}
+
+	public static boolean isTagged(String line) {
+		return line.length() > 0 && line.charAt(0) == TAG_PREFIX;
+	}
+
+	public static TaggedMessage parse(String line) throws CommandParser.InvalidCommandException {
+		if (!isTagged(line)) {
+			throw new CommandParser.InvalidCommandException(String.format("Error: message has no request id: %s", line));
+		}
+
+		int separator = line.indexOf(' ');
+		if (separator < 0) {
+			separator = line.length();
+		}
+
+		try {
+			long requestId = Long.parseLong(line.substring(1, separator));
+			String message = separator < line.length() ? line.substring(separator + 1) : "";
+			return new TaggedMessage(requestId, message);
+		} catch (NumberFormatException e) {
+			throw new CommandParser.InvalidCommandException(String.format("Error: invalid request id: %s", line.substring(0, separator)));
+		}
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return TAG_PREFIX + Long.toString(requestId) + " " + message;
+	}
+}
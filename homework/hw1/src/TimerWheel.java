@@ -0,0 +1,216 @@
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps track of a large number of timeouts, e.g. one for every open connection or every seat on hold,
+// for the cost of a few pointers each.
+//
+// Time is cut into ticks of tickNanos. The wheel is hierarchical, like the hands of a clock: it has NUMBER_OF_LEVELS
+// levels of 64 buckets each, and a bucket at level L spans 64^L ticks:
+//      level 0 - the next 64 ticks, a bucket per tick
+//      level 1 - the next 64^2 ticks, a bucket per 64 ticks
+//      ...
+// A timeout goes into the lowest level that can still tell its tick apart from the current one, in a doubly
+// linked list, so scheduling and cancelling it are O(1) no matter how far away it is.
+// Nothing runs per timeout while time passes. Instead, the owner calls expire() now and then, which goes over the
+// ticks that went by since the last call. Whenever a tick starts a new bucket of a higher level, that bucket is
+// emptied into the levels below it (so a timeout moves at most NUMBER_OF_LEVELS times in its life), and then every
+// timeout in the tick's level 0 bucket is due. They are all handed back in one batch.
+//
+// Timeouts expire up to one tick late, never early. All methods are thread safe.
+// Example usage:
+//      TimerWheel<Connection> wheel = new TimerWheel<Connection>(TimeUnit.MILLISECONDS.toNanos(100), System.nanoTime());
+//      TimerWheel.Timeout<Connection> timeout = wheel.schedule(connection, System.nanoTime() + idleTimeoutNanos);
+//      ...
+//      wheel.cancel(timeout);
+//      ...
+//      List<Connection> expired = new ArrayList<Connection>();
+//      wheel.expire(System.nanoTime(), expired);
+public class TimerWheel<T> {
+	private static final int BUCKET_BITS = 6;
+	private static final int BUCKETS_PER_LEVEL = 1 << BUCKET_BITS;
+	private static final int MASK = BUCKETS_PER_LEVEL - 1;
+	// 64^6 ticks, e.g. over two years of 1ms ticks. A timeout that is even further away waits in the top level,
+	// and moves down once it gets closer.
+	private static final int NUMBER_OF_LEVELS = 6;
+
+	// A scheduled task. It is in at most one bucket at a time.
+	public static class Timeout<T> {
+		private T task;
+		private long deadlineTick;
+		// -1 while the timeout isn't scheduled
+		private int level = -1;
+		private int bucket;
+		private Timeout<T> previous;
+		private Timeout<T> next;
+
+		private Timeout(T task) {
+			this.task = task;
+		}
+
+		public T getTask() {
+			return task;
+		}
+	}
+
+	private long tickNanos;
+	private long startNanos;
+
+	// the first timeout in each bucket of each level, or null
+	private Timeout<T>[][] buckets;
+	// every tick up to this one has been expired
+	private long currentTick;
+	private int size;
+
+	private Lock lock;
+
+	@SuppressWarnings("unchecked")
+	public TimerWheel(long tickNanos, long startNanos) {
+		assert (tickNanos > 0);
+
+		this.tickNanos = tickNanos;
+		this.startNanos = startNanos;
+		this.buckets = (Timeout<T>[][]) new Timeout<?>[NUMBER_OF_LEVELS][BUCKETS_PER_LEVEL];
+
+		this.lock = new ReentrantLock();
+	}
+
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	// the number of timeouts that are scheduled
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Schedules task to expire at deadlineNanos (in System.nanoTime() terms), and returns its handle for cancel()
+	public Timeout<T> schedule(T task, long deadlineNanos) {
+		Timeout<T> timeout = new Timeout<T>(task);
+		lock.lock();
+		try {
+			// A deadline that has already passed expires on the next tick
+			timeout.deadlineTick = Math.max(deadlineTickOf(deadlineNanos), currentTick + 1);
+			link(timeout);
+			size++;
+			return timeout;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Returns true if the timeout was cancelled, or false if it had already expired or been cancelled
+	public boolean cancel(Timeout<T> timeout) {
+		lock.lock();
+		try {
+			if (timeout.level < 0) {
+				return false;
+			}
+			unlink(timeout);
+			size--;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Adds the task of every timeout that is due at nowNanos to expired, and returns how many there were
+	public int expire(long nowNanos, List<T> expired) {
+		lock.lock();
+		try {
+			long nowTick = tickOf(nowNanos);
+			int count = 0;
+			while (currentTick < nowTick) {
+				// Nothing left to move down or expire, so skip straight to now
+				if (size == 0) {
+					currentTick = nowTick;
+					break;
+				}
+
+				currentTick++;
+				cascade();
+
+				Timeout<T> timeout = buckets[0][(int) (currentTick & MASK)];
+				while (timeout != null) {
+					Timeout<T> next = timeout.next;
+					unlink(timeout);
+					size--;
+					expired.add(timeout.task);
+					count++;
+					timeout = next;
+				}
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// If currentTick starts a new bucket at some of the higher levels, moves their timeouts down, top level first,
+	// since the timeouts of a higher level may land in the bucket of a lower level that starts now too
+	private void cascade() {
+		int highestLevel = 0;
+		while (highestLevel + 1 < NUMBER_OF_LEVELS && (currentTick & ((1L << (BUCKET_BITS * (highestLevel + 1))) - 1)) == 0) {
+			highestLevel++;
+		}
+
+		for (int level = highestLevel; level > 0; level--) {
+			int bucket = (int) ((currentTick >>> (BUCKET_BITS * level)) & MASK);
+			Timeout<T> timeout = buckets[level][bucket];
+			buckets[level][bucket] = null;
+			while (timeout != null) {
+				Timeout<T> next = timeout.next;
+				link(timeout);
+				timeout = next;
+			}
+		}
+	}
+
+	// the tick that nanos falls in
+	private long tickOf(long nanos) {
+		return Math.max(0, nanos - startNanos) / tickNanos;
+	}
+
+	// the first tick that starts at or after deadlineNanos, so a timeout never expires early
+	private long deadlineTickOf(long deadlineNanos) {
+		return (Math.max(0, deadlineNanos - startNanos) + tickNanos - 1) / tickNanos;
+	}
+
+	// Puts the timeout into the lowest level that can tell its tick apart from currentTick
+	private void link(Timeout<T> timeout) {
+		long ticksLeft = timeout.deadlineTick - currentTick;
+		int level = 0;
+		while (level + 1 < NUMBER_OF_LEVELS && ticksLeft >= (1L << (BUCKET_BITS * (level + 1)))) {
+			level++;
+		}
+
+		int bucket = (int) ((timeout.deadlineTick >>> (BUCKET_BITS * level)) & MASK);
+		timeout.level = level;
+		timeout.bucket = bucket;
+		timeout.previous = null;
+		timeout.next = buckets[level][bucket];
+		if (timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+		buckets[level][bucket] = timeout;
+	}
+
+	private void unlink(Timeout<T> timeout) {
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			buckets[timeout.level][timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.level = -1;
+		timeout.previous = null;
+		timeout.next = null;
+	}
+}
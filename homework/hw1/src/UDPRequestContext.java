@@ -0,0 +1,39 @@
+import java.net.SocketAddress;
+
+// Everything the server needs to answer a single UDP request: the message that arrived, and where it came from.
+// Each request gets its own context, so any number of workers can be answering requests at the same time
+// without stepping on each other's reply address (see ServerUDPMessageHandler).
+// A tagged request (see TaggedMessage) also remembers its request id, so its response can be kept for retransmissions.
+public class UDPRequestContext {
+	private String message;
+	private SocketAddress replyAddress;
+	private boolean isTagged;
+	private long requestId;
+
+	public UDPRequestContext(String message, SocketAddress replyAddress) {
+		this.message = message;
+		this.replyAddress = replyAddress;
+	}
+
+	public UDPRequestContext(String message, SocketAddress replyAddress, long requestId) {
+		this(message, replyAddress);
+		this.isTagged = true;
+		this.requestId = requestId;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public SocketAddress getReplyAddress() {
+		return replyAddress;
+	}
+
+	public boolean isTagged() {
+		return isTagged;
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+}
@@ -0,0 +1,98 @@
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the responses the server sent to recent tagged UDP requests, so a client that retransmits a request
+// (see ClientUDPMessageHandler) gets the same answer again, instead of having it executed a second time.
+// Reserving twice would give the client two seats, and deleting twice would answer NOT_FOUND the second time.
+//
+// A request is known by the address it came from and its request id. Each one goes through these steps:
+//      begin()    - the first copy to arrive is executed, and the request is marked as in progress
+//      complete() - its response is kept, and every later copy is answered with it
+// A copy that arrives while the request is still in progress is simply dropped. The response is on its way, and
+// if that gets lost too, the client will retransmit again. A request that the server turned away (BUSY) is
+// forgotten with abort(), so a retransmission does get executed.
+//
+// At most maxNumberOfEntries requests are kept. Once there are more, the oldest ones are evicted. A client stops
+// retransmitting after a few seconds, so the cache only has to cover the last few seconds worth of requests.
+// Example usage:
+//      UDPResponseCache cache = new UDPResponseCache(65536);
+//      String response = cache.begin(replyAddress, requestId);
+//      if (response == null) {
+//          response = execute(request);
+//          cache.complete(replyAddress, requestId, response);
+//      } else if (response == UDPResponseCache.IN_PROGRESS) {
+//          return; // drop the copy
+//      }
+//      send(response);
+public class UDPResponseCache {
+	// what begin() returns for a request that is still being executed. Compare it with ==.
+	public static final String IN_PROGRESS = new String("IN_PROGRESS");
+
+	private LinkedHashMap<Key, String> responses;
+
+	public UDPResponseCache(final int maxNumberOfEntries) {
+		assert (maxNumberOfEntries > 0);
+
+		this.responses = new LinkedHashMap<Key, String>() {
+
+			private static final long serialVersionUID = 6254193088406529071L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+				return size() > maxNumberOfEntries;
+			}
+		};
+	}
+
+	// Returns null if this is the first copy of the request, which the caller has to execute and then complete().
+	// Otherwise, returns either IN_PROGRESS or the response to send again.
+	public synchronized String begin(SocketAddress replyAddress, long requestId) {
+		Key key = new Key(replyAddress, requestId);
+		String response = responses.get(key);
+		if (response == null) {
+			responses.put(key, IN_PROGRESS);
+		}
+		return response;
+	}
+
+	public synchronized void complete(SocketAddress replyAddress, long requestId, String response) {
+		Key key = new Key(replyAddress, requestId);
+		// If the request was evicted while it executed, there's no room to keep its response either
+		if (responses.containsKey(key)) {
+			responses.put(key, response);
+		}
+	}
+
+	public synchronized void abort(SocketAddress replyAddress, long requestId) {
+		responses.remove(new Key(replyAddress, requestId));
+	}
+
+	public synchronized int size() {
+		return responses.size();
+	}
+
+	private static class Key {
+		private SocketAddress replyAddress;
+		private long requestId;
+
+		public Key(SocketAddress replyAddress, long requestId) {
+			this.replyAddress = replyAddress;
+			this.requestId = requestId;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return requestId == key.requestId && replyAddress.equals(key.replyAddress);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * replyAddress.hashCode() + Long.hashCode(requestId);
+		}
+	}
+}
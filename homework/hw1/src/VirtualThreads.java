@@ -0,0 +1,37 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+// Creates virtual threads (Java 21 and up) for the server's blocking handlers.
+// Thread.ofVirtual() is looked up reflectively, so the rest of the server still builds and runs on older JVMs.
+// On those JVMs, isSupported() returns false and newThreadFactory() throws an UnsupportedOperationException.
+// Server checks isSupported() first, so --threads=virtual is turned down before the server opens anything.
+public class VirtualThreads {
+
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	// Returns a factory that starts each Runnable on its own virtual thread.
+	// Equivalent to Thread.ofVirtual().name(namePrefix, 0).factory()
+	public static ThreadFactory newThreadFactory(String namePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			Method factory = builderClass.getMethod("factory");
+
+			builder = name.invoke(builder, namePrefix, 0L);
+			return (ThreadFactory) factory.invoke(builder);
+
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException(
+				String.format("Error: virtual threads require Java 21 or later. This JVM is %s.", System.getProperty("java.version")), e);
+		}
+	}
+}
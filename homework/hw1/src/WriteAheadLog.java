@@ -0,0 +1,464 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// A durable log of every change to the seat inventory, so reservations survive a crash or a SHUTDOWN.
+//
+// The log listens to the inventory (see SeatInventory.MutationListener) and appends one record per change:
+//      int length, byte type (BOOKED, RELEASED, ...), int seatNum, unsigned short nameLength, name (UTF-8), int crc32
+// A BLOCK_BOOKED record (a block of adjacent seats, see SeatInventory.reserveBlock()) has an int numberOfSeats
+// right after the seatNum. A RELEASED record releases the whole block, so it doesn't need one.
+// The log also listens to the HoldManager: a HELD record puts the reservation of name on hold until a long
+// deadlineMillis (right after the seatNum), and a CONFIRMED record takes it off. A hold that is released or expires
+// ends with the RELEASED record of its reservation.
+// The length covers everything after itself, and the checksum covers everything before it except the length.
+// The nameLength is unsigned, so a name can be up to MAX_NAME_BYTES long (CommandParser keeps them much shorter).
+// On startup, replay() re-applies every record to an empty inventory, and collects the holds that were still
+// pending for the HoldManager to restore. It stops at the first torn or corrupt record
+// (the tail of a write that was cut short by a crash), and cuts the file off there.
+//
+// A command's changes are only appended to an in-memory buffer. The command then calls sync() before it answers
+// the client, and sync() waits until the changes are on disk. How that happens depends on the SyncPolicy:
+//      PER_OP   - every change is written and forced to disk by itself, before the command continues
+//      BATCHED  - group commit. The first command to call sync() writes out and forces everything that is buffered,
+//                 including the changes of every other command that is waiting, with a single force().
+//                 Commands that arrive while a force is in flight wait for it, and then go out together in the next one.
+//      INTERVAL - a background thread writes out and forces the buffer every syncIntervalMillis. sync() doesn't wait,
+//                 so a crash can lose the changes of the last interval.
+//
+// The position of a record in the file is its log sequence number (LSN).
+// Once a write or force fails, the log doesn't know what made it to the file anymore, so it fails every later
+// append(), sync() and flush instead of writing after a gap. A restart replays whatever is intact.
+public class WriteAheadLog implements SeatInventory.MutationListener, HoldManager.HoldListener {
+	public enum SyncPolicy {
+		PER_OP,
+		BATCHED,
+		INTERVAL
+	}
+
+	private static final byte BOOKED = 1;
+	private static final byte RELEASED = 2;
+	private static final byte BLOCK_BOOKED = 3;
+	private static final byte HELD = 4;
+	private static final byte CONFIRMED = 5;
+
+	// everything in a record except the name: length, type, seatNum, nameLength and crc32
+	private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 2 + 4;
+	private static final int INITIAL_BUFFER_LENGTH = 64 * GlobalConstants.MAX_BUFFER_LENGTH;
+	public static final int MAX_NAME_BYTES = 0xFFFF;
+
+	private FileChannel fileChannel;
+	private SyncPolicy syncPolicy;
+
+	// This is a Lock rather than synchronized, so threads waiting on a force() don't pin virtual threads
+	private Lock lock;
+	private Condition flushCompleted;
+
+	// records that were appended, but haven't been written to the file yet
+	private ByteBuffer pendingRecords;
+	// the buffer that is being written by the thread doing the flush
+	private ByteBuffer flushingRecords;
+	private boolean isFlushing;
+
+	// where the next write goes. Only the thread doing the flush (or PER_OP appends, under the lock) touch it.
+	private long filePosition;
+
+	// the LSN just past the last appended record, and the last record that is known to be on disk
+	private long appendedPosition;
+	private long durablePosition;
+
+	// the error that broke the log, or null. Guarded by the lock.
+	private IOException failure;
+
+	// the LSN just past the last record each thread appended. sync() waits for this one.
+	private ThreadLocal<long[]> lastAppendedPosition;
+
+	private Thread intervalFlusher;
+	// Never interrupt a thread that may be writing to the file: that closes the FileChannel for everyone
+	private CountDownLatch closed;
+
+	private CRC32 crc32;
+
+	public WriteAheadLog(Path path, SyncPolicy syncPolicy, final long syncIntervalMillis) throws IOException {
+		this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.syncPolicy = syncPolicy;
+
+		this.lock = new ReentrantLock();
+		this.flushCompleted = lock.newCondition();
+
+		this.pendingRecords = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+		this.flushingRecords = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+		this.isFlushing = false;
+
+		this.filePosition = fileChannel.size();
+		this.appendedPosition = filePosition;
+		this.durablePosition = appendedPosition;
+
+		this.lastAppendedPosition = new ThreadLocal<long[]>() {
+
+			@Override
+			protected long[] initialValue() {
+				return new long[1];
+			}
+		};
+
+		this.crc32 = new CRC32();
+		this.closed = new CountDownLatch(1);
+
+		if (syncPolicy == SyncPolicy.INTERVAL) {
+			this.intervalFlusher = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						while (!closed.await(syncIntervalMillis, TimeUnit.MILLISECONDS)) {
+							flush(Long.MAX_VALUE);
+						}
+					} catch (InterruptedException | IOException e) {
+						// close() still flushes whatever is left
+					}
+				}
+			}, "wal-interval-flusher");
+			this.intervalFlusher.setDaemon(true);
+			this.intervalFlusher.start();
+		}
+	}
+
+	// Re-applies every intact record in the log at path to seatInventory, and cuts off any torn record at the end.
+	// The holds that are still pending at the end of the log end up in pendingHolds (deadline by name), which may
+	// already hold the ones a snapshot had.
+	// startPosition is the LSN to start from: 0 for the whole log, or the LSN a SeatInventorySnapshot was taken at.
+	// Records are applied so that replaying a change the inventory already has is harmless (see apply()),
+	// which is what lets a fuzzy snapshot be patched up by the tail of the log.
+	// Returns the number of records that were replayed.
+	public static int replay(Path path, long startPosition, ConcurrentSeatInventory seatInventory, Map<String, Long> pendingHolds) throws IOException {
+		int numberOfRecords = 0;
+
+		try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (startPosition > fileChannel.size()) {
+				throw new IOException(String.format("Error: the log ends at %d, before the snapshot position %d", fileChannel.size(), startPosition));
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+			buffer.flip();
+			long position = startPosition;
+			fileChannel.position(startPosition);
+
+			CRC32 crc32 = new CRC32();
+			while (true) {
+				// Make sure the next record is completely in the buffer
+				if (buffer.remaining() < 4 || buffer.remaining() < 4 + buffer.getInt(buffer.position())) {
+					if (buffer.remaining() >= 4) {
+						// A length that runs past the end of the file is a torn record. Anything else is a record,
+						// however long, and the buffer grows to hold it.
+						long recordLength = 4L + buffer.getInt(buffer.position());
+						if (recordLength < 4 || position + recordLength > fileChannel.size()) {
+							break;
+						}
+						if (recordLength > buffer.capacity()) {
+							ByteBuffer grown = ByteBuffer.allocate((int) recordLength);
+							grown.put(buffer);
+							grown.flip();
+							buffer = grown;
+						}
+					}
+
+					buffer.compact();
+					int bytesRead = fileChannel.read(buffer);
+					buffer.flip();
+
+					if (bytesRead <= 0 && (buffer.remaining() < 4 || buffer.remaining() < 4 + buffer.getInt(buffer.position()))) {
+						break;
+					}
+					continue;
+				}
+
+				int length = buffer.getInt();
+				int recordStart = buffer.position();
+				if (length < RECORD_OVERHEAD - 4) {
+					break;
+				}
+
+				crc32.reset();
+				crc32.update(buffer.array(), buffer.arrayOffset() + recordStart, length - 4);
+				buffer.position(recordStart + length - 4);
+				if ((int) crc32.getValue() != buffer.getInt()) {
+					break;
+				}
+
+				buffer.position(recordStart);
+				byte type = buffer.get();
+				int seatNum = buffer.getInt();
+				int numberOfSeats = type == BLOCK_BOOKED ? buffer.getInt() : 1;
+				long deadlineMillis = type == HELD ? buffer.getLong() : 0;
+				byte[] name = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(name);
+				buffer.getInt();
+
+				String nameString = new String(name, StandardCharsets.UTF_8);
+				if (type == HELD) {
+					pendingHolds.put(nameString, deadlineMillis);
+				} else if (type == CONFIRMED) {
+					pendingHolds.remove(nameString);
+				} else {
+					if (type == RELEASED) {
+						pendingHolds.remove(nameString);
+					}
+					apply(seatInventory, type, nameString, seatNum, numberOfSeats);
+				}
+				numberOfRecords++;
+				position += 4 + length;
+			}
+
+			// Whatever is past the last intact record was never acknowledged to a client. Cut it off, so new records
+			// are appended right after the intact ones.
+			if (fileChannel.size() > position) {
+				fileChannel.truncate(position);
+				fileChannel.force(true);
+			}
+		}
+
+		return numberOfRecords;
+	}
+
+	// Makes the inventory look the way it did right after the record was written, whatever it looked like before.
+	// A snapshot may already contain this change, or a later one for the same name or seat. Whatever the record
+	// overwrites here, a later record in the log puts back, because the last record that touches a name or a seat
+	// decides where it ends up.
+	private static void apply(ConcurrentSeatInventory seatInventory, byte type, String name, int seatNum, int numberOfSeats) throws IOException {
+		if (type == BOOKED) {
+			int currentSeatNum = seatInventory.search(name);
+			if (currentSeatNum == seatNum) {
+				return;
+			} else if (currentSeatNum > 0) {
+				seatInventory.delete(name);
+			}
+
+			String currentName = seatInventory.getNameOfSeat(seatNum);
+			if (currentName != null) {
+				seatInventory.delete(currentName);
+			}
+
+			if (seatInventory.bookSeat(name, seatNum) != seatNum) {
+				throw new IOException(String.format("Error: the log books seat %d for %s, but that conflicts with the inventory", seatNum, name));
+			}
+		} else if (type == BLOCK_BOOKED) {
+			// Whatever the name or the seats are holding, they end up holding this block
+			seatInventory.delete(name);
+			for (int i = seatNum; i < seatNum + numberOfSeats; i++) {
+				String currentName = seatInventory.getNameOfSeat(i);
+				if (currentName != null) {
+					seatInventory.delete(currentName);
+				}
+			}
+
+			if (seatInventory.bookRange(name, seatNum, seatNum + numberOfSeats - 1) != seatNum) {
+				throw new IOException(String.format("Error: the log books seats %d-%d for %s, but that conflicts with the inventory", seatNum, seatNum + numberOfSeats - 1, name));
+			}
+		} else if (type == RELEASED) {
+			if (seatInventory.search(name) == seatNum) {
+				seatInventory.delete(name);
+			}
+		} else {
+			throw new IOException(String.format("Error: unknown log record type: %d", type));
+		}
+	}
+
+	@Override
+	public void seatBooked(String name, int seatNum) {
+		append(BOOKED, name, seatNum, 1);
+	}
+
+	@Override
+	public void blockBooked(String name, int seatNum, int numberOfSeats) {
+		append(BLOCK_BOOKED, name, seatNum, numberOfSeats);
+	}
+
+	@Override
+	public void seatReleased(String name, int seatNum) {
+		append(RELEASED, name, seatNum, 1);
+	}
+
+	@Override
+	public void seatHeld(String name, int seatNum, long deadlineMillis) {
+		append(HELD, name, seatNum, deadlineMillis);
+	}
+
+	@Override
+	public void holdConfirmed(String name, int seatNum) {
+		append(CONFIRMED, name, seatNum, 0);
+	}
+
+	// Waits until every change made by the calling thread is durable, according to the SyncPolicy
+	public void sync() throws IOException {
+		long position = lastAppendedPosition.get()[0];
+		if (syncPolicy == SyncPolicy.INTERVAL || position <= durablePosition) {
+			return;
+		}
+
+		flush(position);
+	}
+
+	// Waits until every record appended so far, by any thread, is durable
+	public void syncAll() throws IOException {
+		flush(Long.MAX_VALUE);
+	}
+
+	// The LSN just past the last appended record
+	public long getAppendedPosition() {
+		lock.lock();
+		try {
+			return appendedPosition;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Writes out and forces everything that is still buffered, and closes the file
+	public void close() {
+		closed.countDown();
+		if (intervalFlusher != null) {
+			try {
+				intervalFlusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		try {
+			flush(Long.MAX_VALUE);
+			fileChannel.close();
+		} catch (IOException e) {
+			// Nothing more we can do, the records that didn't make it will be cut off by replay()
+		}
+	}
+
+	// extra is the numberOfSeats of a BLOCK_BOOKED record, or the deadlineMillis of a HELD one
+	private void append(byte type, String name, int seatNum, long extra) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > MAX_NAME_BYTES) {
+			throw new IllegalArgumentException(String.format("Error: a name can't be longer than %d bytes in the write-ahead log", MAX_NAME_BYTES));
+		}
+		int length = RECORD_OVERHEAD - 4 + (type == BLOCK_BOOKED ? 4 : 0) + (type == HELD ? 8 : 0) + nameBytes.length;
+
+		lock.lock();
+		try {
+			checkNotFailed();
+			if (pendingRecords.remaining() < 4 + length) {
+				pendingRecords = grow(pendingRecords, 4 + length);
+			}
+
+			pendingRecords.putInt(length);
+			int recordStart = pendingRecords.position();
+			pendingRecords.put(type);
+			pendingRecords.putInt(seatNum);
+			if (type == BLOCK_BOOKED) {
+				pendingRecords.putInt((int) extra);
+			} else if (type == HELD) {
+				pendingRecords.putLong(extra);
+			}
+			pendingRecords.putShort((short) nameBytes.length);
+			pendingRecords.put(nameBytes);
+
+			crc32.reset();
+			crc32.update(pendingRecords.array(), pendingRecords.arrayOffset() + recordStart, length - 4);
+			pendingRecords.putInt((int) crc32.getValue());
+
+			appendedPosition += 4 + length;
+			lastAppendedPosition.get()[0] = appendedPosition;
+
+			if (syncPolicy == SyncPolicy.PER_OP) {
+				try {
+					writePendingRecords(pendingRecords);
+					fileChannel.force(false);
+				} catch (IOException e) {
+					failure = e;
+					throw e;
+				}
+				durablePosition = appendedPosition;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Error: could not write to the write-ahead log", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Makes sure everything up to position is durable. If another thread is already forcing the log, we wait for it,
+	// and then either find our records durable or become the one that writes out the next batch.
+	private void flush(long position) throws IOException {
+		lock.lock();
+		try {
+			while (durablePosition < Math.min(position, appendedPosition)) {
+				checkNotFailed();
+				if (isFlushing) {
+					flushCompleted.awaitUninterruptibly();
+					continue;
+				}
+
+				// Take everything that is buffered, and write it out without holding the lock,
+				// so other commands can keep appending while we wait on the disk
+				ByteBuffer batch = pendingRecords;
+				pendingRecords = flushingRecords;
+				flushingRecords = batch;
+				long batchEnd = appendedPosition;
+				isFlushing = true;
+
+				lock.unlock();
+				IOException error = null;
+				try {
+					writePendingRecords(batch);
+					fileChannel.force(false);
+				} catch (IOException e) {
+					error = e;
+				} finally {
+					lock.lock();
+					// The batch may be partly written, so neither it nor anything after it can go out anymore
+					if (error != null) {
+						failure = error;
+					}
+					isFlushing = false;
+					flushCompleted.signalAll();
+				}
+				if (error != null) {
+					throw error;
+				}
+				durablePosition = batchEnd;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Must be called with the lock held
+	private void checkNotFailed() throws IOException {
+		if (failure != null) {
+			throw new IOException("Error: the write-ahead log failed earlier, nothing more can be made durable", failure);
+		}
+	}
+
+	private void writePendingRecords(ByteBuffer records) throws IOException {
+		records.flip();
+		while (records.hasRemaining()) {
+			filePosition += fileChannel.write(records, filePosition);
+		}
+		records.clear();
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + needed));
+		buffer.flip();
+		grown.put(buffer);
+		return grown;
+	}
+}
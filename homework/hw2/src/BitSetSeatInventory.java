@@ -0,0 +1,148 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// A SeatInventory that answers every command in constant time, no matter how full the venue is.
+//
+// Free seats are tracked by a two-level bitset:
+//      freeWords[w] has bit b set if seat (64 * w + b + 1) is free
+//      summaryWords[s] has bit t set if freeWords[64 * s + t] has at least one free seat
+// Finding the lowest free seat therefore only needs to look at one summary word per 4096 seats,
+// starting from firstCandidateSummary, below which every seat is known to be taken.
+//
+// seatToName is the reverse index (seat -> name) and nameToSeat is the forward index (name -> seat).
+//
+// This class is not thread safe. The caller is expected to serialize access to it.
+public class BitSetSeatInventory implements SeatInventory {
+	private int maxNumberOfSeats;
+	private int numberOfReservedSeats;
+
+	private long[] freeWords;
+	private long[] summaryWords;
+	private int firstCandidateSummary;
+
+	private String[] seatToName;
+	private Map<String, Integer> nameToSeat;
+
+	public BitSetSeatInventory(int maxNumberOfSeats) {
+		assert (maxNumberOfSeats >= 0);
+
+		this.maxNumberOfSeats = maxNumberOfSeats;
+		this.numberOfReservedSeats = 0;
+
+		this.freeWords = new long[(maxNumberOfSeats + 63) / 64];
+		this.summaryWords = new long[(freeWords.length + 63) / 64];
+		this.firstCandidateSummary = 0;
+
+		// Every seat starts out free
+		for (int i = 0; i < maxNumberOfSeats; i++) {
+			markFree(i);
+		}
+
+		this.seatToName = new String[maxNumberOfSeats + 1];
+		this.nameToSeat = new HashMap<String, Integer>();
+	}
+
+	@Override
+	public int reserve(String name) {
+		if (numberOfReservedSeats == maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+
+		} else {
+			int seatNum = findLowestFreeSeat();
+			assign(name, seatNum);
+			return seatNum;
+		}
+	}
+
+	@Override
+	public int bookSeat(String name, int seatNum) {
+		if (seatNum < 1 || seatNum > maxNumberOfSeats) {
+			return INVALID_SEAT;
+
+		} else if (numberOfReservedSeats == maxNumberOfSeats) {
+			return SOLD_OUT;
+
+		} else if (nameToSeat.containsKey(name)) {
+			return ALREADY_BOOKED;
+
+		} else if (seatToName[seatNum] != null) {
+			return SEAT_UNAVAILABLE;
+
+		} else {
+			assign(name, seatNum);
+			return seatNum;
+		}
+	}
+
+	@Override
+	public int search(String name) {
+		Integer seatNum = nameToSeat.get(name);
+		return seatNum != null ? seatNum : NOT_FOUND;
+	}
+
+	@Override
+	public int delete(String name) {
+		Integer seatNum = nameToSeat.remove(name);
+		if (seatNum == null) {
+			return NOT_FOUND;
+		}
+
+		seatToName[seatNum] = null;
+		markFree(seatNum - 1);
+		numberOfReservedSeats--;
+		return seatNum;
+	}
+
+	@Override
+	public int getMaxNumberOfSeats() {
+		return maxNumberOfSeats;
+	}
+
+	@Override
+	public int getNumberOfReservedSeats() {
+		return numberOfReservedSeats;
+	}
+
+	private void assign(String name, int seatNum) {
+		nameToSeat.put(name, seatNum);
+		seatToName[seatNum] = name;
+		markTaken(seatNum - 1);
+		numberOfReservedSeats++;
+	}
+
+	// Returns the lowest free seat number. Only call this when the venue isn't sold out.
+	private int findLowestFreeSeat() {
+		for (int s = firstCandidateSummary; s < summaryWords.length; s++) {
+			if (summaryWords[s] != 0) {
+				firstCandidateSummary = s;
+
+				int w = s * 64 + Long.numberOfTrailingZeros(summaryWords[s]);
+				int b = Long.numberOfTrailingZeros(freeWords[w]);
+				return w * 64 + b + 1;
+			}
+		}
+
+		throw new IllegalStateException("Error: no free seat found, but the venue isn't sold out!");
+	}
+
+	private void markFree(int index) {
+		int w = index >>> 6;
+		freeWords[w] |= 1L << index;
+		summaryWords[w >>> 6] |= 1L << w;
+
+		if ((w >>> 6) < firstCandidateSummary) {
+			firstCandidateSummary = w >>> 6;
+		}
+	}
+
+	private void markTaken(int index) {
+		int w = index >>> 6;
+		freeWords[w] &= ~(1L << index);
+		if (freeWords[w] == 0) {
+			summaryWords[w >>> 6] &= ~(1L << w);
+		}
+	}
+}
@@ -1,25 +1,70 @@
 import java.io.Serializable;
 
 // A logical clock that implements the total-order semantics of Lamport's clock
+// Ties between equal clock values are broken by the process id, so the timestamps of any two events in
+// different processes are always ordered one way or the other (see isLessThan()).
+// Example usage:
+//      LamportClock clock = new LamportClock(serverID);
+//      clock.increment();                          // before every send
+//      LamportClock timestamp = clock.snapshot();  // to stamp the message with
+//      ...
+//      clock.update(receivedMessage.getTimestamp()); // on every receive
 public class LamportClock implements Serializable {
 
 	private static final long serialVersionUID = 1L;
-	
+
+	private long value;
+	private long processId;
+
 	public LamportClock(long processId) {
-		// @TODO: Implement me!
+		this(0, processId);
+	}
+
+	public LamportClock(long value, long processId) {
+		this.value = value;
+		this.processId = processId;
 	}
 
 	public long get() {
-		// @TODO: Implement me!		
-		return 0L;
+		return value;
 	}
-	
+
+	public long getProcessId() {
+		return processId;
+	}
+
 	public void increment() {
-		// @TODO: Implement me!		
+		value++;
+	}
+
+	// The receive rule: move past the timestamp of a message that was just received
+	public void update(LamportClock timestamp) {
+		value = Math.max(value, timestamp.value) + 1;
+	}
+
+	// A copy of the clock as it is now, e.g. to stamp a message with. It doesn't change when the clock does.
+	public LamportClock snapshot() {
+		return new LamportClock(value, processId);
 	}
-	
+
 	public boolean isLessThan(LamportClock clock) {
-		// @TODO: Implement me!
-		return false;
+		if (value != clock.value) {
+			return value < clock.value;
+		}
+		return processId < clock.processId;
+	}
+
+	// "<value>:<processId>", see parse()
+	@Override
+	public String toString() {
+		return value + ":" + processId;
+	}
+
+	public static LamportClock parse(String s) {
+		int separator = s.indexOf(':');
+		if (separator < 0) {
+			throw new IllegalArgumentException(String.format("Error: malformed timestamp: %s", s));
+		}
+		return new LamportClock(Long.parseLong(s.substring(0, separator)), Long.parseLong(s.substring(separator + 1)));
 	}
 }
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Keeps the seat inventory of every server the same, by running every change through Lamport's mutual exclusion
+// algorithm. Only the server in the critical section changes its inventory, and it tells every other server
+// what it changed when it leaves.
+//
+// The algorithm, with the servers talking over FIFO connections that lose nothing when they reconnect (see PeerConnection)
+// and stamping every message with their LamportClock:
+//      - To enter, a server puts its request in its own request queue, and sends it to every other server.
+//        A server that receives a request puts it in its request queue too, and acknowledges it.
+//      - A server enters once its own request is the earliest one in its queue, and it has received a message
+//        with a later timestamp from every other server (so no earlier request can still be on its way).
+//      - When it leaves, it sends a release to every other server, which takes its request out of their queues.
+//
+// A request/ack/release round costs 3(N-1) messages and a couple of round trips, so it isn't spent on a single
+// command. Client threads only queue their commands up (see execute()), and the sequencer thread takes all of the
+// commands that queued up while the previous round was going, up to batchLimit, into the next round. The release
+// carries the whole batch to the other servers. Under load, more and more commands share each round, so the
+// writes per second grow with the load instead of being stuck at one per round. The batchLimit grows while the
+// batches keep filling up, and shrinks back once they don't, so a single release never gets larger than the load needs.
+//
+// Every batch gets the next number in a sequence shared by all servers. The server in the critical section has
+// applied every earlier batch (their releases took the earlier requests out of its queue), so the next number is
+// simply one past what it has applied. The other servers may get two releases from different servers in either
+// order, so they hold back a batch until every batch before it has been applied. That way every server applies
+// the same commands in the same order, and the inventories stay the same.
+//
+// Every server must be up for writes to go through, the algorithm has no way around a server that is down
+// (see LeaderReplicator for that). Every message between the servers is a TimestampedMessage.
+public class LamportReplicator extends Replicator {
+	private static final String REQUEST = "request";
+	private static final String ACK = "ack";
+	private static final String RELEASE = "release";
+
+	private static final int MIN_BATCH_LIMIT = 64;
+	private static final int MAX_BATCH_LIMIT = 4096;
+
+	// A client command that is waiting for its batch to go through
+	private static class PendingCommand {
+		private CommandParser.Command command;
+		private int result;
+		private boolean isDone;
+
+		public PendingCommand(CommandParser.Command command) {
+			this.command = command;
+		}
+	}
+
+	// Everything below is guarded by the replicator's lock
+
+	private LamportClock clock;
+
+	// the requests of every server that wants to enter, earliest first
+	private PriorityQueue<LamportClock> requestQueue;
+	// this server's request while it's waiting for, or in, the critical section, or null
+	private LamportClock ownRequest;
+	// the timestamp of the last message received from each server, or null
+	private LamportClock[] lastReceived;
+
+	// the number of batches this server has applied, which is also the sequence number of the last one
+	private long numberOfAppliedBatches;
+	// batches that arrived before some earlier batch, by sequence number
+	private Map<Long, List<CommandParser.Command>> heldBackBatches;
+
+	private List<PendingCommand> pendingCommands;
+	private int batchLimit;
+
+	private Thread sequencer;
+	private boolean isRunning;
+
+	public LamportReplicator(int serverID, List<String> hostAddressList, List<Integer> tcpPortList, SeatInventory seatInventory) {
+		super(serverID, hostAddressList, tcpPortList, seatInventory);
+
+		this.clock = new LamportClock(serverID);
+		this.requestQueue = new PriorityQueue<LamportClock>(hostAddressList.size(), new Comparator<LamportClock>() {
+
+			@Override
+			public int compare(LamportClock a, LamportClock b) {
+				if (a.isLessThan(b)) {
+					return -1;
+				}
+				return b.isLessThan(a) ? 1 : 0;
+			}
+		});
+		this.lastReceived = new LamportClock[hostAddressList.size()];
+		this.heldBackBatches = new HashMap<Long, List<CommandParser.Command>>();
+
+		this.pendingCommands = new ArrayList<PendingCommand>();
+		this.batchLimit = MIN_BATCH_LIMIT;
+
+		this.sequencer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					sequence();
+				} catch (InterruptedException e) {
+
+				}
+			}
+		}, "sequencer");
+		this.sequencer.setDaemon(true);
+	}
+
+	@Override
+	public synchronized void start() {
+		isRunning = true;
+		super.start();
+		sequencer.start();
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			isRunning = false;
+			notifyAll();
+		}
+		super.close();
+	}
+
+	// Blocks until the batch the command ends up in has gone through
+	@Override
+	public synchronized int execute(CommandParser.Command command) throws IOException {
+		PendingCommand pendingCommand = new PendingCommand(command);
+		pendingCommands.add(pendingCommand);
+		notifyAll();
+
+		try {
+			while (!pendingCommand.isDone) {
+				if (!isRunning) {
+					throw new IOException("Error: the server is shutting down");
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Error: interrupted while waiting for the other servers");
+		}
+		return pendingCommand.result;
+	}
+
+	@Override
+	protected synchronized void receive(int peerID, String encodedMessage) throws IOException {
+		TimestampedMessage message = TimestampedMessage.parse(encodedMessage);
+		LamportClock timestamp = message.getTimestamp();
+		clock.update(timestamp);
+		lastReceived[peerID] = timestamp;
+
+		String[] parts = message.getMessage().split(" ", 3);
+		switch (parts[0]) {
+			case REQUEST:
+				requestQueue.add(timestamp);
+				send(peerID, ACK);
+				break;
+
+			case ACK:
+				// Its timestamp is all we needed
+				break;
+
+			case RELEASE:
+				if (parts.length < 3) {
+					throw new IOException(String.format("Error: malformed release: %s", message));
+				}
+				removeRequest(peerID);
+				heldBackBatches.put(Long.parseLong(parts[1]), decodeBatch(parts[2]));
+				applyHeldBackBatches();
+				break;
+
+			default:
+				throw new IOException(String.format("Error: unrecognized message: %s", message));
+		}
+
+		// Anything could have changed for the sequencer
+		notifyAll();
+	}
+
+	// The sequencer takes a batch of pending commands through the critical section at a time
+	private synchronized void sequence() throws InterruptedException {
+		while (isRunning) {
+			while (isRunning && pendingCommands.isEmpty()) {
+				wait();
+			}
+			if (!isRunning) {
+				return;
+			}
+
+			int batchSize = Math.min(batchLimit, pendingCommands.size());
+			List<PendingCommand> batch = new ArrayList<PendingCommand>(pendingCommands.subList(0, batchSize));
+			pendingCommands.subList(0, batchSize).clear();
+
+			clock.increment();
+			ownRequest = clock.snapshot();
+			requestQueue.add(ownRequest);
+			broadcast(new TimestampedMessage(REQUEST, ownRequest));
+
+			while (isRunning && !mayEnter()) {
+				wait();
+			}
+			if (!isRunning) {
+				return;
+			}
+
+			// In the critical section. Every batch before this one has been applied here already.
+			StringBuilder encodedBatch = new StringBuilder();
+			// A command that fails here must not keep us from leaving, or every server waits for our release forever.
+			// It isn't sent to the other servers, it would only fail there too.
+			for (PendingCommand pendingCommand : batch) {
+				try {
+					pendingCommand.result = apply(pendingCommand.command);
+				} catch (RuntimeException e) {
+					pendingCommand.result = SeatInventory.INVALID_SEAT;
+					continue;
+				} finally {
+					pendingCommand.isDone = true;
+				}
+				if (encodedBatch.length() > 0) {
+					encodedBatch.append(COMMAND_SEPARATOR);
+				}
+				encodeCommand(pendingCommand.command, encodedBatch);
+			}
+			numberOfAppliedBatches++;
+
+			clock.increment();
+			broadcast(new TimestampedMessage(RELEASE + " " + numberOfAppliedBatches + " " + encodedBatch, clock.snapshot()));
+			requestQueue.remove(ownRequest);
+			ownRequest = null;
+
+			adjustBatchLimit(batchSize);
+
+			// Wake up the clients whose commands were in the batch
+			notifyAll();
+		}
+	}
+
+	private boolean mayEnter() {
+		if (requestQueue.peek() != ownRequest) {
+			return false;
+		}
+		for (int i = 0; i < lastReceived.length; i++) {
+			if (i != serverID && (lastReceived[i] == null || !ownRequest.isLessThan(lastReceived[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// A full batch means more commands were waiting than it could take, so let the next one take more.
+	// A batch that only used a fraction of the limit means the load went down.
+	private void adjustBatchLimit(int batchSize) {
+		if (batchSize == batchLimit) {
+			batchLimit = Math.min(MAX_BATCH_LIMIT, batchLimit * 2);
+		} else if (batchSize < batchLimit / 4) {
+			batchLimit = Math.max(MIN_BATCH_LIMIT, batchLimit / 2);
+		}
+	}
+
+	// Applies the batches that have arrived, in sequence
+	private void applyHeldBackBatches() {
+		List<CommandParser.Command> batch;
+		while ((batch = heldBackBatches.remove(numberOfAppliedBatches + 1)) != null) {
+			for (CommandParser.Command command : batch) {
+				try {
+					apply(command);
+				} catch (RuntimeException e) {
+					// Same as on the server that sent it, the command didn't change anything
+				}
+			}
+			numberOfAppliedBatches++;
+		}
+	}
+
+	// A server has one request at a time, so its release is about the request of it that we have
+	private void removeRequest(int peerID) {
+		for (LamportClock request : requestQueue) {
+			if (request.getProcessId() == peerID) {
+				requestQueue.remove(request);
+				return;
+			}
+		}
+	}
+
+	private void send(int peerID, String message) {
+		clock.increment();
+		peers[peerID].send(new TimestampedMessage(message, clock.snapshot()).toString());
+	}
+
+	// Every server gets the same message, it's a single send event
+	private void broadcast(TimestampedMessage message) {
+		for (PeerConnection peer : peers) {
+			if (peer != null) {
+				peer.send(message.toString());
+			}
+		}
+	}
+
+	private static List<CommandParser.Command> decodeBatch(String encodedBatch) throws IOException {
+		List<CommandParser.Command> batch = new ArrayList<CommandParser.Command>();
+		if (encodedBatch.isEmpty()) {
+			// Every command of the batch failed on the server that sent it
+			return batch;
+		}
+		for (String encodedCommand : encodedBatch.split(Character.toString(COMMAND_SEPARATOR))) {
+			batch.add(decodeCommand(encodedCommand));
+		}
+		return batch;
+	}
+}
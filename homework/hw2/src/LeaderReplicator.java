@@ -0,0 +1,613 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the seat inventory of every server the same with an elected leader, in the style of Raft.
+//
+// The leader puts every change into a log, and sends the new entries to the other servers (the followers).
+// An entry is committed once a majority of the servers (the leader included) have it in their log, and every
+// server applies the committed entries to its inventory in log order. So a write waits for a single round trip
+// to the quickest majority, and a slow or dead follower doesn't hold anyone up.
+// A follower forwards the writes of its own clients to the leader, which tells it where in the log they went.
+// The follower answers its client once it has applied that entry itself, so the client can read its own write
+// from the same server right away.
+//
+// Time is cut into terms, and a term has at most one leader:
+//      - The leader sends every follower an append at least every HEARTBEAT_MILLIS, even with no new entries.
+//      - A follower that hears nothing from a leader for an election timeout (random, so the servers don't all
+//        go at once) starts the next term, votes for itself, and asks the others for their vote.
+//      - A server votes at most once per term, and only for a server whose log is at least as up to date as its own,
+//        so a new leader always has every committed entry. The first server to get a majority of votes leads.
+//      - A message from a later term makes a leader or candidate step down and follow.
+// An append also carries the index and term of the entry just before its new entries. A follower whose log doesn't
+// have that entry turns the append down, and the leader backs up until their logs agree. Entries after the point
+// where they agree are replaced by the leader's.
+//
+// A new leader puts a no-op entry of its own term into the log, so the entries of earlier terms commit along with it.
+// A write that this server took in, but whose entry was replaced after a leader change, fails with an IOException,
+// and so does one that doesn't commit within CLIENT_TIMEOUT_MILLIS (e.g. during an election, or without a majority).
+// Such a write may still be committed later, its outcome is unknown.
+//
+// Messages between the servers (the sender is known from the connection it arrives over):
+//      vote <term> <lastLogIndex> <lastLogTerm>
+//      voted <term> <1 if granted, 0 otherwise>
+//      append <term> <prevLogIndex> <prevLogTerm> <leaderCommit> [<term> <command>;<term> <command>;...]
+//      appended <term> <1 if it succeeded, 0 otherwise> <the index of the last entry the follower agrees on>
+//      forward <requestID> <command>
+//      forwarded <requestID> <index> <term>
+//      rejected <requestID>
+//      invalid <requestID>
+//
+// The log and the votes are only kept in memory, so a server that restarts must not rejoin the same cluster
+// with an empty log. The log isn't compacted either.
+public class LeaderReplicator extends Replicator {
+	private static final String VOTE = "vote";
+	private static final String VOTED = "voted";
+	private static final String APPEND = "append";
+	private static final String APPENDED = "appended";
+	private static final String FORWARD = "forward";
+	private static final String FORWARDED = "forwarded";
+	private static final String REJECTED = "rejected";
+	private static final String INVALID = "invalid";
+
+	// the command of a leader's first entry in its term
+	private static final String NO_OP = "NOOP";
+
+	private static final long TICK_MILLIS = 10;
+	private static final long HEARTBEAT_MILLIS = 50;
+	private static final long MIN_ELECTION_TIMEOUT_MILLIS = 300;
+	private static final long MAX_ELECTION_TIMEOUT_MILLIS = 600;
+	private static final long CLIENT_TIMEOUT_MILLIS = 5000;
+	private static final int MAX_ENTRIES_PER_APPEND = 4096;
+
+	private enum Role {
+		FOLLOWER,
+		CANDIDATE,
+		LEADER
+	}
+
+	private static class Entry {
+		private long term;
+		// null for a no-op
+		private CommandParser.Command command;
+
+		public Entry(long term, CommandParser.Command command) {
+			this.term = term;
+			this.command = command;
+		}
+	}
+
+	// A client write that is waiting for its entry to be applied on this server
+	private static class PendingCommand {
+		// where the entry went in the log, once the leader has told us
+		private long index;
+		private long term;
+		private int result;
+		private boolean isDone;
+		// why the command failed, or null
+		private String failure;
+	}
+
+	// Everything below is guarded by the replicator's lock
+
+	private Role role;
+	private long currentTerm;
+	// the server this one voted for in currentTerm, or -1
+	private int votedFor;
+	// the leader of currentTerm, or -1 while we don't know it
+	private int leaderID;
+	// the servers that voted for this one in currentTerm, while it is a candidate
+	private boolean[] votesGranted;
+
+	// log.get(i) is the entry at index i + 1
+	private List<Entry> log;
+	private long commitIndex;
+	private long lastApplied;
+
+	// when this server last heard from the leader, or voted, and how long it waits before starting an election
+	private long lastHeardNanos;
+	private long electionTimeoutNanos;
+
+	// for every follower, while this server leads: the next entry to send it, the last entry it is known to have,
+	// and whether an append to it is still unanswered
+	private long[] nextIndex;
+	private long[] matchIndex;
+	private boolean[] isAwaitingResponse;
+	private long[] lastSentNanos;
+	private long[] lastSentCommitIndex;
+
+	// client writes waiting for the entry at their index to be applied
+	private Map<Long, PendingCommand> pendingCommandsByIndex;
+	// client writes forwarded to the leader, waiting to hear their index, by request id
+	private Map<Long, PendingCommand> forwardedCommands;
+	private long nextRequestID;
+
+	private Thread ticker;
+	private boolean isRunning;
+
+	public LeaderReplicator(int serverID, List<String> hostAddressList, List<Integer> tcpPortList, SeatInventory seatInventory) {
+		super(serverID, hostAddressList, tcpPortList, seatInventory);
+
+		int numberOfServers = hostAddressList.size();
+		this.role = Role.FOLLOWER;
+		this.votedFor = -1;
+		this.leaderID = -1;
+		this.votesGranted = new boolean[numberOfServers];
+
+		this.log = new ArrayList<Entry>();
+
+		this.nextIndex = new long[numberOfServers];
+		this.matchIndex = new long[numberOfServers];
+		this.isAwaitingResponse = new boolean[numberOfServers];
+		this.lastSentNanos = new long[numberOfServers];
+		this.lastSentCommitIndex = new long[numberOfServers];
+
+		this.pendingCommandsByIndex = new HashMap<Long, PendingCommand>();
+		this.forwardedCommands = new HashMap<Long, PendingCommand>();
+
+		this.ticker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					tick();
+				} catch (InterruptedException e) {
+
+				}
+			}
+		}, "replication-ticker");
+		this.ticker.setDaemon(true);
+	}
+
+	@Override
+	public synchronized void start() {
+		isRunning = true;
+		resetElectionTimeout(System.nanoTime());
+		super.start();
+		ticker.start();
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			isRunning = false;
+			notifyAll();
+		}
+		super.close();
+	}
+
+	// Blocks until the command's entry has been committed and applied on this server
+	@Override
+	public synchronized int execute(CommandParser.Command command) throws IOException {
+		// Nothing goes into the log that would fail once it's committed
+		if (!isApplicable(command)) {
+			return SeatInventory.INVALID_SEAT;
+		}
+
+		PendingCommand pendingCommand = new PendingCommand();
+		if (role == Role.LEADER) {
+			// Register it before the entry goes in, a single server applies it right away
+			pendingCommand.index = log.size() + 1;
+			pendingCommand.term = currentTerm;
+			pendingCommandsByIndex.put(pendingCommand.index, pendingCommand);
+			appendEntry(command);
+			// The ticker sends it out right away
+			notifyAll();
+		} else if (leaderID >= 0) {
+			long requestID = nextRequestID++;
+			forwardedCommands.put(requestID, pendingCommand);
+			StringBuilder message = new StringBuilder(FORWARD).append(' ').append(requestID).append(' ');
+			encodeCommand(command, message);
+			peers[leaderID].send(message.toString());
+		} else {
+			throw new IOException("Error: there is no leader right now, try again later");
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLIENT_TIMEOUT_MILLIS);
+		try {
+			while (!pendingCommand.isDone) {
+				long remainingNanos = deadline - System.nanoTime();
+				if (!isRunning) {
+					throw new IOException("Error: the server is shutting down");
+				}
+				if (remainingNanos <= 0) {
+					throw new IOException("Error: the write didn't commit in time, it may or may not have happened");
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Error: interrupted while waiting for the other servers");
+		}
+
+		if (pendingCommand.failure != null) {
+			throw new IOException(pendingCommand.failure);
+		}
+		return pendingCommand.result;
+	}
+
+	@Override
+	protected synchronized void receive(int peerID, String message) throws IOException {
+		String[] parts = message.split(" ", 6);
+		try {
+			switch (parts[0]) {
+				case VOTE:
+					receiveVote(peerID, Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+					break;
+				case VOTED:
+					receiveVoted(peerID, Long.parseLong(parts[1]), parts[2].equals("1"));
+					break;
+				case APPEND:
+					receiveAppend(peerID, Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+						Long.parseLong(parts[4]), parts.length > 5 ? parts[5] : null);
+					break;
+				case APPENDED:
+					receiveAppended(peerID, Long.parseLong(parts[1]), parts[2].equals("1"), Long.parseLong(parts[3]));
+					break;
+				case FORWARD:
+					receiveForward(peerID, Long.parseLong(parts[1]), message.substring(message.indexOf(' ', FORWARD.length() + 1) + 1));
+					break;
+				case FORWARDED:
+					receiveForwarded(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+					break;
+				case REJECTED:
+					failForwardedCommand(forwardedCommands.remove(Long.parseLong(parts[1])), "Error: the server we sent the write to isn't the leader anymore, try again");
+					break;
+				case INVALID:
+					receiveInvalid(Long.parseLong(parts[1]));
+					break;
+				default:
+					throw new IOException(String.format("Error: unrecognized message: %s", message));
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			throw new IOException(String.format("Error: malformed message: %s", message));
+		}
+
+		// Anything could have changed for the ticker and the clients
+		notifyAll();
+	}
+
+	// Starts elections and sends appends, until the replicator is closed
+	private synchronized void tick() throws InterruptedException {
+		while (isRunning) {
+			long now = System.nanoTime();
+			if (role != Role.LEADER && now - lastHeardNanos >= electionTimeoutNanos) {
+				startElection(now);
+			}
+			if (role == Role.LEADER) {
+				sendAppends(now);
+			}
+			wait(TICK_MILLIS);
+		}
+	}
+
+	private void startElection(long now) {
+		becomeFollower(currentTerm + 1);
+		role = Role.CANDIDATE;
+		votedFor = serverID;
+		votesGranted = new boolean[getNumberOfServers()];
+		votesGranted[serverID] = true;
+		resetElectionTimeout(now);
+
+		if (isMajority(1)) {
+			becomeLeader();
+			return;
+		}
+		broadcast(VOTE + " " + currentTerm + " " + log.size() + " " + lastLogTerm());
+	}
+
+	private void becomeLeader() {
+		role = Role.LEADER;
+		leaderID = serverID;
+		for (int i = 0; i < nextIndex.length; i++) {
+			nextIndex[i] = log.size() + 1;
+			matchIndex[i] = 0;
+			isAwaitingResponse[i] = false;
+			lastSentNanos[i] = 0;
+		}
+
+		// Nothing from an earlier term can be counted as committed until an entry of this term is
+		appendEntry(null);
+	}
+
+	// Moves on to term (if it is a later one) as a follower
+	private void becomeFollower(long term) {
+		if (term > currentTerm) {
+			currentTerm = term;
+			votedFor = -1;
+			leaderID = -1;
+
+			// Writes that were forwarded to the old leader may never be heard of again
+			for (PendingCommand pendingCommand : forwardedCommands.values()) {
+				failForwardedCommand(pendingCommand, "Error: the leader changed, try again");
+			}
+			forwardedCommands.clear();
+		}
+		role = Role.FOLLOWER;
+	}
+
+	private void receiveVote(int peerID, long term, long lastLogIndex, long lastLogTerm) {
+		if (term > currentTerm) {
+			becomeFollower(term);
+		}
+
+		// Only vote for a log that has everything ours has
+		boolean isUpToDate = lastLogTerm > lastLogTerm() || (lastLogTerm == lastLogTerm() && lastLogIndex >= log.size());
+		boolean isGranted = term == currentTerm && (votedFor == -1 || votedFor == peerID) && isUpToDate;
+		if (isGranted) {
+			votedFor = peerID;
+			resetElectionTimeout(System.nanoTime());
+		}
+		peers[peerID].send(VOTED + " " + currentTerm + " " + (isGranted ? 1 : 0));
+	}
+
+	private void receiveVoted(int peerID, long term, boolean isGranted) {
+		if (term > currentTerm) {
+			becomeFollower(term);
+			return;
+		}
+		if (role != Role.CANDIDATE || term != currentTerm || !isGranted) {
+			return;
+		}
+
+		votesGranted[peerID] = true;
+		int numberOfVotes = 0;
+		for (boolean voteGranted : votesGranted) {
+			if (voteGranted) {
+				numberOfVotes++;
+			}
+		}
+		if (isMajority(numberOfVotes)) {
+			becomeLeader();
+		}
+	}
+
+	private void receiveAppend(int peerID, long term, long prevLogIndex, long prevLogTerm, long leaderCommit, String encodedEntries) throws IOException {
+		if (term < currentTerm) {
+			peers[peerID].send(APPENDED + " " + currentTerm + " 0 0");
+			return;
+		}
+		becomeFollower(term);
+		leaderID = peerID;
+		lastHeardNanos = System.nanoTime();
+
+		// Our log has to agree with the leader's up to the entry before the new ones
+		if (prevLogIndex > log.size() || (prevLogIndex > 0 && termAt(prevLogIndex) != prevLogTerm)) {
+			peers[peerID].send(APPENDED + " " + currentTerm + " 0 " + Math.min(log.size(), prevLogIndex - 1));
+			return;
+		}
+
+		long index = prevLogIndex;
+		if (encodedEntries != null) {
+			for (String encodedEntry : encodedEntries.split(Character.toString(COMMAND_SEPARATOR))) {
+				Entry entry = decodeEntry(encodedEntry);
+				index++;
+				if (index <= log.size() && termAt(index) != entry.term) {
+					// The leader never had this entry, and ours will never be committed
+					truncateLog(index);
+				}
+				if (index > log.size()) {
+					log.add(entry);
+				}
+			}
+		}
+
+		if (leaderCommit > commitIndex) {
+			commitIndex = Math.min(leaderCommit, index);
+			applyCommittedEntries();
+		}
+		peers[peerID].send(APPENDED + " " + currentTerm + " 1 " + index);
+	}
+
+	private void receiveAppended(int peerID, long term, boolean isSuccess, long index) {
+		if (term > currentTerm) {
+			becomeFollower(term);
+			return;
+		}
+		if (role != Role.LEADER || term != currentTerm) {
+			return;
+		}
+
+		isAwaitingResponse[peerID] = false;
+		if (isSuccess) {
+			matchIndex[peerID] = Math.max(matchIndex[peerID], index);
+			nextIndex[peerID] = matchIndex[peerID] + 1;
+			advanceCommitIndex();
+		} else {
+			// Back up to where the follower's log ends, or at least one entry
+			nextIndex[peerID] = Math.max(1, Math.min(nextIndex[peerID] - 1, index + 1));
+		}
+	}
+
+	private void receiveForward(int peerID, long requestID, String encodedCommand) throws IOException {
+		if (role != Role.LEADER) {
+			peers[peerID].send(REJECTED + " " + requestID);
+			return;
+		}
+
+		CommandParser.Command command = decodeCommand(encodedCommand);
+		if (!isApplicable(command)) {
+			peers[peerID].send(INVALID + " " + requestID);
+			return;
+		}
+
+		Entry entry = appendEntry(command);
+		peers[peerID].send(FORWARDED + " " + requestID + " " + log.size() + " " + entry.term);
+	}
+
+	// The leader turned down a forwarded write that can't be applied, it answers like it would have
+	private void receiveInvalid(long requestID) {
+		PendingCommand pendingCommand = forwardedCommands.remove(requestID);
+		if (pendingCommand != null) {
+			pendingCommand.result = SeatInventory.INVALID_SEAT;
+			pendingCommand.isDone = true;
+		}
+	}
+
+	private void receiveForwarded(long requestID, long index, long term) {
+		PendingCommand pendingCommand = forwardedCommands.remove(requestID);
+		if (pendingCommand == null) {
+			return;
+		}
+		if (index <= lastApplied) {
+			// It can't have been applied before we heard of it, the leader answers before it sends the entry out
+			failForwardedCommand(pendingCommand, "Error: lost track of the write, it may or may not have happened");
+			return;
+		}
+		pendingCommand.index = index;
+		pendingCommand.term = term;
+		pendingCommandsByIndex.put(index, pendingCommand);
+	}
+
+	private void failForwardedCommand(PendingCommand pendingCommand, String failure) {
+		if (pendingCommand != null) {
+			pendingCommand.failure = failure;
+			pendingCommand.isDone = true;
+		}
+	}
+
+	// Sends every follower the entries it doesn't have yet, and a heartbeat to the ones that haven't heard from us
+	// in a while. A follower only gets a new append once it has answered the last one (or a heartbeat is due),
+	// so the entries that pile up in the meantime go out together in the next one.
+	private void sendAppends(long now) {
+		for (int i = 0; i < peers.length; i++) {
+			if (i == serverID) {
+				continue;
+			}
+
+			boolean hasNews = nextIndex[i] <= log.size() || lastSentCommitIndex[i] < commitIndex;
+			boolean isHeartbeatDue = now - lastSentNanos[i] >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+			if (!isHeartbeatDue && (isAwaitingResponse[i] || !hasNews)) {
+				continue;
+			}
+
+			long prevLogIndex = nextIndex[i] - 1;
+			StringBuilder message = new StringBuilder(APPEND).append(' ').append(currentTerm)
+				.append(' ').append(prevLogIndex)
+				.append(' ').append(prevLogIndex > 0 ? termAt(prevLogIndex) : 0)
+				.append(' ').append(commitIndex);
+			long lastIndex = Math.min(log.size(), prevLogIndex + MAX_ENTRIES_PER_APPEND);
+			for (long index = prevLogIndex + 1; index <= lastIndex; index++) {
+				message.append(index == prevLogIndex + 1 ? ' ' : COMMAND_SEPARATOR);
+				encodeEntry(log.get((int) (index - 1)), message);
+			}
+			peers[i].send(message.toString());
+
+			isAwaitingResponse[i] = true;
+			lastSentNanos[i] = now;
+			lastSentCommitIndex[i] = commitIndex;
+		}
+	}
+
+	// An entry of the current term is committed once a majority has it, and so is everything before it
+	private void advanceCommitIndex() {
+		for (long index = log.size(); index > commitIndex && termAt(index) == currentTerm; index--) {
+			int numberOfCopies = 1;
+			for (int i = 0; i < matchIndex.length; i++) {
+				if (i != serverID && matchIndex[i] >= index) {
+					numberOfCopies++;
+				}
+			}
+			if (isMajority(numberOfCopies)) {
+				commitIndex = index;
+				applyCommittedEntries();
+				return;
+			}
+		}
+	}
+
+	private void applyCommittedEntries() {
+		while (lastApplied < commitIndex) {
+			lastApplied++;
+			Entry entry = log.get((int) (lastApplied - 1));
+			int result = entry.command != null ? apply(entry.command) : 0;
+
+			PendingCommand pendingCommand = pendingCommandsByIndex.remove(lastApplied);
+			if (pendingCommand != null) {
+				if (pendingCommand.term == entry.term) {
+					pendingCommand.result = result;
+				} else {
+					pendingCommand.failure = "Error: the write was lost in a leader change, try again";
+				}
+				pendingCommand.isDone = true;
+			}
+		}
+	}
+
+	private Entry appendEntry(CommandParser.Command command) {
+		Entry entry = new Entry(currentTerm, command);
+		log.add(entry);
+		if (isMajority(1)) {
+			// With a single server, there is nobody to wait for
+			commitIndex = log.size();
+			applyCommittedEntries();
+		}
+		return entry;
+	}
+
+	// Drops the entries from index on. They were never committed.
+	private void truncateLog(long index) {
+		log.subList((int) (index - 1), log.size()).clear();
+
+		Iterator<Map.Entry<Long, PendingCommand>> iterator = pendingCommandsByIndex.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Long, PendingCommand> pendingCommand = iterator.next();
+			if (pendingCommand.getKey() >= index) {
+				pendingCommand.getValue().failure = "Error: the write was lost in a leader change, try again";
+				pendingCommand.getValue().isDone = true;
+				iterator.remove();
+			}
+		}
+	}
+
+	private long termAt(long index) {
+		return log.get((int) (index - 1)).term;
+	}
+
+	private long lastLogTerm() {
+		return log.isEmpty() ? 0 : log.get(log.size() - 1).term;
+	}
+
+	private boolean isMajority(int numberOfServers) {
+		return numberOfServers > getNumberOfServers() / 2;
+	}
+
+	private void resetElectionTimeout(long now) {
+		lastHeardNanos = now;
+		electionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(MIN_ELECTION_TIMEOUT_MILLIS, MAX_ELECTION_TIMEOUT_MILLIS + 1));
+	}
+
+	private void broadcast(String message) {
+		for (PeerConnection peer : peers) {
+			if (peer != null) {
+				peer.send(message);
+			}
+		}
+	}
+
+	// "<term> bookseat alice 12", or "<term> NOOP"
+	private static void encodeEntry(Entry entry, StringBuilder encoded) {
+		encoded.append(entry.term).append(' ');
+		if (entry.command != null) {
+			encodeCommand(entry.command, encoded);
+		} else {
+			encoded.append(NO_OP);
+		}
+	}
+
+	private static Entry decodeEntry(String encodedEntry) throws IOException {
+		int separator = encodedEntry.indexOf(' ');
+		try {
+			long term = Long.parseLong(encodedEntry.substring(0, separator));
+			String encodedCommand = encodedEntry.substring(separator + 1);
+			return new Entry(term, encodedCommand.equals(NO_OP) ? null : decodeCommand(encodedCommand));
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			throw new IOException(String.format("Error: malformed log entry: %s", encodedEntry));
+		}
+	}
+}
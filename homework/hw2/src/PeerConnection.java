@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The connection a server sends its messages to another server over. Messages from the other server arrive over
+// the connection it opened to us instead (see Replicator.receiveFromPeer()).
+//
+// send() only queues a message up, and a sender thread writes them out in the order they were queued,
+// so a replicator never waits on a slow socket while holding its lock.
+// The other server may not be up yet, or may go down and come back, so the sender keeps reconnecting.
+//
+// A message can still be lost with the connection: it was being written when the connection broke, or it was
+// sitting in a socket buffer. So every message gets the next sequence number, and is kept until the other server
+// acknowledges it. The other server answers the hello with the last sequence number it got from us, and
+// acknowledges every ACK_INTERVAL messages after that, over the same connection. After a reconnect the sender
+// starts over from the first message the other server didn't get, and the other server drops the messages it
+// already had (see Replicator.receiveFromPeer()). The hello carries an incarnation, a random id of this
+// PeerConnection, so the other server can tell our sequence numbers from those of a previous run of this server.
+//
+// The kept messages are the ones in flight, and up to ACK_INTERVAL more. While the other server is down they pile up,
+// so past MAX_UNACKNOWLEDGED the oldest ones are dropped, and the replicator has to live with that.
+//
+// On the wire:
+//      us -> them: "peer <serverID> <incarnation>", then "<sequence number> <message>" for every message
+//      them -> us: "<last sequence number received>", after the hello and every ACK_INTERVAL messages
+public class PeerConnection {
+	// the first message a server sends over a connection to another server, followed by its id and incarnation
+	public static final String HELLO = "peer";
+
+	// how many messages the other server receives between acknowledgements
+	public static final int ACK_INTERVAL = 64;
+
+	private static final int MAX_UNACKNOWLEDGED = 1 << 20;
+
+	private static final long RECONNECT_MILLIS = 100;
+
+	private int serverID;
+	private long incarnation;
+	private String hostAddress;
+	private int tcpPort;
+	private Thread sender;
+	private volatile TCPMessageHandler tcpMessageHandler;
+
+	// Everything below is guarded by the connection's lock
+
+	// the messages that weren't acknowledged yet, each one already prefixed by its sequence number
+	private List<String> unacknowledged;
+	// the sequence number of unacknowledged.get(0)
+	private long firstUnacknowledged;
+	// the sequence number the next send() gives out
+	private long nextSequenceNumber;
+	// the sequence number of the next message to write to the current connection
+	private long nextToWrite;
+	// counts the connections, so a reader of an old one can't touch the current one
+	private int connectionNumber;
+	// whether the acknowledgement reader found the current connection closed
+	private boolean isConnectionBroken;
+
+	// serverID is the id of this server, the one that sends the messages
+	public PeerConnection(int serverID, String hostAddress, int tcpPort) {
+		this.serverID = serverID;
+		this.incarnation = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+		this.hostAddress = hostAddress;
+		this.tcpPort = tcpPort;
+
+		this.unacknowledged = new ArrayList<String>();
+		this.firstUnacknowledged = 1;
+		this.nextSequenceNumber = 1;
+		this.nextToWrite = 1;
+
+		this.sender = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					sendMessages();
+				} catch (InterruptedException e) {
+					// The connection was closed
+				}
+			}
+		}, "peer-sender-" + hostAddress + ":" + tcpPort);
+		this.sender.setDaemon(true);
+	}
+
+	public void start() {
+		sender.start();
+	}
+
+	public synchronized void send(String message) {
+		if (unacknowledged.size() == MAX_UNACKNOWLEDGED) {
+			acknowledge(firstUnacknowledged);
+		}
+		unacknowledged.add(nextSequenceNumber + " " + message);
+		nextSequenceNumber++;
+		notifyAll();
+	}
+
+	public void close() {
+		sender.interrupt();
+		if (tcpMessageHandler != null) {
+			tcpMessageHandler.close();
+		}
+	}
+
+	private void sendMessages() throws InterruptedException {
+		while (true) {
+			connect();
+			final TCPMessageHandler connection = tcpMessageHandler;
+			final int number;
+			synchronized (this) {
+				number = connectionNumber;
+			}
+			Thread acknowledgementReader = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					readAcknowledgements(connection, number);
+				}
+			}, "peer-acks-" + hostAddress + ":" + tcpPort);
+			acknowledgementReader.setDaemon(true);
+			acknowledgementReader.start();
+
+			try {
+				while (true) {
+					connection.sendMessage(takeNextMessage());
+				}
+			} catch (IOException e) {
+				// The acknowledgement reader stops along with the connection
+				connection.close();
+			}
+		}
+	}
+
+	// Connects and says hello. Once the other server answers with the last message it got, the sender picks up
+	// right after it.
+	private void connect() throws InterruptedException {
+		while (true) {
+			TCPMessageHandler connection = null;
+			try {
+				connection = new TCPMessageHandler(hostAddress, tcpPort);
+				connection.sendMessage(HELLO + " " + serverID + " " + incarnation);
+				long lastReceived = parseSequenceNumber(connection.receiveMessage());
+				synchronized (this) {
+					acknowledge(lastReceived);
+					nextToWrite = firstUnacknowledged;
+					connectionNumber++;
+					isConnectionBroken = false;
+				}
+				tcpMessageHandler = connection;
+				return;
+			} catch (IOException e) {
+				if (connection != null) {
+					connection.close();
+				}
+				Thread.sleep(RECONNECT_MILLIS);
+			}
+		}
+	}
+
+	// Reads the acknowledgements that come back over connection, until it closes. Then it wakes up the sender to
+	// reconnect, or the messages that were lost with the connection would wait for the next send() to go out again.
+	private void readAcknowledgements(TCPMessageHandler connection, int number) {
+		try {
+			while (true) {
+				long lastReceived = parseSequenceNumber(connection.receiveMessage());
+				synchronized (this) {
+					acknowledge(lastReceived);
+				}
+			}
+		} catch (IOException e) {
+			// The connection is gone
+		} finally {
+			connection.close();
+			synchronized (this) {
+				if (number == connectionNumber) {
+					isConnectionBroken = true;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	// Waits for a message to write to the current connection, or throws an IOException once it's broken
+	private synchronized String takeNextMessage() throws InterruptedException, IOException {
+		while (!isConnectionBroken && nextToWrite >= nextSequenceNumber) {
+			wait();
+		}
+		if (isConnectionBroken) {
+			throw new IOException("Error: the connection was closed");
+		}
+		String message = unacknowledged.get((int) (nextToWrite - firstUnacknowledged));
+		nextToWrite++;
+		return message;
+	}
+
+	// Forgets every message up to and including sequenceNumber
+	private void acknowledge(long sequenceNumber) {
+		long end = Math.min(sequenceNumber + 1, nextSequenceNumber);
+		if (end <= firstUnacknowledged) {
+			return;
+		}
+		unacknowledged.subList(0, (int) (end - firstUnacknowledged)).clear();
+		firstUnacknowledged = end;
+		nextToWrite = Math.max(nextToWrite, firstUnacknowledged);
+	}
+
+	private static long parseSequenceNumber(String s) throws IOException {
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			throw new IOException(String.format("Error: malformed acknowledgement: %s", s));
+		}
+	}
+}
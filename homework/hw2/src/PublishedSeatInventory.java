@@ -0,0 +1,65 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Wraps a SeatInventory that isn't thread safe (like BitSetSeatInventory) so that search() can be called from any
+// thread, at any time, without a lock, while one writer at a time keeps changing the inventory.
+//
+// Every booking and release made through the wrapper is published to a ConcurrentHashMap of name -> seat, right
+// after the inner inventory makes it and before the change returns to its caller. search() only reads that map,
+// so it never waits for, or gets in the way of, a writer. It stays linearizable: a search that starts after a
+// reserve/bookSeat/delete has returned always sees its result, and a search that overlaps one sees it or doesn't.
+//
+// The caller still has to make sure that only one thread at a time calls reserve(), bookSeat() and delete()
+// (e.g. a single owner thread, or a lock that only the writers take).
+public class PublishedSeatInventory implements SeatInventory {
+	private SeatInventory seatInventory;
+	private ConcurrentMap<String, Integer> publishedSeats;
+
+	public PublishedSeatInventory(SeatInventory seatInventory) {
+		this.seatInventory = seatInventory;
+		this.publishedSeats = new ConcurrentHashMap<String, Integer>();
+	}
+
+	@Override
+	public int reserve(String name) {
+		return publish(name, seatInventory.reserve(name));
+	}
+
+	@Override
+	public int bookSeat(String name, int seatNum) {
+		return publish(name, seatInventory.bookSeat(name, seatNum));
+	}
+
+	// Safe to call from any thread, see the class comment
+	@Override
+	public int search(String name) {
+		Integer seatNum = publishedSeats.get(name);
+		return seatNum != null ? seatNum : NOT_FOUND;
+	}
+
+	@Override
+	public int delete(String name) {
+		int seatNum = seatInventory.delete(name);
+		if (seatNum != NOT_FOUND) {
+			publishedSeats.remove(name);
+		}
+		return seatNum;
+	}
+
+	@Override
+	public int getMaxNumberOfSeats() {
+		return seatInventory.getMaxNumberOfSeats();
+	}
+
+	@Override
+	public int getNumberOfReservedSeats() {
+		return seatInventory.getNumberOfReservedSeats();
+	}
+
+	private int publish(String name, int result) {
+		if (result > 0) {
+			publishedSeats.put(name, result);
+		}
+		return result;
+	}
+}
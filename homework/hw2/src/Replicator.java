@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Makes every change to the seat inventory on every server, so they all keep the same seats.
+// The servers talk to each other over PeerConnections, and the commands they pass around are encoded as
+// "bookseat alice 12", without the protocol (see encodeCommand()).
+//
+// There are two ways to do it (see Server.ReplicationMode):
+//      LamportReplicator - every server takes turns through Lamport's mutual exclusion algorithm
+//      LeaderReplicator  - an elected leader puts every change into a log, and a majority of the servers keep a copy
+// Example usage:
+//      Replicator replicator = new LamportReplicator(serverID, hostAddressList, tcpPortList, seatInventory);
+//      replicator.start();
+//      ...
+//      if (Replicator.isPeerHello(message)) {
+//          replicator.receiveFromPeer(tcpMessageHandler, message); // until the connection closes
+//      }
+//      ...
+//      int seatNum = replicator.execute(command); // e.g. reserve alice
+public abstract class Replicator {
+	protected static final char COMMAND_SEPARATOR = ';';
+
+	protected int serverID;
+	protected SeatInventory seatInventory;
+
+	// the connection to each other server, null for this server
+	protected PeerConnection[] peers;
+
+	// What came in from each other server so far, null for this server. A server can reconnect while its old
+	// connection is still being read, so the messages of both are let through one at a time, under the inbox's lock.
+	private static class Inbox {
+		// the incarnation of the other server's PeerConnection, see PeerConnection
+		private long incarnation;
+		private long lastSequenceNumber;
+	}
+
+	private Inbox[] inboxes;
+
+	protected Replicator(int serverID, List<String> hostAddressList, List<Integer> tcpPortList, SeatInventory seatInventory) {
+		assert (hostAddressList.size() == tcpPortList.size());
+
+		this.serverID = serverID;
+		this.seatInventory = seatInventory;
+
+		this.peers = new PeerConnection[hostAddressList.size()];
+		for (int i = 0; i < peers.length; i++) {
+			if (i != serverID) {
+				peers[i] = new PeerConnection(serverID, hostAddressList.get(i), tcpPortList.get(i));
+			}
+		}
+
+		this.inboxes = new Inbox[hostAddressList.size()];
+		for (int i = 0; i < inboxes.length; i++) {
+			if (i != serverID) {
+				inboxes[i] = new Inbox();
+			}
+		}
+	}
+
+	public void start() {
+		for (PeerConnection peer : peers) {
+			if (peer != null) {
+				peer.start();
+			}
+		}
+	}
+
+	public void close() {
+		for (PeerConnection peer : peers) {
+			if (peer != null) {
+				peer.close();
+			}
+		}
+	}
+
+	// Executes a RESERVE, BOOKSEAT or DELETE on every server, and returns its result on this one (see SeatInventory).
+	// Blocks until the change has gone through.
+	public abstract int execute(CommandParser.Command command) throws IOException;
+
+	// Handles one message from another server. Throws an IOException to drop the connection it came over.
+	protected abstract void receive(int peerID, String message) throws IOException;
+
+	public static boolean isPeerHello(String message) {
+		return message.startsWith(PeerConnection.HELLO + " ");
+	}
+
+	// Handles the messages from another server that connected to us and sent hello, until the connection closes.
+	// Tells the other server where to pick up, and acknowledges what it sent every PeerConnection.ACK_INTERVAL messages.
+	// A message it sent before, over this connection or an earlier one, is dropped.
+	public void receiveFromPeer(MessageHandler messageHandler, String hello) {
+		try {
+			String[] tokens = hello.split(" ");
+			if (tokens.length != 3) {
+				throw new IOException(String.format("Error: malformed hello: %s", hello));
+			}
+			int peerID = Integer.parseInt(tokens[1]);
+			long incarnation = Long.parseLong(tokens[2]);
+			if (peerID < 0 || peerID >= peers.length || peerID == serverID) {
+				throw new IOException(String.format("Error: unknown server id: %d", peerID));
+			}
+
+			Inbox inbox = inboxes[peerID];
+			synchronized (inbox) {
+				if (inbox.incarnation != incarnation) {
+					// The other server started over, and so did its sequence numbers
+					inbox.incarnation = incarnation;
+					inbox.lastSequenceNumber = 0;
+				}
+				messageHandler.sendMessage(Long.toString(inbox.lastSequenceNumber));
+			}
+
+			int unacknowledged = 0;
+			while (true) {
+				String message = messageHandler.receiveMessage();
+				int separator = message.indexOf(' ');
+				if (separator < 0) {
+					throw new IOException(String.format("Error: malformed peer message: %s", message));
+				}
+				long sequenceNumber = Long.parseLong(message.substring(0, separator));
+
+				long lastSequenceNumber;
+				synchronized (inbox) {
+					if (inbox.incarnation != incarnation) {
+						throw new IOException("Error: the other server reconnected as a new incarnation");
+					} else if (sequenceNumber > inbox.lastSequenceNumber) {
+						// Only counted once it went through. The last line of a connection that broke can be cut short,
+						// and has to come again in one piece.
+						receive(peerID, message.substring(separator + 1));
+						inbox.lastSequenceNumber = sequenceNumber;
+					}
+					lastSequenceNumber = inbox.lastSequenceNumber;
+				}
+
+				if (++unacknowledged == PeerConnection.ACK_INTERVAL) {
+					messageHandler.sendMessage(Long.toString(lastSequenceNumber));
+					unacknowledged = 0;
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			// The other server went away, or isn't speaking our protocol
+		} finally {
+			// If it's still there, its PeerConnection notices and connects again
+			messageHandler.close();
+		}
+	}
+
+	protected int getNumberOfServers() {
+		return peers.length;
+	}
+
+	// Whether command is a change that can be applied, e.g. the seat number of a BOOKSEAT has to fit in an int.
+	// Every server comes to the same answer, so a command that can't be applied is turned down before it's replicated.
+	protected static boolean isApplicable(CommandParser.Command command) {
+		switch (command.getCommandType()) {
+			case RESERVE:
+			case DELETE:
+				return true;
+			case BOOKSEAT:
+				try {
+					Integer.parseInt(command.getArguments().get(1));
+					return true;
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			default:
+				return false;
+		}
+	}
+
+	// Returns the result of command (see SeatInventory), or SeatInventory.INVALID_SEAT if it can't be applied
+	protected int apply(CommandParser.Command command) {
+		if (!isApplicable(command)) {
+			return SeatInventory.INVALID_SEAT;
+		}
+
+		List<String> arguments = command.getArguments();
+		switch (command.getCommandType()) {
+			case BOOKSEAT:
+				return seatInventory.bookSeat(arguments.get(0), Integer.parseInt(arguments.get(1)));
+			case DELETE:
+				return seatInventory.delete(arguments.get(0));
+			default:
+				return seatInventory.reserve(arguments.get(0));
+		}
+	}
+
+	// "bookseat alice 12", without the protocol
+	protected static void encodeCommand(CommandParser.Command command, StringBuilder encoded) {
+		encoded.append(command.getCommandType().name());
+		for (String argument : command.getArguments()) {
+			encoded.append(' ').append(argument);
+		}
+	}
+
+	protected static CommandParser.Command decodeCommand(String encodedCommand) throws IOException {
+		String[] tokens = encodedCommand.split(" ");
+		List<String> arguments = new ArrayList<String>();
+		for (int i = 1; i < tokens.length; i++) {
+			arguments.add(tokens[i]);
+		}
+
+		try {
+			CommandParser.Command.CommandType commandType = CommandParser.Command.CommandType.valueOf(tokens[0]);
+			commandType.validateArguments(arguments);
+			return new CommandParser.Command(commandType, arguments);
+		} catch (IllegalArgumentException | CommandParser.InvalidCommandException e) {
+			throw new IOException(String.format("Error: malformed command: %s", encodedCommand));
+		}
+	}
+}
@@ -0,0 +1,26 @@
+// A SeatInventory keeps track of which seats are free and which name each reserved seat belongs to.
+// Every operation returns either a seat number (1 to N) or one of the negative status codes below.
+// It is up to the caller to turn a status code into a response for the client (see Server).
+public interface SeatInventory {
+	int SOLD_OUT = -1;
+	int ALREADY_BOOKED = -2;
+	int SEAT_UNAVAILABLE = -3;
+	int INVALID_SEAT = -4;
+	int NOT_FOUND = -5;
+
+	// assigns the lowest numbered free seat to name
+	int reserve(String name);
+
+	// assigns seatNum to name, if seatNum is free
+	int bookSeat(String name, int seatNum);
+
+	// returns the seat assigned to name
+	int search(String name);
+
+	// frees the seat assigned to name and returns it
+	int delete(String name);
+
+	int getMaxNumberOfSeats();
+
+	int getNumberOfReservedSeats();
+}
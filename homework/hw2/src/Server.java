@@ -2,19 +2,32 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
 
 public class Server {
+	
+	// How the servers keep their seats the same, see Replicator
+	public enum ReplicationMode {
+		// every server takes its turn through Lamport's mutual exclusion algorithm, see LamportReplicator
+		LAMPORT,
+		// an elected leader sequences every change into a log that commits on a majority, see LeaderReplicator
+		LEADER
+	}
+	
 	private int serverID;	
 	
 	private int maxNumberOfSeats;
-    private Map<String, Integer> reservedSeats;
+	
+	// keeps track of who is sitting where, see BitSetSeatInventory for details
+	// it is only changed by the replicator, but can be searched without it (see executeCommand())
+    private SeatInventory seatInventory;
     
     private List<String> hostAddressList;
 	private List<Integer> tcpPortList;
+	
+	// makes every change to the seat inventory on every server, in the same order (see Replicator)
+	private Replicator replicator;
     
     private ServerSocket serverSocket;
     
@@ -31,13 +44,25 @@ public class Server {
 	private volatile boolean isRunning;	
     
     public Server(int serverID, int maxNumberOfSeats, List<String> hostAddressList, List<Integer> tcpPortList) throws IOException {
+    	this(serverID, maxNumberOfSeats, hostAddressList, tcpPortList, ReplicationMode.LAMPORT);
+    }
+    
+    public Server(int serverID, int maxNumberOfSeats, List<String> hostAddressList, List<Integer> tcpPortList, ReplicationMode replicationMode) throws IOException {
     	this.serverID = serverID;
     	
     	this.maxNumberOfSeats = maxNumberOfSeats;
-    	this.reservedSeats = new HashMap<String, Integer>(this.maxNumberOfSeats);
+    	this.seatInventory = new PublishedSeatInventory(new BitSetSeatInventory(this.maxNumberOfSeats));
     	
     	this.hostAddressList = hostAddressList;
     	this.tcpPortList = tcpPortList;
+    	switch (replicationMode) {
+    		case LAMPORT:
+    			this.replicator = new LamportReplicator(serverID, hostAddressList, tcpPortList, seatInventory);
+    			break;
+    		case LEADER:
+    			this.replicator = new LeaderReplicator(serverID, hostAddressList, tcpPortList, seatInventory);
+    			break;
+    	}
     	        
         this.isRunning = false;
         
@@ -68,9 +93,12 @@ public class Server {
 	public void start() {
 		this.isRunning = true;
 		this.serverSocketHandler.start();	
+		this.replicator.start();
 	}
 
 	private void stop() {
+		replicator.close();
+		
 		// Close all of the message handlers so they aren't waiting for messages from clients
 		for (MessageHandler messageHandler : messageHandlers) {
 			messageHandler.close();
@@ -96,96 +124,106 @@ public class Server {
     
     // This method is in charge of all the logic related to executing commands.
     // Commands that arrive over TCP or UDP should both be handle by this method.
-    private synchronized String executeCommand(String commandString) throws CommandParser.InvalidCommandException {
-    	String result = null;
+    // SEARCH only reads the published view of the inventory (see PublishedSeatInventory), so it runs without the
+    // replicator, and lookups don't queue up behind each other or behind bookings. Everything else that changes the
+    // inventory goes through the replicator, which makes the same change on every server (see executeUpdate()).
+    private String executeCommand(String commandString) throws CommandParser.InvalidCommandException {
     	CommandParser.Command command = CommandParser.parseCommand(commandString);
     	
-    	// This is for debugging purpose only
-    	// Remove when finished
-    	System.out.println(commandString);
+    	if (command.getCommandType() == CommandParser.Command.CommandType.SEARCH) {
+    		return search(command.getArguments().get(0));
+    	}
+    	return executeUpdate(command);
+    }
+    
+    // A change that couldn't go through (e.g. while a new leader is being elected) is answered with the reason,
+    // so the client can try again
+    private String executeUpdate(CommandParser.Command command) {
+    	String result = null;
     	
-    	// @TODO: Handle each command type
     	List<String> arguments = command.getArguments();
-    	switch (command.getCommandType()) {
-    		case RESERVE:
-    			result = reserve(arguments.get(0));
-    			break;
-    		case BOOKSEAT:
-    			result = bookSeat(arguments.get(0), Integer.parseInt(arguments.get(1)));
-    			break;
-    		case SEARCH:
-    			result = search(arguments.get(0));
-    			break;
-    		case DELETE:
-    			result = delete(arguments.get(0));
-    			break;
-    		case SHUTDOWN:
-    			result = shutdown();
-    			break;
-    	}    	   	
+    	try {
+	    	switch (command.getCommandType()) {
+	    		case RESERVE:
+	    			result = formatAssignment(replicator.execute(command), 0);
+	    			break;
+	    		case BOOKSEAT:
+	    			// A seat we don't have is turned down here, before it goes to the other servers
+	    			int seatNum = parseSeatNum(arguments.get(1));
+	    			if (seatNum == SeatInventory.INVALID_SEAT) {
+	    				result = formatAssignment(SeatInventory.INVALID_SEAT, 0);
+	    				break;
+	    			}
+	    			result = formatAssignment(replicator.execute(command), seatNum);
+	    			break;
+	    		case SEARCH:
+	    			result = search(arguments.get(0));
+	    			break;
+	    		case DELETE:
+	    			result = formatDeletion(replicator.execute(command), arguments.get(0));
+	    			break;
+	    		case SHUTDOWN:
+	    			result = shutdown();
+	    			break;
+	    	}
+    	} catch (IOException e) {
+    		result = e.getMessage();
+    	}
     	
     	return result;
     }
     
+    // Returns the seat number, or SeatInventory.INVALID_SEAT if it isn't one of our seats (or doesn't even fit in an int)
+    private int parseSeatNum(String seatNumString) {
+    	try {
+    		int seatNum = Integer.parseInt(seatNumString);
+    		if (seatNum >= 1 && seatNum <= maxNumberOfSeats) {
+    			return seatNum;
+    		}
+    	} catch (NumberFormatException e) {
+    		
+    	}
+    	return SeatInventory.INVALID_SEAT;
+    }
+    
 	private synchronized String shutdown() {
 		this.isRunning = false;		
 		notify();
 		return "Server is shutting down!";
 	}
 
-	private String delete(String name) {
-		Integer seatNum = reservedSeats.remove(name);
-		if (seatNum != null) {
-			return seatNum.toString();
+	// Turns the result of a delete into the response that is sent back to the client
+	private String formatDeletion(int seatNum, String name) {
+		if (seatNum != SeatInventory.NOT_FOUND) {
+			return Integer.toString(seatNum);
 		} else {
 			return String.format("No reservation found for %s", name);
 		}
 	}
 
 	private String search(String name) {
-		if (reservedSeats.containsKey(name)) {
-			return Integer.toString(reservedSeats.get(name));
+		int seatNum = seatInventory.search(name);
+		if (seatNum != SeatInventory.NOT_FOUND) {
+			return Integer.toString(seatNum);
 			
 		} else {
 			return String.format("No reservation found for %s", name);
 		}
 	}
 
-	private String bookSeat(String name, int seatNum) {
-		if (seatNum < 1 || seatNum > maxNumberOfSeats) {
-			return "This isn't Hilbert's Grand Hotel. We don't have that many seats!";
-			
-		} else if (reservedSeats.size() == maxNumberOfSeats) {
-			return "Sold out - No seat available";
-			
-		} else if (reservedSeats.containsKey(name)) {
-			return "Seat already booked against the name provided";
-			
-		} else if (reservedSeats.containsValue(seatNum)) {
-			return String.format("%d is not available", seatNum);
-			
-		} else {
-			reservedSeats.put(name, seatNum);
-			return String.format("Seat assigned to you is %d", seatNum);
-		}
-	}
-
-	private String reserve(String name) {
-		if (reservedSeats.size() == maxNumberOfSeats) {
-			return "Sold out - No seat available";
-			
-		} else if (reservedSeats.containsKey(name)) {
-			return "Seat already booked against the name provided";
-			
-		} else {
-			for (int i = 1; i <= maxNumberOfSeats; i++) {
-	    		if (!reservedSeats.containsValue(i)) {
-	    			reservedSeats.put(name, i);
-	    			return String.format("Seat assigned to you is %d", i);
-	    		}
-			}
-			
-			return "Uh oh, someone stole your seat, dude. This should never happen!";
+	// Turns the result of a reserve/bookSeat into the response that is sent back to the client
+	private String formatAssignment(int result, int requestedSeatNum) {
+		switch (result) {
+			case SeatInventory.INVALID_SEAT:
+				return "This isn't Hilbert's Grand Hotel. We don't have that many seats!";
+			case SeatInventory.SOLD_OUT:
+				return "Sold out - No seat available";
+			case SeatInventory.ALREADY_BOOKED:
+				return "Seat already booked against the name provided";
+			case SeatInventory.SEAT_UNAVAILABLE:
+				return String.format("%d is not available", requestedSeatNum);
+			default:
+				return String.format("Seat assigned to you is %d", result);
 		}
 	}
 
@@ -195,6 +233,7 @@ public class Server {
     
     // The CommandHandler is a wrapper around the message handler.
     // It simply waits for a command, executes the command when it receives one, and sends a response back to the client
+    // A connection from another server starts with a hello instead, and is handed over to the replicator.
     private class CommandHandler implements Runnable {
     	private MessageHandler messageHandler;
     	
@@ -207,6 +246,10 @@ public class Server {
 			while (isRunning) {
 				try {
 					String command = messageHandler.receiveMessage();
+					if (Replicator.isPeerHello(command)) {
+						replicator.receiveFromPeer(messageHandler, command);
+						break;
+					}
 					String response = executeCommand(command);
 					messageHandler.sendMessage(response);
 				} catch (Exception e) {
@@ -217,17 +260,33 @@ public class Server {
     }
     
     public static void main(String[] args) {
+        // The only option is --replication=lamport|leader (default: lamport), the rest comes from stdin
+        ReplicationMode replicationMode = ReplicationMode.LAMPORT;
+        for (String arg : args) {
+        	try {
+        		if (!arg.startsWith("--replication=")) {
+        			throw new IllegalArgumentException();
+        		}
+        		replicationMode = ReplicationMode.valueOf(arg.substring("--replication=".length()).toUpperCase());
+        	} catch (IllegalArgumentException e) {
+        		System.out.println(String.format("Error: unrecognized option: %s", arg));
+        		System.out.println("Expected: --replication=lamport|leader");
+        		System.exit(1);
+        	}
+        }
+        
         Scanner scanner = new Scanner(System.in);
         int myID = scanner.nextInt();
         int numServer = scanner.nextInt();
         int numSeat = scanner.nextInt();
+        scanner.nextLine(); // the rest of the line with the numbers
         
         List<String> hostAddressList = new ArrayList<String>(numServer);
         List<Integer> tcpPortList = new ArrayList<Integer>(numServer);  
 
         for (int i = 0; i < numServer; i++) {
         	String[] socketAddressComponents = scanner.nextLine().trim().split(":");
-        	if (socketAddressComponents.length == 2) {
+        	if (socketAddressComponents.length != 2) {
         		System.out.println("Expected socket address format: xxx.xxx.xxx.xxx:xxxxx");
         		System.exit(1);
         	}
@@ -239,7 +298,7 @@ public class Server {
         // Create the server
         Server server = null;
         try {
-        	server = new Server(myID, numSeat, hostAddressList, tcpPortList);
+        	server = new Server(myID, numSeat, hostAddressList, tcpPortList, replicationMode);
         } catch (IOException e) {
             System.out.println("Error: Could not initialize the server.");
             e.printStackTrace();
@@ -20,23 +20,24 @@ public class TCPMessageHandler implements MessageHandler {
     	
     	reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
     	writer = new PrintWriter(socket.getOutputStream());
-    	
-        // @TODO: Need to construct a Lamport's Clock object
     }
 
-	public void sendMessage(String message) {
-		// @TODO: Send a TimestampedMessage object instead of just a message
-		
+	public void sendMessage(String message) throws IOException {
 		writer.println(message);
 		writer.flush();
 		
-		// @TODO: increment the clock 
+		// A PrintWriter doesn't throw, it only remembers that something went wrong
+		if (writer.checkError()) {
+			throw new IOException("Error: the connection was closed");
+		}
     }
 
 	public String receiveMessage() throws IOException {	
-		// @TODO: instead of returning just a string message, we'll need to
-		// return a TimeStampedMessage object
-		return reader.readLine().trim();
+		String message = reader.readLine();
+		if (message == null) {
+			throw new IOException("Error: the connection was closed");
+		}
+		return message.trim();
 	}
 	
 	public void close() {
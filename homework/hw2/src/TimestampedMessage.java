@@ -2,21 +2,37 @@ import java.io.Serializable;
 
 // Bundles a String message and a LamportClock timestamp into a single object that
 // can easily be serialized and sent over the network.
+// Over a TCP connection it travels as a single line, "<timestamp> <message>" (see toString() and parse()).
 public class TimestampedMessage implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	private String message;
+	private LamportClock timestamp;
+
 	public TimestampedMessage(String message, LamportClock timestamp) {
-		// @TODO: Implement me!
+		this.message = message;
+		this.timestamp = timestamp;
 	}
-	
+
 	public String getMessage() {
-		// @TODO: Implement me!
-		return null;
+		return message;
 	}
-	
+
 	public LamportClock getTimestamp() {
-		// @TODO: Implement me!
-		return null;
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return timestamp + " " + message;
+	}
+
+	public static TimestampedMessage parse(String s) {
+		int separator = s.indexOf(' ');
+		if (separator < 0) {
+			throw new IllegalArgumentException(String.format("Error: malformed timestamped message: %s", s));
+		}
+		return new TimestampedMessage(s.substring(separator + 1), LamportClock.parse(s.substring(0, separator)));
 	}
 }